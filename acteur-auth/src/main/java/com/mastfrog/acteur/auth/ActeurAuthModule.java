@@ -6,6 +6,7 @@ import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Named;
+import com.mastfrog.settings.Settings;
 import com.mastfrog.util.ConfigurationError;
 import java.io.File;
 import java.io.IOException;
@@ -20,11 +21,39 @@ public class ActeurAuthModule<T extends UserFactory<?>> extends AbstractModule {
     private static final class UserFactoryTL extends TypeLiteral<UserFactory<?>> {
     }
     private final Class<T> userFactoryType;
+    private boolean coalesce;
+    private boolean cache;
 
     public ActeurAuthModule(Class<T> userFactoryType) {
         this.userFactoryType = userFactoryType;
     }
 
+    /**
+     * Wrap the user factory so that concurrent lookups of the same user share
+     * one call to the underlying store.  The unwrapped instance can still be
+     * injected by its concrete type.
+     *
+     * @see CoalescingUserFactory
+     * @return this
+     */
+    public ActeurAuthModule<T> coalesceConcurrentLookups() {
+        coalesce = true;
+        return this;
+    }
+
+    /**
+     * Wrap the user factory in a read-through cache of user objects.  If
+     * lookups are also coalesced, only cache misses reach the coalescing
+     * layer.
+     *
+     * @see CachingUserFactory
+     * @return this
+     */
+    public ActeurAuthModule<T> cacheUsers() {
+        cache = true;
+        return this;
+    }
+
     @Override
     protected void configure() {
         // This looks like insanity, but it actually goes to the nature of Google's
@@ -36,7 +65,13 @@ public class ActeurAuthModule<T extends UserFactory<?>> extends AbstractModule {
         // This contortion ensures there is really only one, but lets instances
         // of untyped UserFactory be injected, and allows access to the concrete
         // implementation type if desired
-        bind(UserFactory.class).to(userFactoryType).in(Scopes.SINGLETON);
+        if (coalesce || cache) {
+            bind(userFactoryType).in(Scopes.SINGLETON);
+            bind(UserFactory.class).toProvider(new DecoratingProvider(binder().getProvider(userFactoryType),
+                    binder().getProvider(Settings.class))).in(Scopes.SINGLETON);
+        } else {
+            bind(UserFactory.class).to(userFactoryType).in(Scopes.SINGLETON);
+        }
         bind(new UserFactoryTL()).toProvider(new GenericProvider(binder().getProvider(UserFactory.class)));
         install(new UniqueIDs.UniqueIdsModule());
     }
@@ -50,9 +85,33 @@ public class ActeurAuthModule<T extends UserFactory<?>> extends AbstractModule {
         }
 
         @Override
-        public T get() {
-            return userFactoryType.cast(p.get());
+        public UserFactory<?> get() {
+            return p.get();
+        }
+
+    }
+
+    private class DecoratingProvider implements Provider<UserFactory> {
+
+        private final Provider<? extends UserFactory<?>> p;
+        private final Provider<Settings> settings;
+
+        DecoratingProvider(Provider<? extends UserFactory<?>> p, Provider<Settings> settings) {
+            this.p = p;
+            this.settings = settings;
         }
 
+        @Override
+        @SuppressWarnings("unchecked")
+        public UserFactory get() {
+            UserFactory result = p.get();
+            if (coalesce) {
+                result = new CoalescingUserFactory(result);
+            }
+            if (cache) {
+                result = new CachingUserFactory(result, settings.get());
+            }
+            return result;
+        }
     }
 }
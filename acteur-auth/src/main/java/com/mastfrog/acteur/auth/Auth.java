@@ -27,7 +27,16 @@ import java.util.concurrent.atomic.AtomicReference;
 final class Auth extends AuthenticationActeur {
 
     @Inject
-    Auth(AuthenticationStrategy strategy, HttpEvent evt, UserFactory<?> uf, OAuthPlugins plugins, FailedAuthenticationHandler handler) {
+    Auth(AuthenticationStrategy strategy, HttpEvent evt, UserFactory<?> uf, OAuthPlugins plugins, FailedAuthenticationHandler handler, ChannelAuthCache channelCache) {
+        // If an earlier request on this connection authenticated with the
+        // same credentials recently, reuse what it found
+        byte[] digest = channelCache.digest(evt);
+        ChannelAuthCache.Entry reuse = channelCache.find(evt, digest);
+        if (reuse != null) {
+            next(reuse.scopeContents);
+            return;
+        }
+        long started = System.currentTimeMillis();
         AtomicReference<FailHook> hook = new AtomicReference<>();
         List<Object> contents = new LinkedList<>();
         Result<?> authenticationResult = strategy.authenticate(evt, hook, contents, response());
@@ -41,6 +50,7 @@ final class Auth extends AuthenticationActeur {
                     authenticationResult.type.toString());
         } else {
             setupCookie(evt, plugins, authenticationResult);
+            channelCache.store(evt, digest, authenticationResult, contents, started);
             next( contents.toArray(new Object[contents.size()]));
         }
     }
@@ -0,0 +1,324 @@
+package com.mastfrog.acteur.auth;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.Exceptions;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size-bounded on-disk cache of user pictures fetched from OAuth services.
+ * Each image is stored in a file named for the SHA-1 hash of its remote URL,
+ * with its content type in a sidecar file; the least recently served files
+ * are deleted once the total size exceeds the configured limit.
+ * <p/>
+ * Concurrent requests for an image which is not yet cached share a single
+ * fetch from the remote server. A URL which could not be fetched, or was
+ * not an image, is not tried again for
+ * <code>avatar.failure.cache.seconds</code>.
+ * <p/>
+ * Entries returned by {@link #get(java.lang.String)} are pinned until
+ * passed to {@link #release(com.mastfrog.acteur.auth.AvatarCache.Entry)};
+ * a pinned entry may be evicted, but its file is only deleted once it is
+ * released, so it cannot vanish while it is being served.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class AvatarCache {
+
+    public static final String SETTINGS_KEY_AVATAR_CACHE_DIR = "avatar.cache.dir";
+    public static final String SETTINGS_KEY_AVATAR_CACHE_MAX_MB = "avatar.cache.max.mb";
+    public static final String SETTINGS_KEY_AVATAR_MAX_BYTES = "avatar.max.bytes";
+    public static final String SETTINGS_KEY_AVATAR_FETCH_TIMEOUT_SECONDS = "avatar.fetch.timeout.seconds";
+    public static final String SETTINGS_KEY_AVATAR_FAILURE_CACHE_SECONDS = "avatar.failure.cache.seconds";
+    private static final String TYPE_SUFFIX = ".type";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final long maxTotalBytes;
+    private final int maxImageBytes;
+    private final int timeoutMillis;
+    // Access-ordered, so iteration starts with the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75F, true);
+    private final ConcurrentHashMap<String, FutureTask<Entry>> inFlight = new ConcurrentHashMap<>();
+    // Hashes of URLs which recently could not be fetched
+    private final Cache<String, Boolean> failures;
+    private long totalBytes;
+
+    @Inject
+    AvatarCache(Settings settings) throws IOException {
+        String dirName = settings.getString(SETTINGS_KEY_AVATAR_CACHE_DIR,
+                new File(System.getProperty("java.io.tmpdir"), "avatar-cache").getPath());
+        dir = new File(dirName);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        maxTotalBytes = settings.getLong(SETTINGS_KEY_AVATAR_CACHE_MAX_MB, 64) * 1024 * 1024;
+        maxImageBytes = settings.getInt(SETTINGS_KEY_AVATAR_MAX_BYTES, 1024 * 1024);
+        timeoutMillis = settings.getInt(SETTINGS_KEY_AVATAR_FETCH_TIMEOUT_SECONDS, 10) * 1000;
+        failures = CacheBuilder.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(settings.getLong(SETTINGS_KEY_AVATAR_FAILURE_CACHE_SECONDS, 300), TimeUnit.SECONDS)
+                .build();
+        loadExisting();
+    }
+
+    static String hash(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    private void loadExisting() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Oldest first, so that insertion order approximates recency
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    f.delete();
+                    continue;
+                }
+                if (name.endsWith(TYPE_SUFFIX)) {
+                    continue;
+                }
+                File typeFile = new File(dir, name + TYPE_SUFFIX);
+                if (!typeFile.exists()) {
+                    f.delete();
+                    continue;
+                }
+                String type = new String(Files.readAllBytes(typeFile.toPath()), StandardCharsets.UTF_8);
+                add(new Entry(name, f, type, f.length()));
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Get the cached copy of an image, fetching it if necessary. The entry
+     * is pinned, and must be released once its file has been opened.
+     *
+     * @param url The remote URL
+     * @return An entry, or null if the image could not be fetched or is not
+     * an image
+     * @throws IOException If the fetch fails
+     */
+    Entry get(final String url) throws IOException {
+        final String hash = hash(url);
+        synchronized (this) {
+            Entry result = entries.get(hash);
+            if (result != null && result.file.exists()) {
+                result.pins++;
+                return result;
+            }
+        }
+        if (failures.getIfPresent(hash) != null) {
+            return null;
+        }
+        FutureTask<Entry> task = new FutureTask<>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                return fetch(hash, url);
+            }
+        });
+        FutureTask<Entry> existing = inFlight.putIfAbsent(hash, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(hash);
+            }
+        } else {
+            task = existing;
+        }
+        Entry result;
+        try {
+            result = task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            return Exceptions.chuck(ex.getCause());
+        }
+        if (result == null) {
+            return null;
+        }
+        synchronized (this) {
+            // Evicted already by other fetches, in a very small cache
+            if (result.evicted) {
+                return null;
+            }
+            result.pins++;
+        }
+        return result;
+    }
+
+    /**
+     * Release an entry returned by <code>get()</code>, allowing its file to
+     * be deleted if it has been evicted.
+     *
+     * @param entry The entry
+     */
+    synchronized void release(Entry entry) {
+        if (--entry.pins == 0 && entry.evicted && entries.get(entry.hash) == null) {
+            // Unless the image has been fetched again into the same file
+            delete(entry);
+        }
+    }
+
+    private void delete(Entry e) {
+        e.file.delete();
+        new File(dir, e.hash + TYPE_SUFFIX).delete();
+    }
+
+    private Entry fetch(String hash, String url) throws IOException {
+        Entry result = null;
+        try {
+            result = download(hash, url);
+            return result;
+        } finally {
+            if (result == null) {
+                failures.put(hash, true);
+            }
+        }
+    }
+
+    private Entry download(String hash, String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        conn.setInstanceFollowRedirects(true);
+        try {
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            String type = conn.getContentType();
+            if (type == null || !type.startsWith("image/")) {
+                return null;
+            }
+            if (conn.getContentLengthLong() > maxImageBytes) {
+                return null;
+            }
+            File temp = new File(dir, hash + TEMP_SUFFIX);
+            long length = 0;
+            try (InputStream in = conn.getInputStream()) {
+                try (OutputStream out = new FileOutputStream(temp)) {
+                    byte[] buf = new byte[8192];
+                    int count;
+                    while ((count = in.read(buf)) > 0) {
+                        length += count;
+                        if (length > maxImageBytes) {
+                            break;
+                        }
+                        out.write(buf, 0, count);
+                    }
+                }
+            }
+            if (length > maxImageBytes) {
+                temp.delete();
+                return null;
+            }
+            File file = new File(dir, hash);
+            Files.write(new File(dir, hash + TYPE_SUFFIX).toPath(), type.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Entry result = new Entry(hash, file, type, length);
+            synchronized (this) {
+                add(result);
+                evict();
+            }
+            return result;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private void add(Entry entry) {
+        Entry old = entries.put(entry.hash, entry);
+        if (old != null) {
+            totalBytes -= old.length;
+        }
+        totalBytes += entry.length;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        // Always keep the most recently added entry
+        while (totalBytes > maxTotalBytes && entries.size() > 1 && it.hasNext()) {
+            Entry e = it.next();
+            it.remove();
+            totalBytes -= e.length;
+            e.evicted = true;
+            if (e.pins == 0) {
+                delete(e);
+            }
+        }
+    }
+
+    static final class Entry {
+
+        final String hash;
+        final File file;
+        final String contentType;
+        final long length;
+        // Guarded by the cache
+        int pins;
+        boolean evicted;
+
+        Entry(String hash, File file, String contentType, long length) {
+            this.hash = hash;
+            this.file = file;
+            this.contentType = contentType;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return hash + " " + contentType + " (" + length + ")";
+        }
+    }
+}
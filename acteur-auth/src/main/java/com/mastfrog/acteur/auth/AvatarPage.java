@@ -0,0 +1,141 @@
+package com.mastfrog.acteur.auth;
+
+import com.google.common.base.Optional;
+import com.google.common.net.MediaType;
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.ActeurFactory;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.Page;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Headers.CACHE_CONTROL;
+import static com.mastfrog.acteur.headers.Headers.EXPIRES;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.util.CacheControl;
+import static com.mastfrog.acteur.util.CacheControlTypes.Public;
+import static com.mastfrog.acteur.util.CacheControlTypes.max_age;
+import com.mastfrog.url.Path;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.LastHttpContent;
+import static io.netty.handler.codec.http.HttpResponseStatus.FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves user pictures from the local AvatarCache, at URLs of the form
+ * <code>$BASE/$USER_NAME/$HASH_OF_REMOTE_URL</code> as generated by
+ * <code>UserPictureProvider.getProxiedUserPictureURL()</code>.
+ *
+ * @author Tim Boudreau
+ */
+final class AvatarPage extends Page {
+
+    private static final Duration MAX_AGE = Duration.ofDays(365);
+
+    @Inject
+    AvatarPage(ActeurFactory af, UserPictureProvider pictures) {
+        add(af.matchMethods(GET));
+        add(af.matchPath("^" + pictures.avatarBasePath() + "/[^/]+/[0-9a-f]{40}$"));
+        add(AvatarActeur.class);
+    }
+
+    @Override
+    protected String getDescription() {
+        return "Serves a locally cached copy of a user's picture from their "
+                + "OAuth service";
+    }
+
+    static final class AvatarActeur extends Acteur implements ChannelFutureListener {
+
+        private final HttpEvent evt;
+        private AvatarCache.Entry entry;
+        private RandomAccessFile file;
+        private final AtomicBoolean handedOff = new AtomicBoolean();
+
+        @Inject
+        AvatarActeur(HttpEvent evt, UserFactory<?> users, UserPictureProvider pictures, AvatarCache cache) throws IOException, URISyntaxException {
+            this.evt = evt;
+            int base = Path.parse(pictures.avatarBasePath()).size();
+            String userName = URLDecoder.decode(evt.path().getElement(base).toString(), "UTF-8");
+            String hash = evt.path().getLastElement().toString();
+            Optional<?> user = users.findUserByName(userName);
+            if (!user.isPresent()) {
+                setState(new RespondWith(NOT_FOUND, "No user " + userName));
+                return;
+            }
+            String url = pictures.getUserPictureURL(user.get());
+            if (!UserPictureProvider.isRemote(url)) {
+                add(Headers.LOCATION, new URI(url));
+                setState(new RespondWith(FOUND));
+                return;
+            }
+            if (!hash.equals(AvatarCache.hash(url))) {
+                // The user's picture has changed since the link was generated
+                add(Headers.LOCATION, new URI(pictures.getProxiedUserPictureURL(user.get())));
+                setState(new RespondWith(FOUND));
+                return;
+            }
+            entry = cache.get(url);
+            if (entry != null) {
+                // Open the file while the entry is pinned - once open, it
+                // can be read even if eviction deletes it
+                try {
+                    file = new RandomAccessFile(entry.file, "r");
+                } catch (FileNotFoundException ex) {
+                    file = null;
+                } finally {
+                    cache.release(entry);
+                }
+            }
+            if (file == null) {
+                // Could not cache it - let the browser try the original
+                add(Headers.LOCATION, new URI(url));
+                setState(new RespondWith(FOUND));
+                return;
+            }
+            evt.channel().closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    // The response was never written
+                    if (handedOff.compareAndSet(false, true)) {
+                        file.close();
+                    }
+                }
+            });
+            add(Headers.CONTENT_TYPE, MediaType.parse(entry.contentType));
+            add(Headers.CONTENT_LENGTH, entry.length);
+            // The URL contains a hash of the remote URL, so its content
+            // never changes
+            add(CACHE_CONTROL, new CacheControl(Public).add(max_age, MAX_AGE));
+            add(EXPIRES, ZonedDateTime.now().plus(MAX_AGE));
+            setChunked(false);
+            setState(new RespondWith(OK));
+            setResponseBodyWriter(this);
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (!handedOff.compareAndSet(false, true)) {
+                return;
+            }
+            // Hand the file to the channel directly, so it can be sent with
+            // sendfile() rather than being copied through the heap
+            future = future.channel().write(new DefaultFileRegion(file.getChannel(), 0, entry.length));
+            future = future.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            if (!evt.requestsConnectionStayOpen()) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+}
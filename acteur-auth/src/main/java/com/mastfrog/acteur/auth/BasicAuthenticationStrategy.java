@@ -10,7 +10,6 @@ import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.util.PasswordHasher;
 import com.mastfrog.acteur.util.Realm;
 import com.mastfrog.settings.Settings;
-import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
 import java.time.Duration;
 import java.util.Collection;
@@ -28,11 +27,13 @@ class BasicAuthenticationStrategy extends AuthenticationStrategy {
     private final OAuthPlugins plugins;
     public static final String CODE = "ba";
     private final boolean sendAuthHeader;
+    private final RequestCookies cookies;
     public static final String SETTINGS_KEY_SEND_WWW_AUTHENTICATE = "www.authenticate.header.enabled";
 
     @Inject
-    BasicAuthenticationStrategy(Realm realm, UserFactory<?> users, PasswordHasher hasher, OAuthPlugins plugins, Settings settings) {
+    BasicAuthenticationStrategy(Realm realm, UserFactory<?> users, PasswordHasher hasher, OAuthPlugins plugins, Settings settings, RequestCookies cookies) {
         this.realm = realm;
+        this.cookies = cookies;
         this.users = users;
         this.hasher = hasher;
         this.plugins = plugins;
@@ -56,7 +57,7 @@ class BasicAuthenticationStrategy extends AuthenticationStrategy {
     }
 
     private <T> Result<?> tryAuthenticate(HttpEvent evt, UserFactory<T> uf, BasicCredentials credentials, AtomicReference<? super FailHook> onFail, Collection<? super Object> scopeContents, Response response) {
-        Optional<T> u = uf.findUserByName(credentials.username);
+        Optional<T> u = uf.findUserForAuthentication(credentials.username);
         if (!u.isPresent()) {
             onFail.set(new FailHookImpl());
             return new Result<>(ResultType.NO_RECORD, credentials.username, false);
@@ -79,16 +80,7 @@ class BasicAuthenticationStrategy extends AuthenticationStrategy {
         }
         String nm = uf.getUserName(user);
         String loginCookieValue = plugins.encodeCookieValue(nm, uf.getPasswordHash(user).get() + "-");
-        Cookie[] cks = evt.header(Headers.COOKIE_B);
-        boolean doCookie = cks == null || cks.length == 0;
-        if (doCookie && cks != null) {
-            for (Cookie ck : cks) {
-                if (CODE.equals(ck.name())) {
-                    doCookie = false;
-                }
-            }
-        }
-        if (doCookie) {
+        if (cookies.isEmpty(evt)) {
             DefaultCookie ck = new DefaultCookie(CODE, loginCookieValue);
             ck.setDomain(evt.header(Headers.HOST) + "");
             ck.setSecure(true);
@@ -0,0 +1,444 @@
+package com.mastfrog.acteur.auth;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.ConfigurationError;
+import com.mastfrog.util.Exceptions;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UserFactory decorator which keeps recently loaded users in memory, so that
+ * authenticating a user does not cost a full read from storage on every
+ * request.
+ * <p/>
+ * The cache is bounded by <code>user.cache.size</code> and entries live at
+ * most <code>user.cache.ttl.seconds</code>. Once an entry is older than
+ * <code>user.cache.revalidate.seconds</code>, it is checked against the
+ * user's current version in storage (see
+ * {@link UserFactory#currentVersion(java.lang.String)}) - a much cheaper
+ * query than loading the user - and reloaded only if that has changed.
+ * Writes made through this factory go straight to storage and evict the
+ * user.
+ * <p/>
+ * If <code>user.cache.stale.if.error.seconds</code> is set, a user whose
+ * entry has expired may still be served for that long past expiry if
+ * loading it from storage fails, so authentication keeps working through a
+ * brief database outage.
+ * <p/>
+ * If <code>user.cache.mapped.file</code> is set, users looked up for
+ * authentication are also kept in a memory-mapped file of fixed size (see
+ * <code>user.cache.mapped.slots</code> and
+ * <code>user.cache.mapped.slot.bytes</code>), so a restarted server starts
+ * warm. Only what <code>toBytes()</code> writes - which need be no more than
+ * authentication uses - is kept there, and the file is readable by its
+ * owner only. A user read from the file is always checked against its
+ * current version in storage before it is used, and is not used at all
+ * once older than <code>user.cache.mapped.max.age.minutes</code>; slug
+ * expiry is checked against the user object on every authentication as
+ * usual. This requires a UserFactory which implements
+ * <code>toBytes()</code>, <code>fromBytes()</code> and versioning.
+ *
+ * @author Tim Boudreau
+ */
+public class CachingUserFactory<T> extends DelegatingUserFactory<T> {
+
+    /**
+     * Maximum number of users to cache.
+     */
+    public static final String SETTINGS_KEY_USER_CACHE_SIZE = "user.cache.size";
+    /**
+     * Maximum time, in seconds, a cached user may be used without reloading
+     * it.
+     */
+    public static final String SETTINGS_KEY_USER_CACHE_TTL_SECONDS = "user.cache.ttl.seconds";
+    /**
+     * Time, in seconds, after which a cached user's version is checked
+     * against storage before it is used.
+     */
+    public static final String SETTINGS_KEY_USER_CACHE_REVALIDATE_SECONDS = "user.cache.revalidate.seconds";
+    /**
+     * Time, in seconds, past expiry that a cached user may be used if
+     * storage cannot be reached. Zero (the default) disables this.
+     */
+    public static final String SETTINGS_KEY_USER_CACHE_STALE_IF_ERROR_SECONDS = "user.cache.stale.if.error.seconds";
+    /**
+     * File to keep cached users in across restarts. Unset by default, which
+     * disables it.
+     */
+    public static final String SETTINGS_KEY_USER_CACHE_MAPPED_FILE = "user.cache.mapped.file";
+    /**
+     * Number of users the mapped file can hold.
+     */
+    public static final String SETTINGS_KEY_USER_CACHE_MAPPED_SLOTS = "user.cache.mapped.slots";
+    /**
+     * Space for each user in the mapped file, in bytes; users which
+     * serialize larger are not stored in it.
+     */
+    public static final String SETTINGS_KEY_USER_CACHE_MAPPED_SLOT_BYTES = "user.cache.mapped.slot.bytes";
+    /**
+     * Maximum age, in minutes, of a user in the mapped file.
+     */
+    public static final String SETTINGS_KEY_USER_CACHE_MAPPED_MAX_AGE_MINUTES = "user.cache.mapped.max.age.minutes";
+    private static final String AUTH = "auth";
+    private final Cache<List<String>, Entry<T>> cache;
+    private final MappedUserStore mapped;
+    private final long ttl;
+    private final long revalidateAfter;
+    private final long staleIfError;
+    // Incremented on every invalidation, so a load which overlaps a write
+    // does not put the user it read before the write into the cache
+    private final AtomicLong invalidations = new AtomicLong();
+    // The keys each user is cached under, so invalidating a user does not
+    // mean scanning the cache
+    private final Map<String, Set<List<String>>> keysByUser = new HashMap<>();
+    // Users invalidated because the delegate reported a change during the
+    // current thread's write, so the write does not invalidate them again
+    private final ThreadLocal<Set<String>> invalidatedDuringWrite = new ThreadLocal<>();
+
+    public CachingUserFactory(UserFactory<T> delegate, Settings settings) {
+        super(delegate);
+        ttl = Duration.ofSeconds(settings.getLong(SETTINGS_KEY_USER_CACHE_TTL_SECONDS, 300)).toMillis();
+        revalidateAfter = Duration.ofSeconds(settings.getLong(SETTINGS_KEY_USER_CACHE_REVALIDATE_SECONDS, 5)).toMillis();
+        staleIfError = Duration.ofSeconds(settings.getLong(SETTINGS_KEY_USER_CACHE_STALE_IF_ERROR_SECONDS, 0)).toMillis();
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(settings.getLong(SETTINGS_KEY_USER_CACHE_SIZE, 1000))
+                .expireAfterWrite(ttl + staleIfError, TimeUnit.MILLISECONDS)
+                .removalListener(new Unindex())
+                .build();
+        String mappedFile = settings.getString(SETTINGS_KEY_USER_CACHE_MAPPED_FILE);
+        if (mappedFile == null) {
+            mapped = null;
+        } else {
+            try {
+                mapped = new MappedUserStore(new File(mappedFile),
+                        settings.getInt(SETTINGS_KEY_USER_CACHE_MAPPED_SLOTS, 8192),
+                        settings.getInt(SETTINGS_KEY_USER_CACHE_MAPPED_SLOT_BYTES, 2048),
+                        Duration.ofMinutes(settings.getLong(SETTINGS_KEY_USER_CACHE_MAPPED_MAX_AGE_MINUTES, 60)).toMillis());
+            } catch (IOException ex) {
+                throw new ConfigurationError("Could not open " + mappedFile + ": " + ex);
+            }
+        }
+    }
+
+    @Override
+    public Optional<T> findUserByName(final String name) {
+        return find(Arrays.asList("name", name), new Loader<T>() {
+            @Override
+            public Optional<T> load() {
+                return delegate.findUserByName(name);
+            }
+        });
+    }
+
+    @Override
+    public Optional<T> findUserForAuthentication(final String name) {
+        // Possibly partial users are kept apart from full ones
+        return find(Arrays.asList(AUTH, name), new Loader<T>() {
+            @Override
+            public Optional<T> load() {
+                return delegate.findUserForAuthentication(name);
+            }
+        });
+    }
+
+    @Override
+    public Optional<T> findUserBy(final String key, final String value) {
+        return find(Arrays.asList("by", key, value), new Loader<T>() {
+            @Override
+            public Optional<T> load() {
+                return delegate.findUserBy(key, value);
+            }
+        });
+    }
+
+    private Optional<T> find(List<String> key, Loader<T> loader) {
+        long now = System.currentTimeMillis();
+        Entry<T> entry = cache.getIfPresent(key);
+        if (entry != null && now - entry.loadedAt < ttl) {
+            if (now - entry.checkedAt < revalidateAfter) {
+                return Optional.of(entry.user);
+            }
+            try {
+                if (isCurrent(entry)) {
+                    entry.checkedAt = now;
+                    return Optional.of(entry.user);
+                }
+            } catch (RuntimeException ex) {
+                return stale(entry, now, ex);
+            }
+        }
+        long generation = invalidations.get();
+        if (entry == null && mapped != null && isAuthentication(key)) {
+            Entry<T> fromFile = fromMappedFile(key, now);
+            if (fromFile != null) {
+                if (invalidations.get() == generation) {
+                    put(key, fromFile);
+                }
+                return Optional.of(fromFile.user);
+            }
+        }
+        Optional<T> result;
+        try {
+            result = loader.load();
+        } catch (RuntimeException ex) {
+            return stale(entry, now, ex);
+        }
+        // Not-found results are not cached, so a newly created user is
+        // visible immediately
+        if (result.isPresent()) {
+            T user = result.get();
+            Entry<T> nue = new Entry<>(user, getUserName(user), version(user), now);
+            if (invalidations.get() == generation) {
+                put(key, nue);
+                toMappedFile(key, nue);
+            }
+        }
+        return result;
+    }
+
+    private void put(List<String> key, Entry<T> entry) {
+        // Index first, so an invalidation can never miss the entry
+        synchronized (keysByUser) {
+            Set<List<String>> keys = keysByUser.get(entry.userName);
+            if (keys == null) {
+                keys = new HashSet<>(4);
+                keysByUser.put(entry.userName, keys);
+            }
+            keys.add(key);
+        }
+        cache.put(key, entry);
+    }
+
+    private Entry<T> fromMappedFile(List<String> key, long now) {
+        MappedUserStore.Stored stored = mapped.get(mappedKey(key), now);
+        if (stored == null) {
+            return null;
+        }
+        T user = fromBytes(stored.bytes);
+        if (user == null) {
+            return null;
+        }
+        Entry<T> result = new Entry<>(user, getUserName(user), stored.version, now);
+        try {
+            // The file may have been written before a change made by
+            // another process, or before this one restarted
+            return isCurrent(result) ? result : null;
+        } catch (RuntimeException ex) {
+            // Fall back to loading it, and let that fail
+            return null;
+        }
+    }
+
+    private void toMappedFile(List<String> key, Entry<T> entry) {
+        if (mapped == null || entry.version < 0 || !isAuthentication(key)) {
+            return;
+        }
+        byte[] bytes = toBytes(entry.user);
+        if (bytes != null) {
+            mapped.put(mappedKey(key), entry.userName, bytes, entry.version, entry.loadedAt);
+        }
+    }
+
+    private static boolean isAuthentication(List<String> key) {
+        return AUTH.equals(key.get(0));
+    }
+
+    private static String mappedKey(List<String> key) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : key) {
+            if (sb.length() > 0) {
+                sb.append('\0');
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    private boolean isCurrent(Entry<T> entry) {
+        if (entry.version < 0) {
+            // The store does not track versions - rely on the TTL
+            return true;
+        }
+        Optional<Long> current = delegate.currentVersion(entry.userName);
+        return current.isPresent() && current.get() == entry.version;
+    }
+
+    private Optional<T> stale(Entry<T> entry, long now, RuntimeException ex) {
+        if (entry == null || staleIfError <= 0 || now - entry.loadedAt >= ttl + staleIfError) {
+            throw ex;
+        }
+        Exceptions.printStackTrace(ex);
+        return Optional.of(entry.user);
+    }
+
+    /**
+     * Discard any cached copies of a user.
+     *
+     * @param userName The user's name
+     */
+    public void invalidate(String userName) {
+        invalidations.incrementAndGet();
+        if (mapped != null) {
+            mapped.invalidate(userName);
+        }
+        Set<List<String>> keys;
+        synchronized (keysByUser) {
+            keys = keysByUser.remove(userName);
+        }
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+    }
+
+    private void beginWrite() {
+        invalidatedDuringWrite.set(new HashSet<String>(2));
+    }
+
+    private void endWrite(String userName) {
+        Set<String> done = invalidatedDuringWrite.get();
+        invalidatedDuringWrite.remove();
+        // Not every store reports its own writes
+        if (done == null || !done.contains(userName)) {
+            invalidate(userName);
+        }
+    }
+
+    @Override
+    protected void onDelegateChanged(String userName, Change change, String name) {
+        invalidate(userName);
+        Set<String> done = invalidatedDuringWrite.get();
+        if (done != null) {
+            done.add(userName);
+        }
+        super.onDelegateChanged(userName, change, name);
+    }
+
+    @Override
+    public void setPasswordHash(T on, String hash) {
+        beginWrite();
+        try {
+            super.setPasswordHash(on, hash);
+        } finally {
+            endWrite(getUserName(on));
+        }
+    }
+
+    @Override
+    protected void putSlug(T on, Slug slug) {
+        beginWrite();
+        try {
+            super.putSlug(on, slug);
+        } finally {
+            endWrite(getUserName(on));
+        }
+    }
+
+    @Override
+    public void putAccessToken(T on, String token, String serviceName) {
+        beginWrite();
+        try {
+            super.putAccessToken(on, token, serviceName);
+        } finally {
+            endWrite(getUserName(on));
+        }
+    }
+
+    @Override
+    public void putData(T user, String name, Map<String, Object> data) {
+        beginWrite();
+        try {
+            super.putData(user, name, data);
+        } finally {
+            endWrite(getUserName(user));
+        }
+    }
+
+    @Override
+    protected void applyUpdate(T on, UserUpdate update) {
+        beginWrite();
+        try {
+            super.applyUpdate(on, update);
+        } finally {
+            endWrite(getUserName(on));
+        }
+    }
+
+    @Override
+    public T newUser(String name, Slug slug, String displayName, Map<String, Object> properties, OAuthPlugin plugin) {
+        beginWrite();
+        try {
+            return super.newUser(name, slug, displayName, properties, plugin);
+        } finally {
+            endWrite(name);
+        }
+    }
+
+    @Override
+    public T newUser(String name, String hashedPassword, String displayName, Map<String, Object> properties) {
+        beginWrite();
+        try {
+            return super.newUser(name, hashedPassword, displayName, properties);
+        } finally {
+            endWrite(name);
+        }
+    }
+
+    private final class Unindex implements RemovalListener<List<String>, Entry<T>> {
+
+        @Override
+        public void onRemoval(RemovalNotification<List<String>, Entry<T>> notification) {
+            // Explicit removals have already been unindexed, and replaced
+            // keys are still present
+            if (!notification.wasEvicted() || notification.getValue() == null) {
+                return;
+            }
+            List<String> key = notification.getKey();
+            synchronized (keysByUser) {
+                Set<List<String>> keys = keysByUser.get(notification.getValue().userName);
+                // The key may have been cached again since
+                if (keys != null && !cache.asMap().containsKey(key)) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        keysByUser.remove(notification.getValue().userName);
+                    }
+                }
+            }
+        }
+    }
+
+    private interface Loader<T> {
+
+        Optional<T> load();
+    }
+
+    private static final class Entry<T> {
+
+        final T user;
+        final String userName;
+        final long version;
+        final long loadedAt;
+        volatile long checkedAt;
+
+        Entry(T user, String userName, long version, long loadedAt) {
+            this.user = user;
+            this.userName = userName;
+            this.version = version;
+            this.loadedAt = loadedAt;
+            this.checkedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.mastfrog.acteur.auth;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.auth.UserFactory.Change;
+import com.mastfrog.acteur.auth.UserFactory.ChangeListener;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.Exceptions;
+import io.netty.util.AttributeKey;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the identity a request was authenticated as on its channel, so
+ * that further requests over the same keep-alive connection which carry
+ * identical credentials need not be authenticated from scratch.
+ * <p/>
+ * The identity is stored with a SHA-256 digest of the request's
+ * Authorization and Cookie headers, and reused only if a later request's
+ * headers have the same digest, it was verified less than
+ * <code>auth.channel.revalidate.seconds</code> ago, and the user has not
+ * been modified (for example, a new slug or password) since. Logging out
+ * clears it.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class ChannelAuthCache {
+
+    /**
+     * Settings key for whether to reuse authentication across requests on
+     * the same connection.
+     */
+    public static final String SETTINGS_KEY_CHANNEL_AUTH_REUSE = "auth.channel.reuse";
+    /**
+     * Settings key for how long, in seconds, an authenticated identity may be
+     * reused on a connection before the credentials are checked again.
+     */
+    public static final String SETTINGS_KEY_CHANNEL_AUTH_REVALIDATE_SECONDS = "auth.channel.revalidate.seconds";
+    private static final AttributeKey<Entry> KEY = AttributeKey.valueOf("acteur-auth.identity");
+    private final boolean enabled;
+    private final long revalidateAfter;
+    // User name to the time the user was last modified; entries need only
+    // live as long as a channel's identity may be reused
+    private final Cache<String, Long> modified;
+
+    @Inject
+    ChannelAuthCache(Settings settings, UserFactory<?> users) {
+        enabled = settings.getBoolean(SETTINGS_KEY_CHANNEL_AUTH_REUSE, true);
+        revalidateAfter = Duration.ofSeconds(settings.getLong(SETTINGS_KEY_CHANNEL_AUTH_REVALIDATE_SECONDS, 30)).toMillis();
+        modified = CacheBuilder.newBuilder()
+                .expireAfterWrite(revalidateAfter, TimeUnit.MILLISECONDS)
+                .build();
+        if (enabled) {
+            users.addChangeListener(new InvalidateOnChange());
+        }
+    }
+
+    /**
+     * Compute the digest of the credential-bearing headers of a request.
+     *
+     * @param evt The request
+     * @return A digest, or null if reuse is disabled or the request carries
+     * no credentials
+     */
+    byte[] digest(HttpEvent evt) {
+        if (!enabled) {
+            return null;
+        }
+        String auth = evt.header("Authorization");
+        String cookie = evt.header("Cookie");
+        if (auth == null && cookie == null) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (auth != null) {
+                digest.update(auth.getBytes(StandardCharsets.UTF_8));
+            }
+            // Separate the two so moving bytes between them changes the hash
+            digest.update((byte) 0);
+            if (cookie != null) {
+                digest.update(cookie.getBytes(StandardCharsets.UTF_8));
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    /**
+     * Find a still-valid identity for the request on its channel.
+     *
+     * @param evt The request
+     * @param digest The digest of its headers
+     * @return The identity, or null
+     */
+    Entry find(HttpEvent evt, byte[] digest) {
+        if (digest == null) {
+            return null;
+        }
+        Entry entry = evt.channel().attr(KEY).get();
+        if (entry == null || !MessageDigest.isEqual(digest, entry.digest)) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - entry.verifiedAt > revalidateAfter) {
+            return null;
+        }
+        Long lastModified = modified.getIfPresent(entry.userName);
+        if (lastModified != null && lastModified >= entry.verifiedAt) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Remember a successful authentication on the request's channel.
+     *
+     * @param evt The request
+     * @param digest The digest of its headers
+     * @param result The result of authenticating
+     * @param scopeContents The objects authentication made available to
+     * later acteurs
+     * @param startedAt When authentication began - changes to the user after
+     * that time invalidate the entry
+     */
+    void store(HttpEvent evt, byte[] digest, Result<?> result, Collection<?> scopeContents, long startedAt) {
+        if (digest == null || result.username == null) {
+            return;
+        }
+        evt.channel().attr(KEY).set(new Entry(digest, result.username,
+                scopeContents.toArray(new Object[scopeContents.size()]), startedAt));
+    }
+
+    static void clear(HttpEvent evt) {
+        evt.channel().attr(KEY).set(null);
+    }
+
+    static final class Entry {
+
+        private final byte[] digest;
+        final String userName;
+        final Object[] scopeContents;
+        final long verifiedAt;
+
+        Entry(byte[] digest, String userName, Object[] scopeContents, long verifiedAt) {
+            this.digest = digest;
+            this.userName = userName;
+            this.scopeContents = scopeContents;
+            this.verifiedAt = verifiedAt;
+        }
+    }
+
+    private final class InvalidateOnChange implements ChangeListener {
+
+        @Override
+        public void onChange(String userName, Change change, String name) {
+            // Any change may alter the user object a request would get, and
+            // slug and password changes may revoke the credentials
+            modified.put(userName, System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.mastfrog.acteur.auth;
+
+import com.google.common.base.Optional;
+import com.mastfrog.util.Exceptions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * UserFactory decorator which lets concurrent identical lookups share a
+ * single call to the underlying store. When a browser fires a burst of
+ * requests carrying the same cookie, only the first looks the user up; the
+ * others wait for and receive its result.
+ * <p/>
+ * Lookups are keyed on the method and its arguments. A lookup is forgotten
+ * as soon as it completes, so a call which begins after another has finished
+ * always goes to the store - nothing is cached, and nothing can be stale.
+ *
+ * @author Tim Boudreau
+ */
+public class CoalescingUserFactory<T> extends DelegatingUserFactory<T> {
+
+    private final ConcurrentMap<List<String>, FutureTask<Optional<T>>> inFlight
+            = new ConcurrentHashMap<>();
+
+    public CoalescingUserFactory(UserFactory<T> delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public Optional<T> findUserByName(final String name) {
+        return coalesce(Arrays.asList("findUserByName", name), new Callable<Optional<T>>() {
+            @Override
+            public Optional<T> call() throws Exception {
+                return delegate.findUserByName(name);
+            }
+        });
+    }
+
+    @Override
+    public Optional<T> findUserForAuthentication(final String name) {
+        return coalesce(Arrays.asList("findUserForAuthentication", name), new Callable<Optional<T>>() {
+            @Override
+            public Optional<T> call() throws Exception {
+                return delegate.findUserForAuthentication(name);
+            }
+        });
+    }
+
+    @Override
+    public Optional<T> findUserBy(final String key, final String value) {
+        return coalesce(Arrays.asList("findUserBy", key, value), new Callable<Optional<T>>() {
+            @Override
+            public Optional<T> call() throws Exception {
+                return delegate.findUserBy(key, value);
+            }
+        });
+    }
+
+    private Optional<T> coalesce(List<String> key, Callable<Optional<T>> lookup) {
+        FutureTask<Optional<T>> task = new FutureTask<>(lookup);
+        FutureTask<Optional<T>> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            // We won - run the lookup on this thread, and remove it the
+            // moment it is done so later callers see fresh data
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Exceptions.chuck(ex);
+        } catch (ExecutionException ex) {
+            return Exceptions.chuck(ex.getCause() == null ? ex : ex.getCause());
+        }
+    }
+}
@@ -5,11 +5,11 @@ import com.google.inject.Inject;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Response;
 import com.mastfrog.acteur.auth.UserFactory.Slug;
-import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.util.time.TimeUtil;
 import io.netty.handler.codec.http.cookie.Cookie;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -20,21 +20,25 @@ class CookieAuthenticationStrategy extends AuthenticationStrategy {
 
     private final UserFactory<?> users;
     private final OAuthPlugins plugins;
+    private final RequestCookies cookies;
 
     @Inject
-    CookieAuthenticationStrategy(Settings settings, UserFactory<?> users, OAuthPlugins plugins) {
+    CookieAuthenticationStrategy(Settings settings, UserFactory<?> users, OAuthPlugins plugins, RequestCookies cookies) {
         this.users = users;
         this.plugins = plugins;
+        this.cookies = cookies;
     }
 
     @Override
     public Result<?> authenticate(HttpEvent evt, AtomicReference<? super FailHook> onFail, Collection<? super Object> scopeContents, Response response) {
-        Cookie[] cookies = evt.header(Headers.COOKIE_B);
-        if (cookies == null || cookies.length == 0) {
+        List<Cookie> all = cookies.all(evt);
+        if (all.isEmpty()) {
             return new Result(ResultType.NO_CREDENTIALS, true);
         }
         Result<?> res = null;
-        for (Cookie ck : cookies) {
+        // Try every cookie - a stale one set for another domain or path may
+        // share its name with the current one
+        for (Cookie ck : all) {
             String name = ck.name();
             Optional<OAuthPlugin<?>> plugino = plugins.find(name);
             if (plugino.isPresent()) {
@@ -54,7 +58,7 @@ class CookieAuthenticationStrategy extends AuthenticationStrategy {
         Optional<UserInfo> io = plugins.decodeCookieValue(cookie.value());
         if (io.isPresent()) {
             UserInfo info = io.get();
-            Optional<R> uo = users.findUserByName(info.userName);
+            Optional<R> uo = users.findUserForAuthentication(info.userName);
             if (uo.isPresent()) {
                 R user = uo.get();
                 Optional<Slug> slugo = users.getSlug(plugin.code(), user, false);
@@ -0,0 +1,171 @@
+package com.mastfrog.acteur.auth;
+
+import com.google.common.base.Optional;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Base class for UserFactory decorators, which passes every call through to
+ * another UserFactory. Change notifications from the delegate are re-fired
+ * to listeners on the decorator.
+ *
+ * @author Tim Boudreau
+ */
+public abstract class DelegatingUserFactory<T> extends UserFactory<T> {
+
+    protected final UserFactory<T> delegate;
+
+    protected DelegatingUserFactory(UserFactory<T> delegate) {
+        super(delegate.type(), delegate.ids);
+        this.delegate = delegate;
+        delegate.addChangeListener(new ChangeListener() {
+            @Override
+            public void onChange(String userName, Change change, String name) {
+                onDelegateChanged(userName, change, name);
+            }
+        });
+    }
+
+    /**
+     * Called when the delegate reports a change to a user; the default
+     * implementation notifies this factory's listeners.
+     *
+     * @param userName The user name
+     * @param change The kind of change
+     * @param name The name of the slug, token or data affected, if any
+     */
+    protected void onDelegateChanged(String userName, Change change, String name) {
+        fireChangedByName(userName, change, name);
+    }
+
+    @Override
+    public Optional<T> findUserBy(String key, String value) {
+        return delegate.findUserBy(key, value);
+    }
+
+    @Override
+    public Optional<T> findUserByName(String name) {
+        return delegate.findUserByName(name);
+    }
+
+    @Override
+    public Optional<T> findUserForAuthentication(String name) {
+        return delegate.findUserForAuthentication(name);
+    }
+
+    @Override
+    public Optional<String> getPasswordHash(T user) {
+        return delegate.getPasswordHash(user);
+    }
+
+    @Override
+    public void setPasswordHash(T on, String hash) {
+        delegate.setPasswordHash(on, hash);
+    }
+
+    @Override
+    protected void putSlug(T on, Slug slug) {
+        delegate.putSlug(on, slug);
+    }
+
+    @Override
+    protected Slug getSlug(T on, String name) {
+        return delegate.getSlug(on, name);
+    }
+
+    @Override
+    public Optional<String> getAccessToken(T on, String serviceName) {
+        return delegate.getAccessToken(on, serviceName);
+    }
+
+    @Override
+    public void putAccessToken(T on, String token, String serviceName) {
+        delegate.putAccessToken(on, token, serviceName);
+    }
+
+    @Override
+    public Set<String> getSlugNames(T on) {
+        return delegate.getSlugNames(on);
+    }
+
+    @Override
+    public T newUser(String name, Slug slug, String displayName, Map<String, Object> properties, OAuthPlugin plugin) {
+        return delegate.newUser(name, slug, displayName, properties, plugin);
+    }
+
+    @Override
+    public T newUser(String name, String hashedPassword, String displayName, Map<String, Object> properties) {
+        return delegate.newUser(name, hashedPassword, displayName, properties);
+    }
+
+    @Override
+    public Object toUserObject(T obj) {
+        return delegate.toUserObject(obj);
+    }
+
+    @Override
+    public String getUserDisplayName(T obj) {
+        return delegate.getUserDisplayName(obj);
+    }
+
+    @Override
+    public String getUserName(T obj) {
+        return delegate.getUserName(obj);
+    }
+
+    @Override
+    public Map<String, Object> getData(T user, String name) {
+        return delegate.getData(user, name);
+    }
+
+    @Override
+    public void putData(T user, String name, Map<String, Object> data) {
+        delegate.putData(user, name, data);
+    }
+
+    @Override
+    public List<Map<String, Object>> getDataForAll(List<? extends T> users, String name) {
+        return delegate.getDataForAll(users, name);
+    }
+
+    @Override
+    public long version(T user) {
+        return delegate.version(user);
+    }
+
+    @Override
+    public Optional<Long> currentVersion(String userName) {
+        return delegate.currentVersion(userName);
+    }
+
+    @Override
+    public byte[] toBytes(T user) {
+        return delegate.toBytes(user);
+    }
+
+    @Override
+    public T fromBytes(byte[] bytes) {
+        return delegate.fromBytes(bytes);
+    }
+
+    @Override
+    protected void applyUpdate(T on, UserUpdate update) {
+        delegate.applyUpdate(on, update);
+    }
+
+    @Override
+    protected void saveLoginState(LoginState state) {
+        delegate.saveLoginState(state);
+    }
+
+    @Override
+    public Optional<LoginState> lookupLoginState(String state) {
+        return delegate.lookupLoginState(state);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + delegate + ")";
+    }
+}
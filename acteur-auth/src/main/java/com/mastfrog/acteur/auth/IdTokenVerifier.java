@@ -0,0 +1,121 @@
+package com.mastfrog.acteur.auth;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.util.Checks;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Verifies an OpenID Connect ID token locally - its RS256 signature against
+ * the issuer's published keys, and its issuer, audience and expiry claims -
+ * so that the user's identity can be taken from it without asking the issuer.
+ *
+ * @author Tim Boudreau
+ */
+public final class IdTokenVerifier {
+
+    private static final long ALLOWED_CLOCK_SKEW = Duration.ofMinutes(2).getSeconds();
+    private final JsonWebKeys keys;
+    private final Set<String> issuers;
+    private final String clientId;
+    private final ObjectMapper mapper;
+
+    /**
+     * Create a verifier.
+     *
+     * @param keys The issuer's keys
+     * @param issuers Acceptable values of the <code>iss</code> claim
+     * @param clientId Our client id, which must be in the <code>aud</code>
+     * claim
+     * @param mapper A mapper to parse JSON
+     */
+    public IdTokenVerifier(JsonWebKeys keys, Collection<String> issuers, String clientId, ObjectMapper mapper) {
+        Checks.notNull("keys", keys);
+        Checks.notNull("issuers", issuers);
+        Checks.notNull("clientId", clientId);
+        Checks.notNull("mapper", mapper);
+        this.keys = keys;
+        this.issuers = new HashSet<>(issuers);
+        this.clientId = clientId;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Verify a token and return its claims.
+     *
+     * @param idToken A JWT in compact serialization
+     * @return The claims
+     * @throws IllegalArgumentException if the token is malformed, not signed
+     * by the issuer, or not valid for us or now
+     * @throws IOException if the issuer's keys cannot be fetched
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> verify(String idToken) throws IOException {
+        Checks.notNull("idToken", idToken);
+        String[] parts = idToken.split("\\.");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Not a signed JWT");
+        }
+        Base64.Decoder dec = Base64.getUrlDecoder();
+        Map<String, Object> header;
+        Map<String, Object> claims;
+        byte[] signature;
+        try {
+            header = mapper.readValue(dec.decode(parts[0]), Map.class);
+            claims = mapper.readValue(dec.decode(parts[1]), Map.class);
+            signature = dec.decode(parts[2]);
+        } catch (IllegalArgumentException | IOException ex) {
+            throw new IllegalArgumentException("Malformed JWT", ex);
+        }
+        // Never let the token choose a weaker algorithm (or "none")
+        if (!"RS256".equals(header.get("alg"))) {
+            throw new IllegalArgumentException("Unsupported algorithm " + header.get("alg"));
+        }
+        Object kid = header.get("kid");
+        if (!(kid instanceof String)) {
+            throw new IllegalArgumentException("No key id in token header");
+        }
+        PublicKey key = keys.get((String) kid);
+        if (key == null) {
+            throw new IllegalArgumentException("Unknown key id " + kid);
+        }
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initVerify(key);
+            sig.update((parts[0] + '.' + parts[1]).getBytes(StandardCharsets.US_ASCII));
+            if (!sig.verify(signature)) {
+                throw new IllegalArgumentException("Bad signature");
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Could not verify signature", ex);
+        }
+        if (!issuers.contains(claims.get("iss"))) {
+            throw new IllegalArgumentException("Unexpected issuer " + claims.get("iss"));
+        }
+        Object aud = claims.get("aud");
+        boolean forUs = aud instanceof Collection<?> ? ((Collection<?>) aud).contains(clientId)
+                : clientId.equals(aud);
+        if (!forUs) {
+            throw new IllegalArgumentException("Token is for " + aud);
+        }
+        long now = System.currentTimeMillis() / 1000;
+        Object exp = claims.get("exp");
+        if (!(exp instanceof Number) || ((Number) exp).longValue() + ALLOWED_CLOCK_SKEW < now) {
+            throw new IllegalArgumentException("Token expired");
+        }
+        Object iat = claims.get("iat");
+        if (iat instanceof Number && ((Number) iat).longValue() - ALLOWED_CLOCK_SKEW > now) {
+            throw new IllegalArgumentException("Token issued in the future");
+        }
+        return claims;
+    }
+}
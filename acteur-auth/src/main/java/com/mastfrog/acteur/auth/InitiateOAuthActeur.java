@@ -48,7 +48,7 @@ final class InitiateOAuthActeur extends Acteur {
 
     @Inject
     @SuppressWarnings("unchecked")
-    InitiateOAuthActeur(HttpEvent evt, OAuthPlugins plugins, Settings settings, UserFactory uf, PasswordHasher hasher, Dependencies deps) throws MalformedURLException, URISyntaxException {
+    InitiateOAuthActeur(HttpEvent evt, OAuthPlugins plugins, Settings settings, UserFactory uf, PasswordHasher hasher, Dependencies deps, RequestCookies cookies) throws MalformedURLException, URISyntaxException {
         this.users = uf;
         this.evt = evt;
         this.plugins = plugins;
@@ -65,7 +65,7 @@ final class InitiateOAuthActeur extends Acteur {
         }
         OAuthPlugin<?> plugin = oplugin.get();
         // Find a cookie on the request matching the code
-        Cookie ck = findCookie(evt, type);
+        Cookie ck = cookies.get(evt, type);
         // No cookie?  The user was never logged in using this service before - 
         // bounce them to the OAuth service's login page
         if (ck == null) {
@@ -159,16 +159,4 @@ final class InitiateOAuthActeur extends Acteur {
         add(Headers.LOCATION, new URI(plugin.getRedirectURL(state)));
         setState(new RespondWith(HttpResponseStatus.SEE_OTHER, "Redirecting to " + plugin.name()));
     }
-
-    private Cookie findCookie(HttpEvent evt, String name) {
-        Cookie[] cookies = evt.header(Headers.COOKIE_B);
-        if (cookies != null) {
-            for (Cookie ck : cookies) {
-                if (name.equals(ck.name())) {
-                    return ck;
-                }
-            }
-        }
-        return null;
-    }
 }
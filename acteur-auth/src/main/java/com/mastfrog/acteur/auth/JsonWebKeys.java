@@ -0,0 +1,145 @@
+package com.mastfrog.acteur.auth;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.util.Checks;
+import com.mastfrog.util.Exceptions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the RSA signing keys an OpenID Connect issuer publishes as a JSON
+ * Web Key Set. The set is fetched on first use and refetched when it is older
+ * than the refresh interval, or when a token names a key id we do not have
+ * (issuers rotate keys) - though not more than once a minute, so that tokens
+ * with bogus key ids cannot be used to hammer the issuer.
+ *
+ * @author Tim Boudreau
+ */
+public final class JsonWebKeys {
+
+    private static final Duration MIN_REFETCH_INTERVAL = Duration.ofMinutes(1);
+    private final URL url;
+    private final ObjectMapper mapper;
+    private final long refreshInterval;
+    private final long minRefetchInterval;
+    private final int timeoutMillis;
+    private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+    private volatile long lastFetched;
+
+    public JsonWebKeys(URL url, ObjectMapper mapper, Duration refreshInterval) {
+        this(url, mapper, refreshInterval, MIN_REFETCH_INTERVAL);
+    }
+
+    JsonWebKeys(URL url, ObjectMapper mapper, Duration refreshInterval, Duration minRefetchInterval) {
+        Checks.notNull("url", url);
+        Checks.notNull("mapper", mapper);
+        Checks.notNull("refreshInterval", refreshInterval);
+        this.url = url;
+        this.mapper = mapper;
+        this.refreshInterval = refreshInterval.toMillis();
+        this.minRefetchInterval = minRefetchInterval.toMillis();
+        this.timeoutMillis = 10000;
+    }
+
+    /**
+     * Get the public key with the passed key id.
+     *
+     * @param kid The key id from a token's header
+     * @return A key or null if the issuer does not publish one with that id
+     * @throws IOException If the key set cannot be fetched
+     */
+    public PublicKey get(String kid) throws IOException {
+        Checks.notNull("kid", kid);
+        refreshIfOlderThan(refreshInterval);
+        PublicKey result = keys.get(kid);
+        if (result == null) {
+            refreshIfOlderThan(minRefetchInterval);
+            result = keys.get(kid);
+        }
+        return result;
+    }
+
+    private void refreshIfOlderThan(long maxAge) throws IOException {
+        if (lastFetched != 0 && System.currentTimeMillis() - lastFetched < maxAge) {
+            return;
+        }
+        synchronized (this) {
+            // Another thread may have refreshed while we waited for the lock
+            if (lastFetched != 0 && System.currentTimeMillis() - lastFetched < maxAge) {
+                return;
+            }
+            try {
+                keys = fetch();
+            } catch (IOException ex) {
+                if (keys.isEmpty()) {
+                    throw ex;
+                }
+                // Keep using the keys we have rather than failing every
+                // login while the issuer is unreachable
+                Exceptions.printStackTrace(ex);
+            }
+            lastFetched = System.currentTimeMillis();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, PublicKey> fetch() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        try {
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Got " + conn.getResponseCode() + " fetching " + url);
+            }
+            Map<String, Object> set;
+            try (InputStream in = conn.getInputStream()) {
+                set = mapper.readValue(in, Map.class);
+            }
+            Map<String, PublicKey> result = new HashMap<>();
+            List<Map<String, Object>> all = (List<Map<String, Object>>) set.get("keys");
+            if (all != null) {
+                for (Map<String, Object> jwk : all) {
+                    if (!"RSA".equals(jwk.get("kty")) || jwk.get("kid") == null) {
+                        continue;
+                    }
+                    if (jwk.get("use") != null && !"sig".equals(jwk.get("use"))) {
+                        continue;
+                    }
+                    result.put((String) jwk.get("kid"), toKey(jwk));
+                }
+            }
+            return Collections.unmodifiableMap(result);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static PublicKey toKey(Map<String, Object> jwk) throws IOException {
+        Base64.Decoder dec = Base64.getUrlDecoder();
+        BigInteger modulus = new BigInteger(1, dec.decode((String) jwk.get("n")));
+        BigInteger exponent = new BigInteger(1, dec.decode((String) jwk.get("e")));
+        try {
+            return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Bad key " + jwk.get("kid"), ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return url + " " + keys.keySet();
+    }
+}
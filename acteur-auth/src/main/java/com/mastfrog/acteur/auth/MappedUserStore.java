@@ -0,0 +1,293 @@
+package com.mastfrog.acteur.auth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed-size, memory-mapped hash table of serialized users, which outlives
+ * the process so that a restarted server does not have to load every
+ * logged-in user from the database at once.
+ * <p/>
+ * The file is a small header followed by a fixed number of equal-sized
+ * slots, addressed by the hash of the lookup key with linear probing over a
+ * short window. When the window is full, the oldest entry in it is
+ * overwritten. Each slot records the user's version and when it was stored,
+ * and a checksum so that a torn write is never read back as a user.
+ * Entries too large for a slot are simply not stored.
+ * <p/>
+ * Stored users carry password hashes and slugs, which are as good as a
+ * login cookie, so the file is made readable and writable by its owner
+ * only.
+ * <p/>
+ * All methods are synchronized - each touches at most a few slots of
+ * memory, so this costs little compared to the database reads it saves.
+ *
+ * @author Tim Boudreau
+ */
+final class MappedUserStore {
+
+    private static final int MAGIC = 0x41555448;
+    private static final int FORMAT = 1;
+    private static final int FILE_HEADER = 64;
+    private static final int MAX_PROBES = 16;
+    // Slot layout
+    private static final int STATE = 0;
+    private static final int KEY_HASH = 4;
+    private static final int USER_HASH = 8;
+    private static final int KEY_LENGTH = 12;
+    private static final int VALUE_LENGTH = 16;
+    private static final int CHECKSUM = 20;
+    private static final int VERSION = 24;
+    private static final int STORED_AT = 32;
+    private static final int SLOT_HEADER = 40;
+    private static final int EMPTY = 0;
+    private static final int FULL = 1;
+    private static final int DELETED = 2;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int slotSize;
+    private final long maxAge;
+
+    MappedUserStore(File file, int slots, int slotSize, long maxAge) throws IOException {
+        if (slots <= 0 || slotSize <= SLOT_HEADER) {
+            throw new IllegalArgumentException("Bad slot count or size: " + slots + ", " + slotSize);
+        }
+        long size = FILE_HEADER + (long) slots * slotSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mapped user store would be " + size + " bytes");
+        }
+        this.slots = slots;
+        this.slotSize = slotSize;
+        this.maxAge = maxAge;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        ownerOnly(file.toPath());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean reuse = raf.length() == size;
+            if (!reuse) {
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            // The mapping remains valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT
+                || buffer.getInt(8) != slots || buffer.getInt(12) != slotSize) {
+            clear();
+        }
+    }
+
+    /**
+     * An entry read back from the store.
+     */
+    static final class Stored {
+
+        final byte[] bytes;
+        final long version;
+        final long storedAt;
+
+        Stored(byte[] bytes, long version, long storedAt) {
+            this.bytes = bytes;
+            this.version = version;
+            this.storedAt = storedAt;
+        }
+    }
+
+    synchronized Stored get(String key, long now) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        int found = find(keyBytes, hash);
+        if (found < 0) {
+            return null;
+        }
+        int base = offset(found);
+        long storedAt = buffer.getLong(base + STORED_AT);
+        if (now - storedAt >= maxAge || storedAt > now) {
+            buffer.putInt(base + STATE, DELETED);
+            return null;
+        }
+        int valueLength = buffer.getInt(base + VALUE_LENGTH);
+        byte[] value = new byte[valueLength];
+        read(base + SLOT_HEADER + keyBytes.length, value);
+        if (checksum(keyBytes, value) != buffer.getInt(base + CHECKSUM)) {
+            buffer.putInt(base + STATE, DELETED);
+            return null;
+        }
+        return new Stored(value, buffer.getLong(base + VERSION), storedAt);
+    }
+
+    synchronized boolean put(String key, String userName, byte[] value, long version, long now) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (SLOT_HEADER + keyBytes.length + value.length > slotSize) {
+            return false;
+        }
+        int hash = hash(keyBytes);
+        int slot = find(keyBytes, hash);
+        if (slot < 0) {
+            slot = slotForInsert(hash);
+        }
+        int base = offset(slot);
+        // Mark the slot empty while it is rewritten, and fill in the state
+        // last
+        buffer.putInt(base + STATE, EMPTY);
+        buffer.putInt(base + KEY_HASH, hash);
+        buffer.putInt(base + USER_HASH, userName.hashCode());
+        buffer.putInt(base + KEY_LENGTH, keyBytes.length);
+        buffer.putInt(base + VALUE_LENGTH, value.length);
+        buffer.putInt(base + CHECKSUM, checksum(keyBytes, value));
+        buffer.putLong(base + VERSION, version);
+        buffer.putLong(base + STORED_AT, now);
+        write(base + SLOT_HEADER, keyBytes);
+        write(base + SLOT_HEADER + keyBytes.length, value);
+        buffer.putInt(base + STATE, FULL);
+        return true;
+    }
+
+    /**
+     * Remove all entries for a user. Entries are matched on the hash of the
+     * user name, so an occasional unrelated entry may be removed too, which
+     * is harmless.
+     *
+     * @param userName The user name
+     */
+    synchronized void invalidate(String userName) {
+        int userHash = userName.hashCode();
+        for (int i = 0; i < slots; i++) {
+            int base = offset(i);
+            if (buffer.getInt(base + STATE) == FULL && buffer.getInt(base + USER_HASH) == userHash) {
+                buffer.putInt(base + STATE, DELETED);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < slots; i++) {
+            buffer.putInt(offset(i) + STATE, EMPTY);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT);
+        buffer.putInt(8, slots);
+        buffer.putInt(12, slotSize);
+    }
+
+    /**
+     * Create the file, or restrict an existing one, so that only its owner
+     * can read or write it.
+     */
+    private static void ownerOnly(Path path) throws IOException {
+        boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            try {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } catch (FileAlreadyExistsException ex) {
+                Files.setPosixFilePermissions(path, OWNER_ONLY);
+            }
+        } else {
+            File file = path.toFile();
+            if (!file.exists()) {
+                file.createNewFile();
+            }
+            // Best effort - some file systems cannot deny access to others
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+    }
+
+    private int find(byte[] keyBytes, int hash) {
+        int start = index(hash);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (start + i) % slots;
+            int base = offset(slot);
+            int state = buffer.getInt(base + STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == FULL && buffer.getInt(base + KEY_HASH) == hash
+                    && buffer.getInt(base + KEY_LENGTH) == keyBytes.length
+                    && keyMatches(base, keyBytes)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int slotForInsert(int hash) {
+        int start = index(hash);
+        int oldest = start;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (start + i) % slots;
+            int base = offset(slot);
+            if (buffer.getInt(base + STATE) != FULL) {
+                return slot;
+            }
+            long storedAt = buffer.getLong(base + STORED_AT);
+            if (storedAt < oldestTime) {
+                oldestTime = storedAt;
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private boolean keyMatches(int base, byte[] keyBytes) {
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (buffer.get(base + SLOT_HEADER + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int index(int hash) {
+        return (hash & Integer.MAX_VALUE) % slots;
+    }
+
+    private int offset(int slot) {
+        return FILE_HEADER + slot * slotSize;
+    }
+
+    private void read(int position, byte[] into) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] = buffer.get(position + i);
+        }
+    }
+
+    private void write(int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(position + i, bytes[i]);
+        }
+    }
+
+    private static int hash(byte[] keyBytes) {
+        int result = 0x811C9DC5;
+        for (byte b : keyBytes) {
+            result ^= b & 0xFF;
+            result *= 0x01000193;
+        }
+        return result;
+    }
+
+    private static int checksum(byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+}
@@ -1,7 +1,5 @@
 package com.mastfrog.acteur.auth;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
 import com.mastfrog.acteur.Acteur;
@@ -22,8 +20,8 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import org.openide.util.NbCollections;
 
 /**
  *
@@ -33,14 +31,12 @@ final class OAuthLandingPageActeur extends Acteur {
 
     private final OAuthPlugins plugins;
     private final HomePageRedirector redir;
-    private final ObjectMapper mapper;
     private final VisitorCookies visitorCookies;
 
     @Inject
-    OAuthLandingPageActeur(HttpEvent evt, ObjectMapper mapper, OAuthPlugins plugins, UserFactory<?> users, Settings settings, HomePageRedirector redir, VisitorCookies visitorCookies) throws URISyntaxException, IOException {
+    OAuthLandingPageActeur(HttpEvent evt, OAuthPlugins plugins, UserFactory<?> users, Settings settings, HomePageRedirector redir, VisitorCookies visitorCookies) throws URISyntaxException, IOException {
         this.redir = redir;
         this.plugins = plugins;
-        this.mapper = mapper;
         this.visitorCookies = visitorCookies;
 
         Path base = Path.parse(plugins.getLandingPageBasePath());
@@ -83,13 +79,35 @@ final class OAuthLandingPageActeur extends Acteur {
         finish(plugin, evt, users, stateo.get());
     }
 
-    @SuppressWarnings("unchecked")
-    private Map<String, Object> toMap(RemoteUserInfo info) throws JsonProcessingException, IOException {
-        if (info instanceof Map) {
-            return NbCollections.checkedMapByCopy(info, String.class, Object.class, false);
+    private Map<String, Object> toMap(RemoteUserInfo info, String fingerprint) {
+        // RemoteUserInfo is already a Map, so a shallow copy is all that is
+        // needed - no need to round-trip it through JSON
+        Map<String, Object> result = new LinkedHashMap<>(info);
+        result.put(ProfileFingerprint.FINGERPRINT_KEY, fingerprint);
+        return result;
+    }
+
+    /**
+     * Returns the data to save for this login, or null if the stored profile
+     * has the same fingerprint and does not need to be rewritten.
+     */
+    private <R> Map<String, Object> changedData(UserFactory<R> users, R user, OAuthPlugin<?> plugin, RemoteUserInfo info) {
+        String fingerprint = ProfileFingerprint.of(info);
+        String stored = ProfileFingerprint.storedFingerprint(users.getData(user, plugin));
+        return fingerprint.equals(stored) ? null : toMap(info, fingerprint);
+    }
+
+    /**
+     * Returns the access token to save for this login, or null if the
+     * same token is already stored.
+     */
+    private <T, R> String changedToken(UserFactory<R> users, R user, OAuthPlugin<T> plugin, T credential) {
+        String token = plugin.credentialToString(credential);
+        Optional<String> existing = users.getAccessToken(user, plugin.code());
+        if (existing.isPresent() && existing.get().equals(token)) {
+            return null;
         }
-        String s = mapper.writeValueAsString(info);
-        return mapper.readValue(s, Map.class);
+        return token;
     }
 
     private <T, R> void finish(OAuthPlugin<T> plugin, HttpEvent evt, UserFactory<R> users, LoginState state) throws URISyntaxException, IOException {
@@ -114,27 +132,56 @@ final class OAuthLandingPageActeur extends Acteur {
         Optional<R> op = users.findUserByName(rui.userName());
         R user = null;
         Slug slug;
+        // Everything this login changes about the user is collected here and
+        // written at the end in one operation
+        UserFactory<R>.UserUpdate update;
         if (op.isPresent()) {
             user = op.get();
+            update = users.update(user);
             // Get an existing slug (another random string) for this service
             // to encode into a cookie
-            slug = users.getSlug(plugin.code(), user, true).get();
-            // If the slug is expired, create a new one
-            if (TimeUtil.isLonger(slug.age(), plugin.getSlugMaxAge())) {
+            Optional<Slug> existing = users.getSlug(plugin.code(), user, false);
+            // If the slug is missing or expired, create a new one
+            if (!existing.isPresent() || TimeUtil.isLonger(existing.get().age(), plugin.getSlugMaxAge())) {
                 // Create a new slug
                 slug = users.newSlug(plugin.code());
-                // Overwrite the old one
-                users.putSlug(user, slug);
-                users.putData(user, plugin.code(), toMap(rui));
-                plugin.saveToken(users, user, credential);
+                // Overwrite the old one, and update the profile data and token
+                // only if they differ from what we have
+                update.slug(slug);
+                Map<String, Object> data = changedData(users, user, plugin, rui);
+                if (data != null) {
+                    update.data(plugin.code(), data);
+                }
+                String token = changedToken(users, user, plugin, credential);
+                if (token != null) {
+                    update.token(plugin.code(), token);
+                }
+            } else {
+                slug = existing.get();
             }
         } else {
             // Create a new slug for the new user
             slug = users.newSlug(plugin.code());
-            // Create a new user
-            user = users.newUser(rui.userName(), slug, rui.displayName(), rui, plugin);
-            users.putData(user, plugin.code(), toMap(rui));
-            plugin.saveToken(users, user, credential);
+            // Create a new user - the profile data is stored as part of
+            // creating it
+            user = users.newUser(rui.userName(), slug, rui.displayName(), toMap(rui, ProfileFingerprint.of(rui)), plugin);
+            if (user == null) {
+                // A concurrent login created the same user first - use
+                // that one, with our slug
+                Optional<R> created = users.findUserByName(rui.userName());
+                if (!created.isPresent()) {
+                    setState(new RespondWith(HttpResponseStatus.CONFLICT, "Could not create " + rui.userName()));
+                    return;
+                }
+                user = created.get();
+                update = users.update(user).slug(slug);
+            } else {
+                update = users.update(user);
+            }
+            String token = plugin.credentialToString(credential);
+            if (token != null) {
+                update.token(plugin.code(), token);
+            }
         }
         // Encode the slug into a cookie - this hashes the slug (which is a random
         // string anyway) with a salt and the user name
@@ -158,10 +205,11 @@ final class OAuthLandingPageActeur extends Acteur {
 
         plugins.createDisplayNameCookie(evt, response(), rui.displayName());
         
-        Cookie visitorCookie = visitorCookies.associateCookieWithUser(evt, users, user);
+        Cookie visitorCookie = visitorCookies.associateCookieWithUser(evt, update);
         if (visitorCookie != null) {
             add(Headers.SET_COOKIE_B, visitorCookie);
         }
+        update.apply();
 
         // See if the request has a redirect already - we may have passed one
         // to the remote service and it is passing it back to us
@@ -103,10 +103,6 @@ public abstract class OAuthPlugin<CredentialType> {
         return credential.toString();
     }
     
-    final <T> void saveToken(UserFactory<T> uf, T user, CredentialType credential) {
-        uf.putAccessToken(user, credentialToString(credential), code());
-    }
-
     /**
      * Take a credential and fetch enough info about the user in the
      * remote service to be able to create a local user.
@@ -62,6 +62,7 @@ public final class OAuthPlugins implements Iterable<OAuthPlugin<?>> {
     private static final String DEFAULT_COOKIE_SALT = "asd#(#(f889asud(%&#_djAOKcausd89cj2k24hSj0000ss03w:@#*(#@#(";
     private final String salt;
     private final PasswordHasher hasher;
+    private final RequestCookies cookies;
     public static final String SETTINGS_KEY_LOGIN_REDIRECT = "oauth.login.redirect";
     public static final String SETTINGS_KEY_SLUG_MAX_AGE_HOURS = "oauth.slug.max.age.hours";
     private final URI loginRedirectURI;
@@ -78,8 +79,9 @@ public final class OAuthPlugins implements Iterable<OAuthPlugin<?>> {
     public static final String SETTINGS_KEY_USE_DISPLAY_NAME_COOKIE = "use.display.name.cookie";
 
     @Inject
-    OAuthPlugins(Settings settings, PathFactory pf, Dependencies deps, PasswordHasher hasher) throws URISyntaxException {
+    OAuthPlugins(Settings settings, PathFactory pf, Dependencies deps, PasswordHasher hasher, RequestCookies cookies) throws URISyntaxException {
         this.settings = settings;
+        this.cookies = cookies;
         this.pf = pf;
         this.hasher = hasher;
         long displayNameCookieMaxAge = settings.getLong(SETTINGS_KEY_DISPLAY_NAME_COOKIE_MAX_AGE_DAYS, 60);
@@ -214,23 +216,15 @@ public final class OAuthPlugins implements Iterable<OAuthPlugin<?>> {
     }
 
     public boolean hasDisplayNameCookie(HttpEvent evt) {
-        Cookie[] cookies = evt.getHeader(Headers.COOKIE_B);
-        if (cookies == null) {
-            return false;
-        }
-        for (Cookie ck : cookies) {
-            if (DISPLAY_NAME_COOKIE_NAME.equals(ck.name())) {
-                return true;
-            }
-        }
-        return false;
+        return cookies.has(evt, DISPLAY_NAME_COOKIE_NAME);
     }
 
     public void logout(HttpEvent evt, Response response) {
         Checks.notNull("response", response);
         Checks.notNull("evt", evt);
-        Cookie[] cks = evt.getHeader(Headers.COOKIE_B);
-        if (cks != null) {
+        ChannelAuthCache.clear(evt);
+        List<Cookie> cks = cookies.all(evt);
+        if (!cks.isEmpty()) {
             Host host = getHost(evt);
             if (host == null) {
                 return;
@@ -0,0 +1,281 @@
+package com.mastfrog.acteur.auth;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.auth.OpenIdConnectPlugin.IdToken;
+import com.mastfrog.acteur.server.PathFactory;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.url.Path;
+import com.mastfrog.util.Checks;
+import com.mastfrog.util.Exceptions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * OAuthPlugin for any OpenID Connect provider. The user's identity is read
+ * from the ID token returned by the token exchange, which is verified locally
+ * against the provider's published keys - so, unlike plain OAuth 2 plugins,
+ * no further call to a user-info endpoint is needed to log a user in.
+ * <p/>
+ * Subclasses supply the provider's endpoints and the client credentials.
+ *
+ * @author Tim Boudreau
+ */
+public class OpenIdConnectPlugin extends OAuthPlugin<IdToken> {
+
+    /**
+     * How often to refetch the provider's signing keys, in minutes.
+     */
+    public static final String SETTINGS_KEY_JWKS_REFRESH_MINUTES = "oidc.jwks.refresh.minutes";
+    private static final int TIMEOUT_MILLIS = 10000;
+    private final Endpoints endpoints;
+    private final String clientId;
+    private final String clientSecret;
+    private final Set<String> scopes;
+    private final PathFactory paths;
+    private final ObjectMapper mapper;
+    private final IdTokenVerifier verifier;
+
+    protected OpenIdConnectPlugin(String name, String code, String logoUrl, OAuthPlugins plugins,
+            Endpoints endpoints, String clientId, String clientSecret, Collection<String> scopes,
+            PathFactory paths, ObjectMapper mapper, Settings settings) {
+        super(name, code, logoUrl, plugins);
+        Checks.notNull("endpoints", endpoints);
+        Checks.notNull("clientId", clientId);
+        Checks.notNull("clientSecret", clientSecret);
+        this.endpoints = endpoints;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.scopes = new LinkedHashSet<>(scopes);
+        this.scopes.add("openid");
+        this.paths = paths;
+        this.mapper = mapper;
+        Duration refresh = Duration.ofMinutes(settings.getLong(SETTINGS_KEY_JWKS_REFRESH_MINUTES, 60));
+        JsonWebKeys keys = new JsonWebKeys(endpoints.jwks, mapper, refresh);
+        this.verifier = new IdTokenVerifier(keys, endpoints.issuers, clientId, mapper);
+    }
+
+    private String callbackUrl() {
+        return paths.constructURL(Path.parse(plugins.getLandingPageBasePath()).append(code()), true).toString();
+    }
+
+    @Override
+    public String getRedirectURL(UserFactory.LoginState state) {
+        StringBuilder sb = new StringBuilder(endpoints.authorization.toString());
+        sb.append(endpoints.authorization.getQuery() == null ? '?' : '&');
+        sb.append("response_type=code");
+        appendParameter("client_id", clientId, sb);
+        appendParameter("redirect_uri", callbackUrl(), sb);
+        StringBuilder scopeList = new StringBuilder();
+        for (String scope : scopes) {
+            if (scopeList.length() > 0) {
+                scopeList.append(' ');
+            }
+            scopeList.append(scope);
+        }
+        appendParameter("scope", scopeList.toString(), sb);
+        appendParameter("state", state.state, sb);
+        return sb.toString();
+    }
+
+    private static void appendParameter(String name, String value, StringBuilder sb) {
+        try {
+            sb.append('&').append(name).append('=').append(URLEncoder.encode(value, "UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            Exceptions.chuck(ex);
+        }
+    }
+
+    @Override
+    public String stateForEvent(HttpEvent evt) {
+        return evt.urlParameter("state");
+    }
+
+    @Override
+    public boolean revalidateCredential(String userName, String accessToken) {
+        return true;
+    }
+
+    @Override
+    protected String credentialToString(IdToken credential) {
+        return credential.accessToken;
+    }
+
+    @Override
+    public IdToken credentialForEvent(HttpEvent evt) {
+        String authCode = evt.urlParameter("code");
+        if (authCode == null) {
+            return null;
+        }
+        Map<String, Object> response;
+        try {
+            response = exchange(authCode);
+        } catch (IOException ex) {
+            Exceptions.printStackTrace(ex);
+            return null;
+        }
+        Object idToken = response.get("id_token");
+        if (!(idToken instanceof String)) {
+            throw new IllegalArgumentException("No id_token in response from " + endpoints.token);
+        }
+        try {
+            // Throws IllegalArgumentException if the token is not valid
+            Map<String, Object> claims = verifier.verify((String) idToken);
+            return new IdToken((String) response.get("access_token"), claims);
+        } catch (IOException ex) {
+            Exceptions.printStackTrace(ex);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> exchange(String authCode) throws IOException {
+        StringBuilder body = new StringBuilder("grant_type=authorization_code");
+        appendParameter("code", authCode, body);
+        appendParameter("redirect_uri", callbackUrl(), body);
+        appendParameter("client_id", clientId, body);
+        appendParameter("client_secret", clientSecret, body);
+        byte[] bytes = body.toString().getBytes(StandardCharsets.US_ASCII);
+
+        HttpURLConnection conn = (HttpURLConnection) endpoints.token.openConnection();
+        conn.setConnectTimeout(TIMEOUT_MILLIS);
+        conn.setReadTimeout(TIMEOUT_MILLIS);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        conn.setRequestProperty("Accept", "application/json");
+        conn.setFixedLengthStreamingMode(bytes.length);
+        try {
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(bytes);
+            }
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Token exchange with " + endpoints.token
+                        + " failed: " + conn.getResponseCode());
+            }
+            try (InputStream in = conn.getInputStream()) {
+                return mapper.readValue(in, Map.class);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Override
+    public RemoteUserInfo getRemoteUserInfo(IdToken credential) {
+        return credential == null ? null : new Claims(credential.claims);
+    }
+
+    @Override
+    protected String getUserPictureURL(Map<String, Object> data) {
+        Object result = data.get("picture");
+        return result instanceof String ? (String) result : null;
+    }
+
+    /**
+     * The result of a successful login - the access token and the verified
+     * claims of the ID token that came with it.
+     */
+    public static final class IdToken {
+
+        public final String accessToken;
+        public final Map<String, Object> claims;
+
+        IdToken(String accessToken, Map<String, Object> claims) {
+            this.accessToken = accessToken;
+            this.claims = Collections.unmodifiableMap(claims);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(claims.get("sub"));
+        }
+    }
+
+    /**
+     * Where to find an OpenID Connect provider's services - the values of
+     * <code>issuer</code>, <code>authorization_endpoint</code>,
+     * <code>token_endpoint</code> and <code>jwks_uri</code> in its discovery
+     * document.
+     */
+    public static final class Endpoints {
+
+        final Set<String> issuers;
+        final URL authorization;
+        final URL token;
+        final URL jwks;
+
+        public Endpoints(String authorization, String token, String jwks, String... issuers) throws MalformedURLException {
+            Checks.notNull("authorization", authorization);
+            Checks.notNull("token", token);
+            Checks.notNull("jwks", jwks);
+            if (issuers.length == 0) {
+                throw new IllegalArgumentException("No issuers");
+            }
+            this.authorization = new URL(authorization);
+            this.token = new URL(token);
+            this.jwks = new URL(jwks);
+            this.issuers = new LinkedHashSet<>(Arrays.asList(issuers));
+        }
+
+        @Override
+        public String toString() {
+            return issuers + " " + authorization + " " + token + " " + jwks;
+        }
+    }
+
+    static final class Claims extends HashMap<String, Object> implements RemoteUserInfo {
+
+        // Claims which differ on every login, and would make the stored
+        // profile look changed when it is not
+        private static final Set<String> PER_TOKEN_CLAIMS = new HashSet<>(Arrays.asList(
+                "exp", "iat", "auth_time", "nonce", "at_hash", "c_hash", "jti"));
+
+        Claims(Map<String, Object> claims) {
+            super(claims);
+            keySet().removeAll(PER_TOKEN_CLAIMS);
+        }
+
+        @Override
+        public String userName() {
+            // Only trust the email address as a user name if the provider
+            // explicitly says it has verified it - otherwise anyone could
+            // claim the address of an existing user
+            Object email = get("email");
+            Object verified = get("email_verified");
+            if (email instanceof String && (Boolean.TRUE.equals(verified) || "true".equals(verified))) {
+                return (String) email;
+            }
+            // Subjects are only unique per issuer, so qualify them, which
+            // also keeps them from colliding with names from other providers
+            return get("iss") + "#" + get("sub");
+        }
+
+        @Override
+        public String displayName() {
+            Object name = get("name");
+            return name instanceof String ? (String) name : userName();
+        }
+
+        @Override
+        public Object get(String key) {
+            return super.get(key);
+        }
+    }
+}
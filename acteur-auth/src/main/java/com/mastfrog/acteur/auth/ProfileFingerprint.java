@@ -0,0 +1,115 @@
+package com.mastfrog.acteur.auth;
+
+import com.mastfrog.util.Exceptions;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Computes a stable content hash of the profile data an OAuth service returns
+ * for a user, so that logging in again with an unchanged profile does not
+ * rewrite it. The hash is stored alongside the data under
+ * <code>FINGERPRINT_KEY</code>.
+ * <p/>
+ * Map keys are visited in sorted order and numbers are rendered by value, so
+ * a profile read back from the database (where an Integer may have become a
+ * Long or key order may differ) hashes the same as the one it was written
+ * from.
+ *
+ * @author Tim Boudreau
+ */
+final class ProfileFingerprint {
+
+    static final String FINGERPRINT_KEY = "_fp";
+
+    private ProfileFingerprint() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Get the fingerprint stored with a previously saved profile, if any.
+     *
+     * @param stored Data as returned by UserFactory.getData()
+     * @return The fingerprint or null
+     */
+    static String storedFingerprint(Map<String, Object> stored) {
+        if (stored == null) {
+            return null;
+        }
+        Object result = stored.get(FINGERPRINT_KEY);
+        return result instanceof String ? (String) result : null;
+    }
+
+    /**
+     * Compute the fingerprint of a profile, ignoring any fingerprint already
+     * present in it.
+     *
+     * @param profile The profile
+     * @return A url-safe base 64 string
+     */
+    static String of(Map<String, ?> profile) {
+        StringBuilder sb = new StringBuilder(256);
+        appendMap(profile, sb);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    private static void appendMap(Map<?, ?> m, StringBuilder sb) {
+        TreeMap<String, Object> sorted = new TreeMap<>();
+        for (Map.Entry<?, ?> e : m.entrySet()) {
+            String key = String.valueOf(e.getKey());
+            if (!FINGERPRINT_KEY.equals(key)) {
+                sorted.put(key, e.getValue());
+            }
+        }
+        sb.append('{');
+        for (Map.Entry<String, Object> e : sorted.entrySet()) {
+            appendString(e.getKey(), sb);
+            sb.append(':');
+            append(e.getValue(), sb);
+            sb.append(',');
+        }
+        sb.append('}');
+    }
+
+    private static void append(Object o, StringBuilder sb) {
+        if (o == null) {
+            sb.append("null");
+        } else if (o instanceof Map<?, ?>) {
+            appendMap((Map<?, ?>) o, sb);
+        } else if (o instanceof Collection<?>) {
+            sb.append('[');
+            for (Object item : (Collection<?>) o) {
+                append(item, sb);
+                sb.append(',');
+            }
+            sb.append(']');
+        } else if (o instanceof Object[]) {
+            sb.append('[');
+            for (Object item : (Object[]) o) {
+                append(item, sb);
+                sb.append(',');
+            }
+            sb.append(']');
+        } else if (o instanceof Number || o instanceof Boolean) {
+            sb.append(o);
+        } else {
+            appendString(o.toString(), sb);
+        }
+    }
+
+    private static void appendString(String s, StringBuilder sb) {
+        // Length-prefix strings so that no choice of content can collide
+        // with the delimiters
+        sb.append(s.length()).append('"').append(s);
+    }
+}
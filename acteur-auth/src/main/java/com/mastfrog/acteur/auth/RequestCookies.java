@@ -0,0 +1,131 @@
+package com.mastfrog.acteur.auth;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.headers.Headers;
+import io.netty.handler.codec.http.cookie.Cookie;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the Cookie header of a request once, and indexes the cookies by
+ * name, so the several things which look for cookies during authentication
+ * do not each re-parse the header and scan it. Entries are held weakly,
+ * keyed on the identity of the request, so they go away with it.
+ * <p/>
+ * Every cookie is kept - browsers send several cookies of the same name
+ * when they were set for different domains or paths, and only one of them
+ * may be current.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class RequestCookies {
+
+    private static final Parsed NONE = new Parsed(Collections.<Cookie>emptyList(),
+            Collections.<String, List<Cookie>>emptyMap());
+    private final Cache<HttpEvent, Parsed> cookiesForRequest
+            = CacheBuilder.newBuilder().weakKeys().build();
+
+    private Parsed parsed(HttpEvent evt) {
+        Parsed result = cookiesForRequest.getIfPresent(evt);
+        if (result == null) {
+            result = parse(evt);
+            // Harmless if two threads race to do this - both get the same
+            cookiesForRequest.put(evt, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get every cookie sent with a request.
+     *
+     * @param evt The request
+     * @return An unmodifiable list of cookies, in the order the client sent
+     * them, including any with the same name
+     */
+    public List<Cookie> all(HttpEvent evt) {
+        return parsed(evt).all;
+    }
+
+    /**
+     * Get the cookies sent with a request by name.
+     *
+     * @param evt The request
+     * @return An unmodifiable map of cookie name to the cookies of that
+     * name, in the order the client sent them
+     */
+    public Map<String, List<Cookie>> cookies(HttpEvent evt) {
+        return parsed(evt).byName;
+    }
+
+    /**
+     * Get the first cookie with a name.
+     *
+     * @param evt The request
+     * @param name The cookie name
+     * @return A cookie or null
+     */
+    public Cookie get(HttpEvent evt, String name) {
+        List<Cookie> result = getAll(evt, name);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Get every cookie with a name.
+     *
+     * @param evt The request
+     * @param name The cookie name
+     * @return The cookies, possibly empty
+     */
+    public List<Cookie> getAll(HttpEvent evt, String name) {
+        List<Cookie> result = parsed(evt).byName.get(name);
+        return result == null ? Collections.<Cookie>emptyList() : result;
+    }
+
+    public boolean has(HttpEvent evt, String name) {
+        return parsed(evt).byName.containsKey(name);
+    }
+
+    public boolean isEmpty(HttpEvent evt) {
+        return parsed(evt).all.isEmpty();
+    }
+
+    private static Parsed parse(HttpEvent evt) {
+        Cookie[] cookies = evt.header(Headers.COOKIE_B);
+        if (cookies == null || cookies.length == 0) {
+            return NONE;
+        }
+        Map<String, List<Cookie>> byName = new LinkedHashMap<>(cookies.length * 2);
+        for (Cookie ck : cookies) {
+            List<Cookie> named = byName.get(ck.name());
+            if (named == null) {
+                named = new ArrayList<>(1);
+                byName.put(ck.name(), named);
+            }
+            named.add(ck);
+        }
+        for (Map.Entry<String, List<Cookie>> e : byName.entrySet()) {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+        return new Parsed(Collections.unmodifiableList(Arrays.asList(cookies)),
+                Collections.unmodifiableMap(byName));
+    }
+
+    private static final class Parsed {
+
+        private final List<Cookie> all;
+        private final Map<String, List<Cookie>> byName;
+
+        Parsed(List<Cookie> all, Map<String, List<Cookie>> byName) {
+            this.all = all;
+            this.byName = byName;
+        }
+    }
+}
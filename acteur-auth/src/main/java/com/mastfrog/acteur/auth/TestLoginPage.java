@@ -22,10 +22,8 @@ import io.netty.handler.codec.http.cookie.DefaultCookie;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import java.time.Duration;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 /**
  *
@@ -56,7 +54,7 @@ final class TestLoginPage extends Page {
         private final HomePageRedirector redir;
 
         @Inject
-        TestLoginActeur(HttpEvent evt, OAuthPlugins plugins, AuthenticationStrategy auth, UserFactory<?> uf, Realm realm, HomePageRedirector redir, Settings settings, PasswordHasher hasher) {
+        TestLoginActeur(HttpEvent evt, OAuthPlugins plugins, AuthenticationStrategy auth, UserFactory<?> uf, Realm realm, HomePageRedirector redir, Settings settings, PasswordHasher hasher, RequestCookies cookies) {
             this.plugins = plugins;
             this.redir = redir;
             int code = OK.code();
@@ -80,15 +78,12 @@ final class TestLoginPage extends Page {
                 reply(status);
                 return;
             }
-            Cookie[] ck = evt.header(Headers.COOKIE_B);
-            Map<String, Cookie> cookieForName = new HashMap<>();
             Result result = new Result();
-            if (ck != null && ck.length > 0) {
-                for (Cookie c : ck) {
-                    cookieForName.put(c.name(), c);
-                }
+            if (!cookies.isEmpty(evt)) {
                 for (PluginInfo info : plugins.getPlugins()) {
-                    Cookie cookie = cookieForName.get(info.code);
+                    List<Cookie> named = cookies.getAll(evt, info.code);
+                    // The last of any with the same name, as this always used
+                    Cookie cookie = named.isEmpty() ? null : named.get(named.size() - 1);
                     if (cookie != null) {
                         String val = cookie.value();
                         Optional<UserInfo> ui = plugins.decodeCookieValue(val);
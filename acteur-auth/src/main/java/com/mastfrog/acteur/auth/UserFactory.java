@@ -1,12 +1,18 @@
 package com.mastfrog.acteur.auth;
 
 import com.google.common.base.Optional;
+import com.mastfrog.util.Checks;
 import com.mastfrog.util.time.TimeUtil;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Implements the features of a "user" object necessary for authentication
@@ -19,6 +25,7 @@ public abstract class UserFactory<T> {
 
     protected final Class<T> type;
     protected final UniqueIDs ids;
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
 
     protected UserFactory(Class<T> type, UniqueIDs ids) {
         this.type = type;
@@ -39,6 +46,25 @@ public abstract class UserFactory<T> {
      */
     public abstract Optional<T> findUserByName(String name);
 
+    /**
+     * Look up a user in order to authenticate them. The result need only
+     * support what authentication uses - slugs, password hash, names,
+     * version and <code>toUserObject()</code> - and may lack other data,
+     * such as access tokens, so stores can read less. The default implementation calls
+     * <code>findUserByName()</code>.
+     * <p/>
+     * Such a user may also lack the data stored for OAuth plugins, so
+     * <code>getData()</code> on it can return an empty map; code which is
+     * handed the authenticated user and needs that data, such as
+     * {@link UserPictureProvider}, must look the user up again by name.
+     *
+     * @param name The name
+     * @return A user, possibly partial
+     */
+    public Optional<T> findUserForAuthentication(String name) {
+        return findUserByName(name);
+    }
+
     /**
      * Get the hashed stored password for a user
      *
@@ -108,6 +134,246 @@ public abstract class UserFactory<T> {
     public abstract Map<String,Object> getData(T user, String name);
 
     public abstract void putData(T user, String name, Map<String,Object> data);
+
+    /**
+     * Get the data stored under the passed name for a number of users at
+     * once.  The default implementation calls <code>getData()</code> for
+     * each; implementations which can fetch more efficiently in bulk should
+     * override it.
+     *
+     * @param users Some users
+     * @param name The name of the data, such as an OAuth plugin code
+     * @return A list of the same size as the list of users, with the data
+     * for each user at the corresponding index
+     */
+    public List<Map<String, Object>> getDataForAll(List<? extends T> users, String name) {
+        List<Map<String, Object>> result = new ArrayList<>(users.size());
+        for (T user : users) {
+            result.add(getData(user, name));
+        }
+        return result;
+    }
+
+    /**
+     * Get the version of a user object - a number which the store changes
+     * every time the user is modified.  Used by caches to cheaply detect
+     * that a user object is stale.
+     *
+     * @param user The user
+     * @return The version, or -1 if the store does not track versions
+     */
+    public long version(T user) {
+        return -1;
+    }
+
+    /**
+     * Fetch only the current version of a user from storage, which should be
+     * considerably cheaper than loading the user.
+     *
+     * @param userName The user name
+     * @return The version, or absent if the user does not exist or the store
+     * does not track versions
+     */
+    public Optional<Long> currentVersion(String userName) {
+        return Optional.absent();
+    }
+
+    /**
+     * Serialize a user object, so it can be kept in a cache outside the
+     * heap. Only users returned by <code>findUserForAuthentication()</code>
+     * are serialized, and only what authentication uses need be written;
+     * since the result may be stored on disk, anything else - access tokens
+     * in particular - should be left out.
+     *
+     * @param user The user
+     * @return The serialized form, or null if this store does not support
+     * serializing users
+     */
+    public byte[] toBytes(T user) {
+        return null;
+    }
+
+    /**
+     * Recreate a user object from the output of <code>toBytes()</code>.
+     *
+     * @param bytes The serialized form
+     * @return A user object, or null if this store does not support
+     * serializing users
+     */
+    public T fromBytes(byte[] bytes) {
+        return null;
+    }
+
+    /**
+     * Listen for changes to stored user data.  Implementations call
+     * <code>fireChanged()</code> after each write, so that things which
+     * cache information derived from a user can discard it.
+     *
+     * @param listener A listener
+     */
+    public final void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public final void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notify listeners that a user has been modified.  Should be called by
+     * implementations after a write has been made to storage.
+     *
+     * @param user The user
+     * @param change The kind of change
+     * @param name The name of the slug, token or data modified, if any
+     */
+    protected final void fireChanged(T user, Change change, String name) {
+        if (!listeners.isEmpty()) {
+            fireChangedByName(getUserName(user), change, name);
+        }
+    }
+
+    /**
+     * Notify listeners that a user has been modified, when only the user's
+     * name is known - for example, when the change was made by another
+     * server.
+     *
+     * @param userName The user name
+     * @param change The kind of change
+     * @param name The name of the slug, token or data modified, if any
+     */
+    protected final void fireChangedByName(String userName, Change change, String name) {
+        for (ChangeListener l : listeners) {
+            l.onChange(userName, change, name);
+        }
+    }
+
+    /**
+     * Start collecting changes to a user which should be written together.
+     * Nothing is written until <code>apply()</code> is called on the
+     * result.
+     *
+     * @param user The user
+     * @return An update
+     */
+    public final UserUpdate update(T user) {
+        Checks.notNull("user", user);
+        return new UserUpdate(user);
+    }
+
+    /**
+     * Write all of the changes in an update. The default implementation
+     * calls <code>setPasswordHash()</code>, <code>putSlug()</code>,
+     * <code>putData()</code> and <code>putAccessToken()</code> for each;
+     * implementations which can apply several changes in a single write to
+     * their storage should override it.
+     *
+     * @param on The user
+     * @param update The changes, which will not be empty
+     */
+    protected void applyUpdate(T on, UserUpdate update) {
+        if (update.passwordHash() != null) {
+            setPasswordHash(on, update.passwordHash());
+        }
+        for (Slug slug : update.slugs().values()) {
+            putSlug(on, slug);
+        }
+        for (Map.Entry<String, Map<String, Object>> e : update.data().entrySet()) {
+            putData(on, e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : update.tokens().entrySet()) {
+            putAccessToken(on, e.getValue(), e.getKey());
+        }
+    }
+
+    /**
+     * A set of changes to one user - slugs, access tokens, data and
+     * password - to be written to storage in one operation. Setting the same
+     * thing twice replaces the earlier value.
+     */
+    public final class UserUpdate {
+
+        private final T user;
+        private final Map<String, Slug> slugs = new LinkedHashMap<>();
+        private final Map<String, String> tokens = new LinkedHashMap<>();
+        private final Map<String, Map<String, Object>> data = new LinkedHashMap<>();
+        private String passwordHash;
+
+        private UserUpdate(T user) {
+            this.user = user;
+        }
+
+        public UserUpdate slug(Slug slug) {
+            Checks.notNull("slug", slug);
+            slugs.put(slug.name, slug);
+            return this;
+        }
+
+        public UserUpdate token(String serviceName, String token) {
+            Checks.notNull("serviceName", serviceName);
+            Checks.notNull("token", token);
+            tokens.put(serviceName, token);
+            return this;
+        }
+
+        public UserUpdate data(String name, Map<String, Object> data) {
+            Checks.notNull("name", name);
+            Checks.notNull("data", data);
+            this.data.put(name, data);
+            return this;
+        }
+
+        public UserUpdate password(String hash) {
+            Checks.notNull("hash", hash);
+            passwordHash = hash;
+            return this;
+        }
+
+        public T user() {
+            return user;
+        }
+
+        public UserFactory<T> factory() {
+            return UserFactory.this;
+        }
+
+        public Map<String, Slug> slugs() {
+            return Collections.unmodifiableMap(slugs);
+        }
+
+        public Map<String, String> tokens() {
+            return Collections.unmodifiableMap(tokens);
+        }
+
+        public Map<String, Map<String, Object>> data() {
+            return Collections.unmodifiableMap(data);
+        }
+
+        public String passwordHash() {
+            return passwordHash;
+        }
+
+        public boolean isEmpty() {
+            return slugs.isEmpty() && tokens.isEmpty() && data.isEmpty() && passwordHash == null;
+        }
+
+        /**
+         * Write the changes, if there are any.
+         */
+        public void apply() {
+            if (!isEmpty()) {
+                applyUpdate(user, this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "UserUpdate(" + getUserName(user) + " slugs=" + slugs.keySet()
+                    + " tokens=" + tokens.keySet() + " data=" + data.keySet()
+                    + (passwordHash == null ? "" : " password") + ")";
+        }
+    }
+
     /**
      * Create and store a new random string which can be passed to an oauth
      * callback
@@ -131,6 +397,44 @@ public abstract class UserFactory<T> {
      */
     public abstract Optional<LoginState> lookupLoginState(String state);
 
+    /**
+     * The kinds of modification to a user which are reported to
+     * change listeners
+     */
+    public enum Change {
+        CREATED,
+        DATA,
+        SLUG,
+        TOKEN,
+        PASSWORD,
+        /**
+         * The set of other users the user has authorized changed.
+         */
+        AUTHORIZATION,
+        /**
+         * The user's display name changed; the name is null.
+         */
+        DISPLAY_NAME,
+        /**
+         * Several of the above changed at once, through a
+         * <code>UserUpdate</code>; the name is null.
+         */
+        UPDATE
+    }
+
+    public interface ChangeListener {
+
+        /**
+         * Called after a user has been modified.
+         *
+         * @param userName The user's name
+         * @param change The kind of change
+         * @param name The slug, token or data name affected, or null if
+         * not applicable
+         */
+        void onChange(String userName, Change change, String name);
+    }
+
     public static class LoginState {
 
         public final String state;
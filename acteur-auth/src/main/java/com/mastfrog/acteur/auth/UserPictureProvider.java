@@ -1,32 +1,160 @@
 package com.mastfrog.acteur.auth;
 
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.Page;
+import com.mastfrog.acteur.auth.UserFactory.Change;
+import com.mastfrog.acteur.auth.UserFactory.ChangeListener;
+import com.mastfrog.acteur.server.PathFactory;
 import com.mastfrog.settings.Settings;
+import com.mastfrog.url.Path;
+import com.mastfrog.util.Exceptions;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Resolves the picture URL for a user by asking each OAuth plugin in turn.
+ * Resolved URLs are cached by user name, and discarded when the user's
+ * plugin data changes; a URL resolved from data read before such a change
+ * is returned but not cached.
  *
  * @author Tim Boudreau
  */
+@Singleton
 public class UserPictureProvider {
 
     public static final String DEFAULT_USER_PICTURE_URL = "user.default.picture.url";
+    public static final String SETTINGS_KEY_PICTURE_CACHE_SIZE = "user.picture.cache.size";
+    public static final String SETTINGS_KEY_PICTURE_CACHE_MINUTES = "user.picture.cache.minutes";
+    public static final String SETTINGS_KEY_AVATAR_PAGE_BASE = "avatar.page.base";
     private final OAuthPlugins plugins;
     private final UserFactory<?> users;
     private final String defaultPicture;
+    private final Cache<String, String> pictures;
+    private final PathFactory pf;
+    private final String avatarBasePath;
+    private final AtomicLong invalidations = new AtomicLong();
 
     @Inject
-    public UserPictureProvider(UserFactory<?> users, OAuthPlugins plugins, Settings settings) {
+    public UserPictureProvider(UserFactory<?> users, OAuthPlugins plugins, Settings settings, PathFactory pf) {
         this.users = users;
         this.plugins = plugins;
+        this.pf = pf;
+        this.avatarBasePath = settings.getString(SETTINGS_KEY_AVATAR_PAGE_BASE, "avatar");
         this.defaultPicture = settings.getString(DEFAULT_USER_PICTURE_URL, "/scream.png");
+        pictures = CacheBuilder.newBuilder()
+                .maximumSize(settings.getLong(SETTINGS_KEY_PICTURE_CACHE_SIZE, 10000))
+                .expireAfterWrite(settings.getLong(SETTINGS_KEY_PICTURE_CACHE_MINUTES, 60), TimeUnit.MINUTES)
+                .build();
+        users.addChangeListener(new InvalidateOnDataChange());
     }
 
+    /**
+     * Get the URL of a user's picture. The user may be the partial one
+     * returned by <code>findUserForAuthentication()</code>, which can lack
+     * the plugin data the picture is found in; if no plugin finds one, the
+     * full user is loaded before settling on the default picture.
+     *
+     * @param user A user object
+     * @return A URL
+     */
     public String getUserPictureURL(Object user) {
         return getPicture(users, user);
     }
 
+    /**
+     * Get a URL for the user's picture which is served by this application
+     * from a local cache, via the page returned by
+     * <code>avatarPageType()</code>, rather than by the remote service. The
+     * URL contains a hash of the remote URL, so it changes when the
+     * picture does and can be cached by browsers indefinitely.
+     *
+     * @param user A user object
+     * @return A URL path, or the default picture URL if the user has no
+     * remote picture
+     */
+    public String getProxiedUserPictureURL(Object user) {
+        String url = getUserPictureURL(user);
+        if (!isRemote(url)) {
+            return url;
+        }
+        String name = getUserName(users, user);
+        try {
+            Path path = Path.parse(avatarBasePath)
+                    .append(URLEncoder.encode(name, "UTF-8"))
+                    .append(AvatarCache.hash(url));
+            return pf.toExternalPath(path).toStringWithLeadingSlash();
+        } catch (UnsupportedEncodingException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    /**
+     * The page which serves cached pictures for URLs returned by
+     * <code>getProxiedUserPictureURL()</code>; add it to your application
+     * to use them.
+     *
+     * @return A page type
+     */
+    public Class<? extends Page> avatarPageType() {
+        return AvatarPage.class;
+    }
+
+    String avatarBasePath() {
+        return avatarBasePath;
+    }
+
+    static boolean isRemote(String url) {
+        return url != null && (url.startsWith("http://") || url.startsWith("https://"));
+    }
+
+    private <T> String getUserName(UserFactory<T> uf, Object u) {
+        return uf.getUserName(uf.type().cast(u));
+    }
+
+    /**
+     * Resolve pictures for a number of users at once.  Users whose picture
+     * is not cached have their data fetched once per plugin for the whole
+     * batch, rather than once per plugin per user.
+     *
+     * @param users A collection of user objects of the type the UserFactory
+     * deals in, loaded in full - not by
+     * <code>findUserForAuthentication()</code>
+     * @return A map of user name to picture URL, in iteration order
+     */
+    public Map<String, String> getUserPictureURLs(Iterable<?> users) {
+        return getPictures(this.users, users);
+    }
+
     private <T> String getPicture(UserFactory<T> uf, Object u) {
         T obj = uf.type().cast(u);
+        String name = uf.getUserName(obj);
+        long generation = invalidations.get();
+        String result = pictures.getIfPresent(name);
+        if (result == null) {
+            result = resolve(uf, obj);
+            if (defaultPicture.equals(result)) {
+                // Possibly a partial user without plugin data
+                Optional<T> full = uf.findUserByName(name);
+                if (full.isPresent()) {
+                    result = resolve(uf, full.get());
+                }
+            }
+            cache(name, result, generation);
+        }
+        return result;
+    }
+
+    private <T> String resolve(UserFactory<T> uf, T obj) {
         for (OAuthPlugin<?> ap : plugins) {
             String result = ap.getUserPictureURL(uf, obj);
             if (result != null) {
@@ -35,4 +163,65 @@ public class UserPictureProvider {
         }
         return defaultPicture;
     }
+
+    private <T> Map<String, String> getPictures(UserFactory<T> uf, Iterable<?> all) {
+        long generation = invalidations.get();
+        Map<String, String> result = new LinkedHashMap<>();
+        List<T> unresolved = new ArrayList<>();
+        List<String> unresolvedNames = new ArrayList<>();
+        for (Object u : all) {
+            T obj = uf.type().cast(u);
+            String name = uf.getUserName(obj);
+            String picture = pictures.getIfPresent(name);
+            result.put(name, picture);
+            if (picture == null) {
+                unresolved.add(obj);
+                unresolvedNames.add(name);
+            }
+        }
+        for (OAuthPlugin<?> ap : plugins) {
+            if (unresolved.isEmpty()) {
+                break;
+            }
+            List<Map<String, Object>> data = uf.getDataForAll(unresolved, ap.code());
+            for (int i = unresolved.size() - 1; i >= 0; i--) {
+                Map<String, Object> m = data.get(i);
+                String picture = m == null ? null : ap.getUserPictureURL(m);
+                if (picture != null) {
+                    String name = unresolvedNames.remove(i);
+                    unresolved.remove(i);
+                    result.put(name, picture);
+                    cache(name, picture, generation);
+                }
+            }
+        }
+        for (String name : unresolvedNames) {
+            result.put(name, defaultPicture);
+            cache(name, defaultPicture, generation);
+        }
+        return result;
+    }
+
+    private void cache(String name, String picture, long generation) {
+        // If any user changed while we were resolving, the data we read may
+        // be older than the invalidation; better to resolve again next time
+        if (invalidations.get() == generation) {
+            pictures.put(name, picture);
+            // And one which lands between the check and the put
+            if (invalidations.get() != generation) {
+                pictures.invalidate(name);
+            }
+        }
+    }
+
+    private final class InvalidateOnDataChange implements ChangeListener {
+
+        @Override
+        public void onChange(String userName, Change change, String name) {
+            if (change == Change.DATA || change == Change.CREATED || change == Change.UPDATE) {
+                invalidations.incrementAndGet();
+                pictures.invalidate(userName);
+            }
+        }
+    }
 }
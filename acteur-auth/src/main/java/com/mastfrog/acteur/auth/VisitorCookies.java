@@ -5,7 +5,6 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.mastfrog.acteur.HttpEvent;
 import static com.mastfrog.acteur.auth.OAuthPlugins.SETTINGS_KEY_OAUTH_COOKIE_HOST;
-import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.settings.Settings;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
@@ -30,9 +29,11 @@ public final class VisitorCookies {
     private final String cookieHost;
     private final UniqueIDs ids;
     private final int port;
+    private final RequestCookies cookies;
 
     @Inject
-    VisitorCookies(Settings settings, UniqueIDs ids) {
+    VisitorCookies(Settings settings, UniqueIDs ids, RequestCookies cookies) {
+        this.cookies = cookies;
         cookieName = settings.getString(SETTINGS_KEY_COOKIE_NAME, DEFAULT_COOKIE_NAME);
         cookieDuration = Duration.ofDays(settings.getInt(SETTINGS_KEY_COOKIE_DURATION_DAYS, 365 * 5));
         cookieHost = settings.getString(SETTINGS_KEY_OAUTH_COOKIE_HOST);
@@ -41,25 +42,36 @@ public final class VisitorCookies {
     }
 
     public Optional<String> visitorId(HttpEvent evt) {
-        Cookie[] ck = evt.header(Headers.COOKIE_B);
-        if (ck == null) {
-            return Optional.absent();
-        }
-        for (Cookie c : ck) {
-            if (cookieName.equals(c.name())) {
-                return Optional.of(c.value());
-            }
-        }
-        return Optional.absent();
+        Cookie ck = cookies.get(evt, cookieName);
+        return ck == null ? Optional.<String>absent() : Optional.of(ck.value());
     }
 
     public <T> Cookie associateCookieWithUser(HttpEvent evt, UserFactory<T> users, T user) {
+        if (users == null) {
+            return associateCookieWithUser(evt, null);
+        }
+        UserFactory<T>.UserUpdate update = users.update(user);
+        Cookie result = associateCookieWithUser(evt, update);
+        update.apply();
+        return result;
+    }
+
+    /**
+     * Associate the visitor cookie with a user, adding any change to the
+     * user's data to an update which the caller will apply, so it can be
+     * written along with other changes.
+     *
+     * @param evt The request
+     * @param update An update to the user, or null
+     * @return A new cookie to send, or null if the request already has one
+     */
+    public <T> Cookie associateCookieWithUser(HttpEvent evt, UserFactory<T>.UserUpdate update) {
         Optional<String> ido = visitorId(evt);
         if (!ido.isPresent()) {
             String newId = Long.toString(System.currentTimeMillis(), 36) + '-' + ids.newRandomString(4);
-            return createCookie(newId, evt, users, user);
-        } else if (users != null) {
-            saveCookieInfo(evt, users, user, ido.get());
+            return createCookie(newId, evt, update);
+        } else if (update != null) {
+            saveCookieInfo(evt, update, ido.get());
         }
         return null;
     }
@@ -68,14 +80,20 @@ public final class VisitorCookies {
         Optional<String> ido = visitorId(evt);
         if (!ido.isPresent()) {
             String newId = Long.toString(System.currentTimeMillis(), 36) + '-' + ids.newRandomString(4);
-            return createCookie(newId, evt, users, user);
+            UserFactory<T>.UserUpdate update = users == null ? null : users.update(user);
+            Cookie result = createCookie(newId, evt, update);
+            if (update != null) {
+                update.apply();
+            }
+            return result;
         }
         return null;
     }
 
     @SuppressWarnings("unchecked")
-    private <T> void saveCookieInfo(HttpEvent evt, UserFactory<T> users, T user, String newId) {
-        Map<String, Object> data = new HashMap<>(users.getData(user, cookieName));
+    private <T> void saveCookieInfo(HttpEvent evt, UserFactory<T>.UserUpdate update, String newId) {
+        UserFactory<T> users = update.factory();
+        Map<String, Object> data = new HashMap<>(users.getData(update.user(), cookieName));
         String userAgent = evt.header("User-Agent");
         if (userAgent == null) {
             userAgent = "Unknown";
@@ -87,19 +105,19 @@ public final class VisitorCookies {
         }
         if (!forUa.contains(newId)) {
             forUa.add(newId);
-            users.putData(user, cookieName, data);
+            update.data(cookieName, data);
         }
     }
 
-    private <T> Cookie createCookie(String newId, HttpEvent evt, UserFactory<T> users, T user) {
+    private <T> Cookie createCookie(String newId, HttpEvent evt, UserFactory<T>.UserUpdate update) {
         DefaultCookie ck = new DefaultCookie(cookieName, newId);
         ck.setMaxAge(cookieDuration.getSeconds());
         ck.setPath("/");
 //        ck.setPorts(80, 443, port);
         String host = cookieHost == null ? evt.header("Host") : cookieHost;
         ck.setDomain(host);
-        if (users != null) {
-            saveCookieInfo(evt, users, user, newId);
+        if (update != null) {
+            saveCookieInfo(evt, update, newId);
         }
         return ck;
     }
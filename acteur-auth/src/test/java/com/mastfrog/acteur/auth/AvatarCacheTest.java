@@ -0,0 +1,156 @@
+package com.mastfrog.acteur.auth;
+
+import com.mastfrog.settings.SettingsBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class AvatarCacheTest {
+
+    private static final int IMAGE_BYTES = 400 * 1024;
+    private HttpServer server;
+    private File dir;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final CountDownLatch proceed = new CountDownLatch(1);
+    private volatile boolean block;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("avatars").toFile();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                if (block) {
+                    try {
+                        proceed.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                boolean image = exchange.getRequestURI().getPath().endsWith(".png");
+                exchange.getResponseHeaders().add("Content-Type", image ? "image/png" : "text/plain");
+                exchange.sendResponseHeaders(200, IMAGE_BYTES);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(new byte[IMAGE_BYTES]);
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private AvatarCache cache() throws IOException {
+        return new AvatarCache(new SettingsBuilder()
+                .add(AvatarCache.SETTINGS_KEY_AVATAR_CACHE_DIR, dir.getPath())
+                .add(AvatarCache.SETTINGS_KEY_AVATAR_CACHE_MAX_MB, "1")
+                .build());
+    }
+
+    private String url(String name) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + name;
+    }
+
+    @Test
+    public void testLeastRecentlyServedIsEvicted() throws Exception {
+        AvatarCache cache = cache();
+        AvatarCache.Entry a = cache.get(url("a.png"));
+        cache.release(a);
+        AvatarCache.Entry b = cache.get(url("b.png"));
+        cache.release(b);
+        // Touch a, so b is the oldest
+        cache.release(cache.get(url("a.png")));
+        AvatarCache.Entry c = cache.get(url("c.png"));
+        cache.release(c);
+        assertTrue(a.file.exists());
+        assertFalse(b.file.exists());
+        assertTrue(c.file.exists());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testPinnedEntriesOutliveEviction() throws Exception {
+        AvatarCache cache = cache();
+        AvatarCache.Entry a = cache.get(url("a.png"));
+        cache.release(cache.get(url("b.png")));
+        cache.release(cache.get(url("c.png")));
+        assertTrue(a.evicted);
+        assertTrue(a.file.exists());
+        cache.release(a);
+        assertFalse(a.file.exists());
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneFetch() throws Exception {
+        final AvatarCache cache = cache();
+        block = true;
+        ExecutorService threads = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<AvatarCache.Entry>> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                results.add(threads.submit(new Callable<AvatarCache.Entry>() {
+                    @Override
+                    public AvatarCache.Entry call() throws Exception {
+                        return cache.get(url("a.png"));
+                    }
+                }));
+            }
+            Thread.sleep(200);
+            proceed.countDown();
+            AvatarCache.Entry first = results.get(0).get(10, TimeUnit.SECONDS);
+            assertNotNull(first);
+            for (Future<AvatarCache.Entry> f : results) {
+                assertSame(first, f.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, requests.get());
+            assertEquals(5, first.pins);
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailuresAreRemembered() throws Exception {
+        AvatarCache cache = cache();
+        assertNull(cache.get(url("not-an-image.txt")));
+        assertNull(cache.get(url("not-an-image.txt")));
+        assertEquals(1, requests.get());
+    }
+}
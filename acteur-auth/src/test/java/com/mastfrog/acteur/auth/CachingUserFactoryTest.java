@@ -0,0 +1,179 @@
+package com.mastfrog.acteur.auth;
+
+import com.google.common.base.Optional;
+import com.mastfrog.acteur.auth.MockUserFactory.MockUser;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.File;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class CachingUserFactoryTest {
+
+    private Store store;
+
+    @Before
+    public void setUp() throws Exception {
+        File appfile = File.createTempFile("ids", ".tmp");
+        appfile.deleteOnExit();
+        store = new Store(new UniqueIDs(appfile));
+    }
+
+    private CachingUserFactory<MockUser> cache(String revalidateSeconds, String staleIfErrorSeconds) throws Exception {
+        return new CachingUserFactory<>(store, new SettingsBuilder()
+                .add(CachingUserFactory.SETTINGS_KEY_USER_CACHE_REVALIDATE_SECONDS, revalidateSeconds)
+                .add(CachingUserFactory.SETTINGS_KEY_USER_CACHE_STALE_IF_ERROR_SECONDS, staleIfErrorSeconds)
+                .build());
+    }
+
+    @Test
+    public void testHitWithinRevalidationTimeIsNotChecked() throws Exception {
+        CachingUserFactory<MockUser> users = cache("60", "0");
+        MockUser first = users.findUserByName("joe").get();
+        assertSame(first, users.findUserByName("joe").get());
+        assertEquals(1, store.loads);
+        assertEquals(0, store.versionChecks);
+    }
+
+    @Test
+    public void testChangedVersionForcesReload() throws Exception {
+        CachingUserFactory<MockUser> users = cache("0", "0");
+        users.findUserByName("joe");
+        users.findUserByName("joe");
+        assertEquals(1, store.loads);
+        assertEquals(1, store.versionChecks);
+        // As if written by another server
+        store.bump("joe");
+        users.findUserByName("joe");
+        assertEquals(2, store.loads);
+    }
+
+    @Test
+    public void testEveryWriteInvalidates() throws Exception {
+        CachingUserFactory<MockUser> users = cache("60", "0");
+        MockUser joe = users.findUserByName("joe").get();
+        int loads = 1;
+
+        users.setPasswordHash(joe, "hash");
+        users.findUserByName("joe");
+        assertEquals(++loads, store.loads);
+
+        users.putSlug(joe, users.newSlug("gg"));
+        users.findUserByName("joe");
+        assertEquals(++loads, store.loads);
+
+        users.putAccessToken(joe, "token", "gg");
+        users.findUserByName("joe");
+        assertEquals(++loads, store.loads);
+
+        users.putData(joe, "gg", Collections.<String, Object>singletonMap("a", "b"));
+        users.findUserByName("joe");
+        assertEquals(++loads, store.loads);
+
+        users.update(joe).password("other").token("gg", "other").apply();
+        users.findUserByName("joe");
+        assertEquals(++loads, store.loads);
+
+        // Writes made to the store directly are reported by it
+        store.putData(joe, "gg", Collections.<String, Object>singletonMap("c", "d"));
+        users.findUserByName("joe");
+        assertEquals(++loads, store.loads);
+    }
+
+    @Test
+    public void testStaleUserServedOnErrorIfEnabled() throws Exception {
+        CachingUserFactory<MockUser> users = cache("0", "60");
+        MockUser joe = users.findUserByName("joe").get();
+        store.failure = new IllegalStateException("Database down");
+        assertSame(joe, users.findUserByName("joe").get());
+    }
+
+    @Test
+    public void testErrorsPropagateIfStaleIfErrorIsDisabled() throws Exception {
+        CachingUserFactory<MockUser> users = cache("0", "0");
+        users.findUserByName("joe");
+        store.failure = new IllegalStateException("Database down");
+        try {
+            users.findUserByName("joe");
+            fail("Should have thrown");
+        } catch (IllegalStateException ex) {
+            assertSame(store.failure, ex);
+        }
+    }
+
+    @Test
+    public void testLoadRacingAnInvalidationIsNotCached() throws Exception {
+        CachingUserFactory<MockUser> users = cache("60", "0");
+        final MockUser joe = store.findUserByName("joe").get();
+        store.loads = 0;
+        store.duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                store.putData(joe, "gg", Collections.<String, Object>singletonMap("a", "b"));
+            }
+        };
+        users.findUserByName("joe");
+        users.findUserByName("joe");
+        assertEquals(2, store.loads);
+        users.findUserByName("joe");
+        assertEquals(2, store.loads);
+    }
+
+    static final class Store extends MockUserFactory {
+
+        int loads;
+        int versionChecks;
+        RuntimeException failure;
+        Runnable duringLoad;
+
+        Store(UniqueIDs ids) {
+            super(ids);
+        }
+
+        @Override
+        public Optional<MockUser> findUserByName(String name) {
+            Optional<MockUser> result = loadUser(name);
+            Runnable r = duringLoad;
+            duringLoad = null;
+            if (r != null) {
+                r.run();
+            }
+            return result;
+        }
+
+        private Optional<MockUser> loadUser(String name) {
+            loads++;
+            if (failure != null) {
+                throw failure;
+            }
+            return super.findUserByName(name);
+        }
+
+        @Override
+        public long version(MockUser user) {
+            return ((Number) user.get("version")).longValue();
+        }
+
+        @Override
+        public Optional<Long> currentVersion(String userName) {
+            versionChecks++;
+            if (failure != null) {
+                throw failure;
+            }
+            Optional<MockUser> user = super.findUserByName(userName);
+            return user.isPresent() ? Optional.of(version(user.get())) : Optional.<Long>absent();
+        }
+
+        void bump(String userName) {
+            MockUser user = super.findUserByName(userName).get();
+            user.put("version", version(user) + 1);
+        }
+    }
+}
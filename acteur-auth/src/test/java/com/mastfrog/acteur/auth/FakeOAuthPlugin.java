@@ -47,6 +47,11 @@ class FakeOAuthPlugin extends OAuthPlugin<FakeCredential> {
 
     int ix = 0;
 
+    @Override
+    protected String getUserPictureURL(Map<String, Object> data) {
+        return (String) data.get("picture");
+    }
+
     @Override
     public RemoteUserInfo getRemoteUserInfo(FakeCredential credential) {
         return new Info(++ix);
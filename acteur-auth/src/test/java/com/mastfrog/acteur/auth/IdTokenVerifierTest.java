@@ -0,0 +1,199 @@
+package com.mastfrog.acteur.auth;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests ID token verification against a local stand-in for an OpenID
+ * Connect issuer which publishes a key set.
+ *
+ * @author Tim Boudreau
+ */
+public class IdTokenVerifierTest {
+
+    private static final String ISSUER = "https://issuer.example";
+    private static final String CLIENT_ID = "client-1";
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<Map<String, Object>> published = new CopyOnWriteArrayList<>();
+    private final AtomicInteger fetches = new AtomicInteger();
+    private HttpServer server;
+    private KeyPair keyPair;
+    private IdTokenVerifier verifier;
+
+    @Before
+    public void setUp() throws Exception {
+        keyPair = newKeyPair();
+        published.add(jwk("k1", keyPair));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/certs", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                fetches.incrementAndGet();
+                byte[] body = mapper.writeValueAsBytes(Collections.singletonMap("keys", published));
+                ex.getResponseHeaders().add("Content-Type", "application/json");
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        URL certs = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/certs");
+        // Allow refetching immediately on an unknown key id, so rotation
+        // can be tested without waiting a minute
+        JsonWebKeys keys = new JsonWebKeys(certs, mapper, Duration.ofHours(1), Duration.ZERO);
+        verifier = new IdTokenVerifier(keys, Arrays.asList(ISSUER), CLIENT_ID, mapper);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testValidToken() throws Exception {
+        Map<String, Object> claims = verifier.verify(sign("k1", keyPair, claims(CLIENT_ID, 300)));
+        assertEquals("someone@example.com", claims.get("email"));
+        assertEquals("12345", claims.get("sub"));
+        OpenIdConnectPlugin.Claims info = new OpenIdConnectPlugin.Claims(claims);
+        assertEquals("someone@example.com", info.userName());
+        assertEquals("Some One", info.displayName());
+        // Verifying again should use the cached key set
+        verifier.verify(sign("k1", keyPair, claims(CLIENT_ID, 300)));
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void testUnverifiedEmailIsNotUserName() throws Exception {
+        Map<String, Object> claims = claims(CLIENT_ID, 300);
+        claims.remove("email_verified");
+        assertEquals(ISSUER + "#12345", new OpenIdConnectPlugin.Claims(claims).userName());
+        claims.put("email_verified", "false");
+        assertEquals(ISSUER + "#12345", new OpenIdConnectPlugin.Claims(claims).userName());
+        claims.put("email_verified", "true");
+        assertEquals("someone@example.com", new OpenIdConnectPlugin.Claims(claims).userName());
+    }
+
+    @Test
+    public void testAudienceChecked() throws Exception {
+        assertRejected(sign("k1", keyPair, claims("someone-else", 300)));
+    }
+
+    @Test
+    public void testExpiryChecked() throws Exception {
+        assertRejected(sign("k1", keyPair, claims(CLIENT_ID, -3600)));
+    }
+
+    @Test
+    public void testSignatureChecked() throws Exception {
+        assertRejected(sign("k1", newKeyPair(), claims(CLIENT_ID, 300)));
+    }
+
+    @Test
+    public void testUnsignedTokenRejected() throws Exception {
+        Base64.Encoder enc = Base64.getUrlEncoder().withoutPadding();
+        String header = enc.encodeToString("{\"alg\":\"none\",\"kid\":\"k1\"}".getBytes(StandardCharsets.UTF_8));
+        String body = enc.encodeToString(mapper.writeValueAsBytes(claims(CLIENT_ID, 300)));
+        assertRejected(header + '.' + body + '.');
+        assertRejected(header + '.' + body + ".AAAA");
+    }
+
+    @Test
+    public void testRotatedKeyIsFetched() throws Exception {
+        verifier.verify(sign("k1", keyPair, claims(CLIENT_ID, 300)));
+        KeyPair rotated = newKeyPair();
+        published.add(jwk("k2", rotated));
+        Map<String, Object> claims = verifier.verify(sign("k2", rotated, claims(CLIENT_ID, 300)));
+        assertEquals("12345", claims.get("sub"));
+        assertEquals(2, fetches.get());
+    }
+
+    private void assertRejected(String token) throws IOException {
+        try {
+            verifier.verify(token);
+            fail("Should not have accepted " + token);
+        } catch (IllegalArgumentException ex) {
+            // ok
+        }
+    }
+
+    private static KeyPair newKeyPair() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(2048);
+        return gen.generateKeyPair();
+    }
+
+    private static Map<String, Object> jwk(String kid, KeyPair pair) {
+        RSAPublicKey pub = (RSAPublicKey) pair.getPublic();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("kty", "RSA");
+        result.put("use", "sig");
+        result.put("alg", "RS256");
+        result.put("kid", kid);
+        result.put("n", unsigned(pub.getModulus()));
+        result.put("e", unsigned(pub.getPublicExponent()));
+        return result;
+    }
+
+    private static String unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static Map<String, Object> claims(String audience, long expiresInSeconds) {
+        long now = System.currentTimeMillis() / 1000;
+        Map<String, Object> result = new HashMap<>();
+        result.put("iss", ISSUER);
+        result.put("aud", audience);
+        result.put("sub", "12345");
+        result.put("email", "someone@example.com");
+        result.put("email_verified", true);
+        result.put("name", "Some One");
+        result.put("iat", Math.min(now, now + expiresInSeconds) - 10);
+        result.put("exp", now + expiresInSeconds);
+        return result;
+    }
+
+    private String sign(String kid, KeyPair pair, Map<String, Object> claims) throws Exception {
+        Base64.Encoder enc = Base64.getUrlEncoder().withoutPadding();
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("alg", "RS256");
+        header.put("kid", kid);
+        String signed = enc.encodeToString(mapper.writeValueAsBytes(header)) + '.'
+                + enc.encodeToString(mapper.writeValueAsBytes(claims));
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(pair.getPrivate());
+        sig.update(signed.getBytes(StandardCharsets.US_ASCII));
+        return signed + '.' + enc.encodeToString(sig.sign());
+    }
+}
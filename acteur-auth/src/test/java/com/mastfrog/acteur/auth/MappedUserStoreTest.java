@@ -0,0 +1,95 @@
+package com.mastfrog.acteur.auth;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class MappedUserStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("users", ".map");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testSurvivesReopening() throws Exception {
+        long now = System.currentTimeMillis();
+        MappedUserStore store = new MappedUserStore(file, 64, 256, 60000);
+        for (int i = 0; i < 200; i++) {
+            store.put("name\0user" + i, "user" + i, bytes("value" + i), i, now);
+        }
+        int hits = 0;
+        for (int i = 0; i < 200; i++) {
+            MappedUserStore.Stored stored = store.get("name\0user" + i, now);
+            if (stored != null) {
+                hits++;
+                assertEquals("value" + i, new String(stored.bytes, StandardCharsets.UTF_8));
+                assertEquals(i, stored.version);
+            }
+        }
+        // The table is full, and the most recently written entry is present
+        assertEquals(64, hits);
+        assertNotNull(store.get("name\0user199", now));
+
+        store = new MappedUserStore(file, 64, 256, 60000);
+        MappedUserStore.Stored stored = store.get("name\0user199", now);
+        assertNotNull(stored);
+        assertEquals("value199", new String(stored.bytes, StandardCharsets.UTF_8));
+
+        store.invalidate("user199");
+        assertNull(store.get("name\0user199", now));
+    }
+
+    @Test
+    public void testExpiryAndLimits() throws Exception {
+        long now = System.currentTimeMillis();
+        MappedUserStore store = new MappedUserStore(file, 16, 128, 1000);
+        store.put("name\0a", "a", bytes("a"), 1, now);
+        assertNotNull(store.get("name\0a", now + 999));
+        assertNull(store.get("name\0a", now + 1000));
+        assertFalse(store.put("name\0b", "b", new byte[128], 1, now));
+        // A file with a different layout is discarded, not misread
+        store.put("name\0c", "c", bytes("c"), 1, now);
+        store = new MappedUserStore(file, 32, 128, 1000);
+        assertNull(store.get("name\0c", now));
+    }
+
+    @Test
+    public void testOnlyOwnerCanRead() throws Exception {
+        assumeTrue(file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+        new MappedUserStore(file, 16, 128, 1000);
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+        File nue = new File(file.getParentFile(), file.getName() + ".new");
+        try {
+            new MappedUserStore(nue, 16, 128, 1000);
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(nue.toPath())));
+        } finally {
+            nue.delete();
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -48,6 +48,7 @@ public class MockUserFactory extends UserFactory<MockUser> {
     public void setPasswordHash(MockUser on, String hash) {
         System.out.println("Set pw hach " + on + " to " + hash);
         on.put("pass", hash);
+        fireChanged(on, Change.PASSWORD, null);
     }
 
     @Override
@@ -73,6 +74,7 @@ public class MockUserFactory extends UserFactory<MockUser> {
             on.put("slugs", slugs);
         }
         slugs.put(slug.name, slug);
+        fireChanged(on, Change.SLUG, slug.name);
     }
 
     @Override
@@ -102,6 +104,7 @@ public class MockUserFactory extends UserFactory<MockUser> {
             putData(mu, plugin.name, properties);
         }
         all.put(name, mu);
+        fireChanged(mu, Change.CREATED, null);
         return mu;
     }
 
@@ -147,6 +150,7 @@ public class MockUserFactory extends UserFactory<MockUser> {
             on.put("tokens", tokens);
         }
         tokens.put(serviceName, token);
+        fireChanged(on, Change.TOKEN, serviceName);
     }
 
     @Override
@@ -179,8 +183,10 @@ public class MockUserFactory extends UserFactory<MockUser> {
         Map<String, Object> dta = (Map<String, Object>) user.get("data");
         if (dta == null) {
             dta = new HashMap<>();
+            user.put("data", dta);
         }
         dta.put(name, data);
+        fireChanged(user, Change.DATA, name);
     }
 
     @SuppressWarnings("unchecked")
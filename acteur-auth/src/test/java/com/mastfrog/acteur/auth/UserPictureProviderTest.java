@@ -0,0 +1,63 @@
+package com.mastfrog.acteur.auth;
+
+import com.mastfrog.acteur.auth.MockUserFactory.MockUser;
+import com.mastfrog.acteur.auth.OAuthPluginsTest.M;
+import com.mastfrog.acteur.auth.OAuthPluginsTest.SM;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+@RunWith(GuiceRunner.class)
+@TestWith({SM.class, M.class, UniqueIDs.UniqueIdsModule.class})
+public class UserPictureProviderTest {
+
+    @Test
+    public void testChangedDataIsSeen(UserPictureProvider pictures, MockUserFactory users, FakeOAuthPlugin plugin) {
+        MockUser user = users.newUser("pictured", (UserFactory.Slug) null, "Pictured", null, null);
+        users.putData(user, plugin.code(), picture("http://example.com/1.png"));
+        assertEquals("http://example.com/1.png", pictures.getUserPictureURL(user));
+        users.putData(user, plugin.code(), picture("http://example.com/2.png"));
+        assertEquals("http://example.com/2.png", pictures.getUserPictureURL(user));
+        assertEquals(Collections.singletonMap("pictured", "http://example.com/2.png"),
+                pictures.getUserPictureURLs(Arrays.asList(user)));
+    }
+
+    @Test
+    public void testChangeDuringResolutionIsNotCached(UserPictureProvider pictures, final MockUserFactory users, final FakeOAuthPlugin plugin) {
+        final MockUser user = users.newUser("racing", (UserFactory.Slug) null, "Racing", null, null);
+        // Data which is replaced while the old picture is being read from it
+        Map<String, Object> racing = new HashMap<String, Object>() {
+            boolean raced;
+
+            @Override
+            public Object get(Object key) {
+                Object result = super.get(key);
+                if (!raced) {
+                    raced = true;
+                    users.putData(user, plugin.code(), picture("http://example.com/new.png"));
+                }
+                return result;
+            }
+        };
+        racing.put("picture", "http://example.com/old.png");
+        users.putData(user, plugin.code(), racing);
+        assertEquals("http://example.com/old.png", pictures.getUserPictureURL(user));
+        assertEquals("http://example.com/new.png", pictures.getUserPictureURL(user));
+    }
+
+    private static Map<String, Object> picture(String url) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("picture", url);
+        return result;
+    }
+}
@@ -58,10 +58,32 @@ public class GoogleOAuthModule extends AbstractModule {
     public static final String SETTINGS_KEY_GOOGLE_CLIENT_SECRET = "google.client.secret";
     final NetHttpTransport transport = new NetHttpTransport();
     final JacksonFactory factory = new JacksonFactory();
+    private final boolean openIdConnect;
+
+    public GoogleOAuthModule() {
+        this(false);
+    }
+
+    /**
+     * Create a module, optionally using OpenID Connect rather than plain
+     * OAuth 2.  With OpenID Connect, the user's identity is taken from the
+     * ID token Google returns with the access token, verified locally
+     * against Google's published keys, saving a call to Google's userinfo
+     * API on every login.
+     *
+     * @param openIdConnect Whether to use OpenID Connect
+     */
+    public GoogleOAuthModule(boolean openIdConnect) {
+        this.openIdConnect = openIdConnect;
+    }
 
     @Override
     protected void configure() {
-        bind(GoogleOAuthPlugin.class).asEagerSingleton();
+        if (openIdConnect) {
+            bind(GoogleOpenIdConnectPlugin.class).asEagerSingleton();
+        } else {
+            bind(GoogleOAuthPlugin.class).asEagerSingleton();
+        }
         bind(HttpTransport.class).toInstance(transport);
         bind(JacksonFactory.class).toInstance(factory);
     }
@@ -0,0 +1,63 @@
+package com.mastfrog.acteur.google.auth;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.auth.OAuthPlugins;
+import com.mastfrog.acteur.auth.OpenIdConnectPlugin;
+import static com.mastfrog.acteur.google.auth.GoogleOAuthModule.SETTINGS_KEY_GOOGLE_CLIENT_ID;
+import static com.mastfrog.acteur.google.auth.GoogleOAuthModule.SETTINGS_KEY_GOOGLE_CLIENT_SECRET;
+import com.mastfrog.acteur.server.PathFactory;
+import com.mastfrog.settings.Settings;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+
+/**
+ * Google login via OpenID Connect - the user's identity comes from the
+ * verified ID token rather than a call to the userinfo API. Uses the same
+ * code as GoogleOAuthPlugin, so users created by either can log in with
+ * the other.
+ *
+ * @author Tim Boudreau
+ */
+final class GoogleOpenIdConnectPlugin extends OpenIdConnectPlugin {
+
+    /**
+     * Settings key for Google's OpenID Connect authorization endpoint.
+     * <b>Do not override</b> except to test against a mock service.
+     */
+    public static final String SETTINGS_KEY_AUTHORIZATION_ENDPOINT = "google.oidc.authorization.endpoint";
+    /**
+     * Settings key for Google's token endpoint.
+     */
+    public static final String SETTINGS_KEY_TOKEN_ENDPOINT = "google.oidc.token.endpoint";
+    /**
+     * Settings key for the URL of Google's JSON web key set.
+     */
+    public static final String SETTINGS_KEY_JWKS_URI = "google.oidc.jwks.uri";
+    /**
+     * Settings key for the expected issuer of ID tokens.
+     */
+    public static final String SETTINGS_KEY_ISSUER = "google.oidc.issuer";
+
+    @Inject
+    GoogleOpenIdConnectPlugin(@Named(SETTINGS_KEY_GOOGLE_CLIENT_ID) String clientId,
+            @Named(SETTINGS_KEY_GOOGLE_CLIENT_SECRET) String clientSecret,
+            PathFactory paths, Settings settings, OAuthPlugins plugins, ObjectMapper mapper) throws MalformedURLException {
+        super("Google", "gg", "/g-small.png", plugins, endpoints(settings), clientId, clientSecret,
+                Arrays.asList("openid", "email", "profile"), paths, mapper, settings);
+    }
+
+    private static Endpoints endpoints(Settings settings) throws MalformedURLException {
+        String issuer = settings.getString(SETTINGS_KEY_ISSUER);
+        // Google issues tokens with either form of the issuer
+        String[] issuers = issuer == null
+                ? new String[]{"https://accounts.google.com", "accounts.google.com"}
+                : new String[]{issuer};
+        return new Endpoints(
+                settings.getString(SETTINGS_KEY_AUTHORIZATION_ENDPOINT, "https://accounts.google.com/o/oauth2/v2/auth"),
+                settings.getString(SETTINGS_KEY_TOKEN_ENDPOINT, "https://oauth2.googleapis.com/token"),
+                settings.getString(SETTINGS_KEY_JWKS_URI, "https://www.googleapis.com/oauth2/v3/certs"),
+                issuers);
+    }
+}
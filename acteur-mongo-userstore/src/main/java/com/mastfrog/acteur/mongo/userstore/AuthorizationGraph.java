@@ -0,0 +1,384 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.mongo.userstore;
+
+import com.google.common.base.Optional;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.settings.Settings;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.bson.types.ObjectId;
+
+/**
+ * In-memory map of which users have authorized which other users to see
+ * their data, so that cross-user access checks do not query the database.
+ * <p/>
+ * The whole graph - each user's id, names, display name and authorized ids,
+ * nothing else - is loaded at startup. It is kept current by
+ * {@link MongoUserFactory#authorize} and {@link MongoUserFactory#deauthorize},
+ * and users changed by other servers are reloaded when the
+ * {@link UserInvalidationBus} reports them - including changes made while
+ * the graph was loading, since the bus starts from where it was before the
+ * load. A name not in the graph (say, a user created elsewhere with the bus
+ * disabled) is looked up in the database and added.
+ * <p/>
+ * The bus can still miss a change, if its capped collection wraps while a
+ * server is disconnected. So a user is reloaded from the database when it
+ * is used more than <code>user.authorization.graph.recheck.seconds</code>
+ * (default 60) after it was loaded; a missed deauthorization is honored
+ * within that time rather than never.
+ * <p/>
+ * The reverse direction - who has authorized a given user - is indexed as
+ * well, so listing the users sharing their data with someone is a single
+ * keyed lookup rather than a query over every user's authorizes list.
+ * <p/>
+ * The graph is only used when <code>user.invalidation.bus</code> is on,
+ * since without it a deauthorization on one server would never reach the
+ * graphs of the others, which would go on granting access until restarted;
+ * otherwise every check queries the database. Set
+ * <code>user.authorization.graph</code> to false to query the database
+ * even with the bus on.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class AuthorizationGraph {
+
+    public static final String SETTINGS_KEY_AUTHORIZATION_GRAPH = "user.authorization.graph";
+    public static final String SETTINGS_KEY_AUTHORIZATION_GRAPH_RECHECK_SECONDS = "user.authorization.graph.recheck.seconds";
+    private static final DBObject FIELDS = new BasicDBObject(TTUser.NAME, 1)
+            .append(TTUser.DISPLAY_NAME, 1)
+            .append(TTUser.AUTHORIZES, 1);
+    private static final ObjectId[] NONE = new ObjectId[0];
+    private final DBCollection users;
+    private final boolean enabled;
+    private final long recheckMillis;
+    private final ConcurrentMap<String, UserNode> byName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ObjectId, UserNode> byId = new ConcurrentHashMap<>();
+    // Grantee id to the ids of the users who have authorized them
+    private final ConcurrentMap<ObjectId, Set<ObjectId>> authorizers = new ConcurrentHashMap<>();
+
+    @Inject
+    AuthorizationGraph(@Named(MongoUserFactory.USERS_COLLECTION_NAME) DBCollection users, Settings settings,
+            UserInvalidationBus bus) {
+        this.users = users;
+        // Without the bus, nothing would tell this server about changes made
+        // by others.  Taking it as an argument also means it has noted
+        // where to follow from before the graph is loaded
+        enabled = bus.enabled() && settings.getBoolean(SETTINGS_KEY_AUTHORIZATION_GRAPH, true);
+        recheckMillis = settings.getLong(SETTINGS_KEY_AUTHORIZATION_GRAPH_RECHECK_SECONDS, 60) * 1000;
+        if (enabled) {
+            try (DBCursor cursor = users.find(new BasicDBObject(), FIELDS)) {
+                while (cursor.hasNext()) {
+                    add(cursor.next());
+                }
+            }
+        }
+    }
+
+    /**
+     * Find a user by name.
+     *
+     * @param name A user name
+     * @return The user's id, display name and authorizations, if there is
+     * such a user
+     */
+    public Optional<UserNode> find(String name) {
+        UserNode result = enabled ? current(byName.get(name)) : null;
+        if (result == null) {
+            DBObject ob = users.findOne(new BasicDBObject(TTUser.NAME, name), FIELDS);
+            if (ob != null) {
+                result = enabled ? add(ob) : node(ob);
+            }
+        }
+        return Optional.fromNullable(result);
+    }
+
+    /**
+     * Determine if the user with a given name has authorized another user to
+     * see their data.
+     *
+     * @param authorizerName The name of the user whose data is requested
+     * @param authorized The id of the user requesting it
+     * @return true if access is allowed
+     */
+    public boolean authorizes(String authorizerName, ObjectId authorized) {
+        Optional<UserNode> authorizer = find(authorizerName);
+        return authorizer.isPresent() && authorizer.get().authorizes(authorized);
+    }
+
+    /**
+     * Find the users who have authorized a user to see their data.
+     *
+     * @param authorized A user id
+     * @return The users who authorize it
+     */
+    public List<UserNode> authorizersOf(ObjectId authorized) {
+        List<UserNode> result = new ArrayList<>();
+        if (!enabled) {
+            try (DBCursor cursor = users.find(new BasicDBObject(TTUser.AUTHORIZES, authorized), FIELDS)) {
+                while (cursor.hasNext()) {
+                    result.add(node(cursor.next()));
+                }
+            }
+            return result;
+        }
+        Set<ObjectId> ids = authorizers.get(authorized);
+        if (ids != null) {
+            for (ObjectId id : ids) {
+                UserNode node = current(byId.get(id));
+                if (node != null && node.authorizes(authorized)) {
+                    result.add(node);
+                }
+            }
+        }
+        return result;
+    }
+
+    synchronized void authorized(ObjectId authorizer, ObjectId authorized) {
+        UserNode node = byId.get(authorizer);
+        if (node != null) {
+            node.add(authorized);
+            link(authorizer, authorized);
+        }
+    }
+
+    synchronized void deauthorized(ObjectId authorizer, ObjectId authorized) {
+        UserNode node = byId.get(authorizer);
+        if (node != null) {
+            node.remove(authorized);
+            unlink(authorizer, authorized);
+        }
+    }
+
+    private void link(ObjectId authorizer, ObjectId authorized) {
+        Set<ObjectId> ids = authorizers.get(authorized);
+        if (ids == null) {
+            ids = Collections.newSetFromMap(new ConcurrentHashMap<ObjectId, Boolean>(4));
+            Set<ObjectId> existing = authorizers.putIfAbsent(authorized, ids);
+            if (existing != null) {
+                ids = existing;
+            }
+        }
+        ids.add(authorizer);
+    }
+
+    private void unlink(ObjectId authorizer, ObjectId authorized) {
+        Set<ObjectId> ids = authorizers.get(authorized);
+        if (ids != null) {
+            ids.remove(authorizer);
+            if (ids.isEmpty()) {
+                authorizers.remove(authorized, ids);
+            }
+        }
+    }
+
+    Optional<String> nameOf(ObjectId id) {
+        UserNode node = enabled ? current(byId.get(id)) : null;
+        if (node == null) {
+            DBObject ob = users.findOne(new BasicDBObject(TTUser.ID, id), FIELDS);
+            if (ob != null) {
+                node = enabled ? add(ob) : node(ob);
+            }
+        }
+        return node == null ? Optional.<String>absent() : Optional.of(node.name());
+    }
+
+    /**
+     * Reload a user which was created or changed by another server.
+     *
+     * @param name The user's name
+     */
+    void refresh(String name) {
+        if (!enabled) {
+            return;
+        }
+        DBObject ob = users.findOne(new BasicDBObject(TTUser.NAME, name), FIELDS);
+        if (ob != null) {
+            add(ob);
+        }
+    }
+
+    /**
+     * Reload a node if it was loaded longer ago than the recheck interval,
+     * in case a change to it was missed.
+     *
+     * @return The node, a newer one, or null if the user no longer exists
+     */
+    private UserNode current(UserNode node) {
+        if (node == null || System.currentTimeMillis() - node.loadedAt < recheckMillis) {
+            return node;
+        }
+        DBObject ob = users.findOne(new BasicDBObject(TTUser.ID, node.id), FIELDS);
+        if (ob == null) {
+            remove(node);
+            return null;
+        }
+        return add(ob);
+    }
+
+    private synchronized void remove(UserNode node) {
+        if (byId.remove(node.id, node)) {
+            for (String name : node.names) {
+                byName.remove(name, node);
+            }
+            for (ObjectId authorized : node.authorizes) {
+                unlink(node.id, authorized);
+            }
+        }
+    }
+
+    void created(DBObject user) {
+        if (enabled) {
+            add(user);
+        }
+    }
+
+    private synchronized UserNode add(DBObject ob) {
+        UserNode node = node(ob);
+        if (node.id == null) {
+            return node;
+        }
+        UserNode old = byId.put(node.id, node);
+        if (old != null) {
+            for (String name : old.names) {
+                byName.remove(name, old);
+            }
+            for (ObjectId authorized : old.authorizes) {
+                unlink(old.id, authorized);
+            }
+        }
+        for (String name : node.names) {
+            byName.put(name, node);
+        }
+        for (ObjectId authorized : node.authorizes) {
+            link(node.id, authorized);
+        }
+        return node;
+    }
+
+    private static UserNode node(DBObject ob) {
+        ObjectId[] authorizes = NONE;
+        Object o = ob.get(TTUser.AUTHORIZES);
+        if (o instanceof Collection<?>) {
+            List<ObjectId> ids = new ArrayList<>(((Collection<?>) o).size());
+            for (Object id : (Collection<?>) o) {
+                if (id instanceof ObjectId) {
+                    ids.add((ObjectId) id);
+                }
+            }
+            authorizes = ids.toArray(new ObjectId[ids.size()]);
+            Arrays.sort(authorizes);
+        }
+        return new UserNode((ObjectId) ob.get(TTUser.ID), TTUser.names(ob.get(TTUser.NAME)),
+                (String) ob.get(TTUser.DISPLAY_NAME), authorizes);
+    }
+
+    /**
+     * One user in the graph.
+     */
+    public static final class UserNode {
+
+        private final ObjectId id;
+        private final String[] names;
+        private final String displayName;
+        private final long loadedAt = System.currentTimeMillis();
+        // Replaced, never modified, so reads need no lock
+        private volatile ObjectId[] authorizes;
+
+        UserNode(ObjectId id, String[] names, String displayName, ObjectId[] authorizes) {
+            this.id = id;
+            this.names = names;
+            this.displayName = displayName;
+            this.authorizes = authorizes;
+        }
+
+        public ObjectId id() {
+            return id;
+        }
+
+        public String name() {
+            return names.length == 0 ? "[no name]" : names[0];
+        }
+
+        public List<String> names() {
+            return Collections.unmodifiableList(Arrays.asList(names));
+        }
+
+        public String displayName() {
+            return displayName == null ? name() : displayName;
+        }
+
+        /**
+         * Determine if this user has authorized another to see their data.
+         *
+         * @param other The other user's id
+         * @return true if so
+         */
+        public boolean authorizes(ObjectId other) {
+            return other != null && Arrays.binarySearch(authorizes, other) >= 0;
+        }
+
+        synchronized void add(ObjectId other) {
+            ObjectId[] old = authorizes;
+            int ix = Arrays.binarySearch(old, other);
+            if (ix < 0) {
+                ix = -ix - 1;
+                ObjectId[] nue = new ObjectId[old.length + 1];
+                System.arraycopy(old, 0, nue, 0, ix);
+                nue[ix] = other;
+                System.arraycopy(old, ix, nue, ix + 1, old.length - ix);
+                authorizes = nue;
+            }
+        }
+
+        synchronized void remove(ObjectId other) {
+            ObjectId[] old = authorizes;
+            int ix = Arrays.binarySearch(old, other);
+            if (ix >= 0) {
+                ObjectId[] nue = new ObjectId[old.length - 1];
+                System.arraycopy(old, 0, nue, 0, ix);
+                System.arraycopy(old, ix + 1, nue, ix, old.length - ix - 1);
+                authorizes = nue;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name() + " (" + id + ")";
+        }
+    }
+}
@@ -38,7 +38,7 @@ final class DefaultUserObjectAdapter implements UserObjectAdapter {
 
     @Override
     public DBObject toUserObject(Object user) {
-        return ((TTUser) user).obj;
+        return ((TTUser) user).toDBObject();
     }
 
 }
@@ -24,25 +24,30 @@
 package com.mastfrog.acteur.mongo.userstore;
 
 import com.google.common.base.Optional;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.mastfrog.acteur.auth.OAuthPlugin;
 import com.mastfrog.acteur.auth.UniqueIDs;
 import com.mastfrog.acteur.auth.UserFactory;
+import com.mastfrog.acteur.mongo.userstore.UserWrites.WriteKind;
 import com.mastfrog.util.Checks;
 import com.mastfrog.util.time.TimeUtil;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DuplicateKeyException;
 import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import javax.inject.Inject;
+import org.bson.BasicBSONEncoder;
 import org.bson.types.ObjectId;
 
 /**
@@ -50,6 +55,7 @@ import org.bson.types.ObjectId;
  *
  * @author Tim Boudreau
  */
+@Singleton
 public final class MongoUserFactory extends UserFactory<DBObject> {
 
     private final DBCollection users;
@@ -57,16 +63,52 @@ public final class MongoUserFactory extends UserFactory<DBObject> {
     public static final String LOGIN_STATE_COLLECTION_NAME = "login";
     private final DBCollection loginStates;
     private final UserObjectAdapter adap;
+    private final UserInvalidationBus bus;
+    private final UserWrites writes;
+    private final UserIndexes indexes;
+    private final AuthorizationGraph graph;
+    // The fields authentication needs - everything but the data blobs
+    // stored for each OAuth plugin, the visitor cookie and OAuth access
+    // tokens, which are only used to revalidate a login
+    private static final DBObject AUTH_FIELDS = new BasicDBObject(TTUser.NAME, 1)
+            .append(TTUser.DISPLAY_NAME, 1)
+            .append(TTUser.VERSION, 1)
+            .append(TTUser.HASHED_PASSWORD, 1)
+            .append(TTUser.AUTHORIZES, 1)
+            .append(TTUser.AUTH_INFO, 1)
+            .append(TTUser.CREATED, 1)
+            .append(TTUser.LAST_MODIFIED, 1)
+            .append("slugs", 1);
 
     @Inject
     public MongoUserFactory(UniqueIDs ids,
             @Named(USERS_COLLECTION_NAME) DBCollection users,
             @Named(LOGIN_STATE_COLLECTION_NAME) DBCollection loginStates,
-            UserObjectAdapter adap) {
+            UserObjectAdapter adap, UserInvalidationBus bus, UserWrites writes,
+            UserIndexes indexes, AuthorizationGraph graph) {
         super(DBObject.class, ids);
         this.users = users;
         this.loginStates = loginStates;
         this.adap = adap;
+        this.bus = bus;
+        this.writes = writes;
+        this.indexes = indexes;
+        this.graph = graph;
+        bus.listen(new UserInvalidationBus.Receiver() {
+            @Override
+            public void changed(String userName, Change change, String name) {
+                if (change == Change.CREATED || change == Change.AUTHORIZATION
+                        || change == Change.DISPLAY_NAME || change == Change.UPDATE) {
+                    MongoUserFactory.this.graph.refresh(userName);
+                }
+                fireChangedByName(userName, change, name);
+            }
+        });
+    }
+
+    private void changed(DBObject user, Change change, String name) {
+        fireChanged(user, change, name);
+        bus.publish(getUserName(user), change, name);
     }
 
     @Override
@@ -77,11 +119,23 @@ public final class MongoUserFactory extends UserFactory<DBObject> {
         return Optional.fromNullable(user);
     }
     
+    /**
+     * Returns a partial record, holding only the fields in
+     * <code>AUTH_FIELDS</code> - no access tokens and no plugin data.
+     */
+    @Override
+    public Optional<DBObject> findUserForAuthentication(String name) {
+        Checks.notNull("name", name);
+        DBObject user = users.findOne(new BasicDBObject("name", name), AUTH_FIELDS);
+        return Optional.fromNullable(user);
+    }
+
     @Override
     public Optional<DBObject> findUserBy(String key, String value) {
         Checks.notNull("key", key);
         Checks.notNull("value", value);
         Checks.mayNotContain("key", key, '$', '(', ')'); //avoid injection
+        indexes.ensure(key);
         BasicDBObject query = new BasicDBObject(key, value);
         DBObject user = users.findOne(query);
         return Optional.fromNullable(user);
@@ -96,11 +150,34 @@ public final class MongoUserFactory extends UserFactory<DBObject> {
     public void setPasswordHash(DBObject on, String hash) {
         DBObject query = new BasicDBObject("_id", on.get("_id"));
 
-        DBObject update = new BasicDBObject("$set", new BasicDBObject("pass", hash)).append("$inc",
-                new BasicDBObject("version", 1))
-                .append("$set", new BasicDBObject("lastModified", System.currentTimeMillis()));
+        DBObject update = new BasicDBObject("$set", new BasicDBObject("pass", hash)
+                .append("lastModified", System.currentTimeMillis()))
+                .append("$inc", new BasicDBObject("version", 1));
 
-        WriteResult res = users.update(query, update, false, false, WriteConcern.FSYNCED);
+        writes.update(query, update, WriteKind.CREDENTIALS);
+        changed(on, Change.PASSWORD, null);
+    }
+
+    /**
+     * Change a user's display name.
+     *
+     * @param on The user - only its id and name are needed
+     * @param displayName The new display name
+     * @return The number of users updated, or -1 if the write concern for
+     * data does not wait for an answer
+     */
+    public int setDisplayName(DBObject on, String displayName) {
+        DBObject query = new BasicDBObject("_id", on.get("_id"));
+        DBObject update = new BasicDBObject("$set", new BasicDBObject(TTUser.DISPLAY_NAME, displayName)
+                .append("lastModified", System.currentTimeMillis()))
+                .append("$inc", new BasicDBObject("version", 1));
+        int result = writes.update(query, update, WriteKind.DATA);
+        if (result != 0) {
+            // The graph holds display names too
+            graph.refresh(getUserName(on));
+            changed(on, Change.DISPLAY_NAME, null);
+        }
+        return result;
     }
 
     @Override
@@ -116,7 +193,8 @@ public final class MongoUserFactory extends UserFactory<DBObject> {
                 .append("created", slug.created);
         DBObject update = new BasicDBObject("$set", new BasicDBObject("slugs." + slug.name, slugObj).append("lastModified", System.currentTimeMillis())).append("$inc",
                 new BasicDBObject("version", 1));
-        WriteResult res = users.update(query, update, false, false, WriteConcern.FSYNCED);
+        writes.update(query, update, WriteKind.CREDENTIALS);
+        changed(on, Change.SLUG, slug.name);
     }
 
     @Override
@@ -148,7 +226,8 @@ public final class MongoUserFactory extends UserFactory<DBObject> {
 
         DBObject update = new BasicDBObject("$set", new BasicDBObject("tokens." + serviceName, token)).append("$inc",
                 new BasicDBObject("version", 1));
-        WriteResult res = users.update(query, update, false, false, WriteConcern.FSYNCED);
+        writes.update(query, update, WriteKind.CREDENTIALS);
+        changed(on, Change.TOKEN, serviceName);
     }
 
     @Override
@@ -159,11 +238,6 @@ public final class MongoUserFactory extends UserFactory<DBObject> {
 
     @Override
     public DBObject newUser(String name, Slug slug, String displayName, Map<String, Object> properties, OAuthPlugin plugin) {
-        DBObject query = new BasicDBObject("name", name);
-        DBObject existing = users.findOne(query);
-        if (existing != null) {
-            return null;
-        }
         DBObject slugData = new BasicDBObject("created", slug.created).append("slug", slug.slug);
         List<String> names = new ArrayList<>(Arrays.asList(name));
         List<ObjectId> authorizes = new ArrayList<>();
@@ -181,18 +255,26 @@ public final class MongoUserFactory extends UserFactory<DBObject> {
             String nm = "data_" + plugin.code();
             toWrite.append(nm, properties);
         }
-        WriteResult res = users.insert(toWrite);
+        if (!insertUser(name, toWrite)) {
+            return null;
+        }
+        graph.created(toWrite);
+        changed(toWrite, Change.CREATED, null);
         return toWrite;
     }
 
+    /**
+     * Create a user with a password.
+     *
+     * @param name The user name
+     * @param hashedPassword The hashed password
+     * @param displayName The display name
+     * @param properties Additional fields to store in the record, if any;
+     * those this method sets itself are not overwritten
+     * @return The new user, or null if a user with the name already exists
+     */
     @Override
     public DBObject newUser(String name, String hashedPassword, String displayName, Map<String, Object> properties) {
-        DBObject query = new BasicDBObject("name", name);
-        DBObject existing = users.findOne(query);
-        if (existing != null) {
-            System.out.println("User already exists: " + existing);
-            return null;
-        }
         List<ObjectId> authorizes = new ArrayList<>();
         List<String> names = new ArrayList<>(Arrays.asList(name));
         long now = System.currentTimeMillis();
@@ -205,51 +287,122 @@ public final class MongoUserFactory extends UserFactory<DBObject> {
                 .append("tokens", new BasicDBObject())
                 .append("pass", hashedPassword)
                 .append("authorizes", authorizes);
-        WriteResult res = users.insert(toWrite);
+        if (properties != null) {
+            for (Map.Entry<String, Object> e : properties.entrySet()) {
+                if (!toWrite.containsField(e.getKey()) && !"_id".equals(e.getKey())) {
+                    toWrite.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        if (!insertUser(name, toWrite)) {
+            return null;
+        }
+        graph.created(toWrite);
+        changed(toWrite, Change.CREATED, null);
         return toWrite;
     }
 
+    /**
+     * Insert a new user in one round trip, relying on the unique index on
+     * names to reject it if the name is taken.
+     *
+     * @return false if a user with the name already exists
+     */
+    private boolean insertUser(String name, DBObject toWrite) {
+        if (!indexes.namesAreUnique()) {
+            // Fall back to checking first, which is racy
+            if (users.findOne(new BasicDBObject("name", name), new BasicDBObject("_id", 1)) != null) {
+                return false;
+            }
+        }
+        // A duplicate can only be detected if the write is acknowledged
+        WriteConcern concern = writes.concern(WriteKind.CREDENTIALS);
+        if (!concern.isAcknowledged()) {
+            concern = WriteConcern.ACKNOWLEDGED;
+        }
+        try {
+            users.insert(toWrite, concern);
+            return true;
+        } catch (DuplicateKeyException ex) {
+            return false;
+        }
+    }
+
     @Override
     protected void saveLoginState(LoginState state) {
         DBObject writeTo = new BasicDBObject("state", state.state)
                 .append("created", state.created.toInstant().toEpochMilli())
-                .append("redir", state.redirectTo);
-        WriteResult res = loginStates.insert(writeTo);
+                .append("redir", state.redirectTo)
+                .append(UserIndexes.LOGIN_STATE_EXPIRY_FIELD, Date.from(state.created.toInstant()));
+        loginStates.insert(writeTo, writes.concern(WriteKind.LOGIN));
     }
 
     @Override
     public Optional<LoginState> lookupLoginState(String state) {
         Checks.notNull("state", state);
         DBObject query = new BasicDBObject("state", state);
-        DBObject result = loginStates.findOne(query);
+        // Mark it used and get what it was before in one atomic operation,
+        // so of two concurrent callbacks exactly one sees it unused
+        DBObject result = loginStates.findAndModify(query, null, null, false,
+                new BasicDBObject("$set", new BasicDBObject("used", true)), false, false);
         if (result != null) {
             Number n = (Number) result.get("created");
             ZonedDateTime created = TimeUtil.fromUnixTimestamp(n.longValue());
             String redir = (String) result.get("redir");
             boolean used = Boolean.TRUE.equals(result.get("used"));
-            result.put("used", true);
-            loginStates.save(query, WriteConcern.UNACKNOWLEDGED);
             return Optional.of(new LoginState(state, redir, created, used));
         }
         return Optional.absent();
     }
 
-    public void authorize(ObjectId authorizer, ObjectId authorized) {
+    /**
+     * Authorize another user to see a user's data.
+     *
+     * @param authorizer The user whose data it is
+     * @param authorized The other user
+     * @return The number of users updated - 0 if there is no user with the
+     * id <code>authorizer</code> - or -1 if the write concern for
+     * authorization does not wait for an answer
+     */
+    public int authorize(ObjectId authorizer, ObjectId authorized) {
         BasicDBObject query = new BasicDBObject("_id", authorizer);
         BasicDBObject update = new BasicDBObject("$addToSet", new BasicDBObject("authorizes", authorized));
         BasicDBObject inc = new BasicDBObject("version", 1);
         update.append("$inc", inc);
         update.append("$set", new BasicDBObject("lastModified", System.currentTimeMillis()));
-        WriteResult res = users.update(query, update, false, false, WriteConcern.FSYNCED);
+        int result = writes.update(query, update, WriteKind.AUTHORIZATION);
+        graph.authorized(authorizer, authorized);
+        authorizationChanged(authorizer);
+        return result;
     }
 
-    public void deauthorize(ObjectId authorizer, ObjectId authorized) {
+    /**
+     * Stop authorizing another user to see a user's data.
+     *
+     * @param authorizer The user whose data it is
+     * @param authorized The other user
+     * @return The number of users updated - 0 if there is no user with the
+     * id <code>authorizer</code> - or -1 if the write concern for
+     * authorization does not wait for an answer
+     */
+    public int deauthorize(ObjectId authorizer, ObjectId authorized) {
         BasicDBObject query = new BasicDBObject("_id", authorizer);
         BasicDBObject update = new BasicDBObject("$pull", new BasicDBObject("authorizes", authorized));
         BasicDBObject inc = new BasicDBObject("version", 1);
         update.append("$inc", inc);
         update.append("$set", new BasicDBObject("lastModified", System.currentTimeMillis()));
-        WriteResult res = users.update(query, update, false, false, WriteConcern.FSYNCED);
+        int result = writes.update(query, update, WriteKind.AUTHORIZATION);
+        graph.deauthorized(authorizer, authorized);
+        authorizationChanged(authorizer);
+        return result;
+    }
+
+    private void authorizationChanged(ObjectId authorizer) {
+        Optional<String> name = graph.nameOf(authorizer);
+        if (name.isPresent()) {
+            fireChangedByName(name.get(), Change.AUTHORIZATION, null);
+            bus.publish(name.get(), Change.AUTHORIZATION, null);
+        }
     }
 
     @Override
@@ -277,10 +430,86 @@ public final class MongoUserFactory extends UserFactory<DBObject> {
     public void putData(DBObject user, String name, Map<String, Object> data) {
         String nm = "data_" + name;
         BasicDBObject query = new BasicDBObject("_id", user.get("_id"));
-        BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(nm, new BasicDBObject(data)));
+        BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(nm, new BasicDBObject(data))
+                .append("lastModified", System.currentTimeMillis()));
         BasicDBObject inc = new BasicDBObject("version", 1);
         update.append("$inc", inc);
-        update.append("$set", new BasicDBObject("lastModified", System.currentTimeMillis()));
-        WriteResult res = users.update(query, update, false, false, WriteConcern.ACKNOWLEDGED);
+        writes.update(query, update, WriteKind.DATA);
+        changed(user, Change.DATA, name);
+    }
+
+    @Override
+    public long version(DBObject user) {
+        Number n = (Number) user.get("version");
+        return n == null ? -1 : n.longValue();
+    }
+
+    @Override
+    public Optional<Long> currentVersion(String userName) {
+        DBObject result = users.findOne(new BasicDBObject("name", userName),
+                new BasicDBObject("version", 1).append("_id", 0));
+        if (result == null) {
+            return Optional.absent();
+        }
+        Number n = (Number) result.get("version");
+        return n == null ? Optional.<Long>absent() : Optional.of(n.longValue());
+    }
+
+    @Override
+    public byte[] toBytes(DBObject user) {
+        // The result may be written to disk, so keep only what
+        // authentication needs
+        BasicDBObject copy = new BasicDBObject("_id", user.get("_id"));
+        for (String key : AUTH_FIELDS.keySet()) {
+            if (user.containsField(key)) {
+                copy.append(key, user.get(key));
+            }
+        }
+        return new BasicBSONEncoder().encode(copy);
+    }
+
+    @Override
+    public DBObject fromBytes(byte[] bytes) {
+        return new DefaultDBDecoder().decode(bytes, users);
+    }
+
+    @Override
+    protected void applyUpdate(DBObject on, UserUpdate update) {
+        // Apply everything as one $set, rather than one durable write (and
+        // one version bump) per field
+        BasicDBObject set = new BasicDBObject();
+        if (update.passwordHash() != null) {
+            set.append("pass", update.passwordHash());
+        }
+        for (Slug slug : update.slugs().values()) {
+            set.append("slugs." + slug.name, new BasicDBObject("slug", slug.slug)
+                    .append("created", slug.created));
+        }
+        for (Map.Entry<String, Map<String, Object>> e : update.data().entrySet()) {
+            set.append("data_" + e.getKey(), new BasicDBObject(e.getValue()));
+        }
+        for (Map.Entry<String, String> e : update.tokens().entrySet()) {
+            set.append("tokens." + e.getKey(), e.getValue());
+        }
+        set.append("lastModified", System.currentTimeMillis());
+        BasicDBObject query = new BasicDBObject("_id", on.get("_id"));
+        BasicDBObject mods = new BasicDBObject("$set", set)
+                .append("$inc", new BasicDBObject("version", 1));
+        writes.update(query, mods, WriteKind.CREDENTIALS);
+        // One write, so one notification, locally and on the bus - naming
+        // the change only if there was just one
+        int changes = (update.passwordHash() == null ? 0 : 1) + update.slugs().size()
+                + update.data().size() + update.tokens().size();
+        if (changes > 1) {
+            changed(on, Change.UPDATE, null);
+        } else if (update.passwordHash() != null) {
+            changed(on, Change.PASSWORD, null);
+        } else if (!update.slugs().isEmpty()) {
+            changed(on, Change.SLUG, update.slugs().keySet().iterator().next());
+        } else if (!update.data().isEmpty()) {
+            changed(on, Change.DATA, update.data().keySet().iterator().next());
+        } else if (!update.tokens().isEmpty()) {
+            changed(on, Change.TOKEN, update.tokens().keySet().iterator().next());
+        }
     }
 }
@@ -26,23 +26,38 @@ package com.mastfrog.acteur.mongo.userstore;
 import com.google.common.base.Optional;
 import com.mastfrog.acteur.auth.User;
 import com.mastfrog.util.time.TimeUtil;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.bson.types.ObjectId;
 
 /**
+ * An authenticated user. Decoded once from the user's record into compact,
+ * immutable fields, so that access checks do not cast and walk maps, and
+ * the record itself is not retained for the life of the request.
+ * <p/>
+ * This is the typed form of a user document, and stands in for a BSON
+ * codec: the user store reads records through the legacy
+ * <code>DBCollection</code> API and hands them out as the
+ * <code>DBObject</code>s its <code>UserFactory</code> deals in, so there
+ * is nowhere a codec could decode into this class directly. Instead the
+ * record is converted once, by {@link DefaultUserObjectAdapter}, and
+ * {@link #toDBObject()} converts it back without loss.
  *
  * @author Tim Boudreau
  */
 public final class TTUser implements User<ObjectId> {
 
-    final DBObject obj;
     public static final String HASHED_PASSWORD = "pass";
     public static final String DISPLAY_NAME = "displayName";
     public static final String AUTHORIZES = "authorizes";
@@ -54,109 +69,383 @@ public final class TTUser implements User<ObjectId> {
     public static final String CREATED = "created";
     public static final String LAST_MODIFIED = "lastModified";
     public static final String TOKEN = "token";
+    private static final String DATA_PREFIX = "data_";
+    private final ObjectId id;
+    private final String[] names;
+    private final String displayName;
+    private final String hashedPassword;
+    private final int version;
+    // Record timestamps, or 0 if the record has none
+    private final long created;
+    private final long lastModified;
+    // The ids of users this user authorizes, as 12-byte object ids split
+    // into the first 8 and last 4 bytes, sorted for binary search
+    private final long[] authorizedHigh;
+    private final int[] authorizedLow;
+    private final Map<String, OAuthInfo> authInfo;
+    // Per-plugin data is only converted to a map if asked for
+    private final Map<String, DataHolder> data;
 
     TTUser(DBObject obj) {
-        this.obj = obj;
+        this((ObjectId) obj.get(ID), names(obj.get(NAME)), (String) obj.get(DISPLAY_NAME),
+                (String) obj.get(HASHED_PASSWORD), (Number) obj.get(VERSION),
+                recordTimestamp(obj.get(CREATED)), recordTimestamp(obj.get(LAST_MODIFIED)),
+                authorized(obj.get(AUTHORIZES)),
+                authInfo(obj.get(AUTH_INFO), obj.get("slugs"), obj.get("tokens")),
+                dataHolders(obj));
+    }
+
+    TTUser(ObjectId id, String[] names, String displayName, String hashedPassword,
+            Number version, long created, long lastModified, byte[][] authorized, Map<String, OAuthInfo> authInfo,
+            Map<String, DataHolder> data) {
+        this.id = id;
+        this.names = names;
+        this.displayName = displayName;
+        this.hashedPassword = hashedPassword;
+        this.version = version == null ? 0 : version.intValue();
+        this.created = created;
+        this.lastModified = lastModified;
+        authorizedHigh = new long[authorized.length];
+        authorizedLow = new int[authorized.length];
+        for (int i = 0; i < authorized.length; i++) {
+            authorizedHigh[i] = high(authorized[i]);
+            authorizedLow[i] = low(authorized[i]);
+        }
+        this.authInfo = authInfo;
+        this.data = data == null || data.isEmpty() ? Collections.<String, DataHolder>emptyMap() : data;
+    }
+
+    private static Map<String, DataHolder> dataHolders(DBObject obj) {
+        Map<String, DataHolder> result = null;
+        for (String key : obj.keySet()) {
+            if (isDataField(key) && obj.get(key) instanceof DBObject) {
+                if (result == null) {
+                    result = new LinkedHashMap<>(4);
+                }
+                result.put(pluginCode(key), new DataHolder((DBObject) obj.get(key)));
+            }
+        }
+        return result;
+    }
+
+    static boolean isDataField(String key) {
+        return key.startsWith(DATA_PREFIX) && key.length() > DATA_PREFIX.length();
+    }
+
+    static String pluginCode(String dataField) {
+        return dataField.substring(DATA_PREFIX.length()).intern();
+    }
+
+    static String[] names(Object o) {
+        if (o instanceof String) {
+            return new String[]{((String) o).intern()};
+        }
+        if (!(o instanceof Collection<?>)) {
+            return new String[0];
+        }
+        Collection<?> c = (Collection<?>) o;
+        String[] result = new String[c.size()];
+        int ix = 0;
+        for (Object name : c) {
+            result[ix++] = ((String) name).intern();
+        }
+        return result;
+    }
+
+    static byte[][] authorized(Object o) {
+        if (!(o instanceof Collection<?>)) {
+            return new byte[0][];
+        }
+        Collection<?> c = (Collection<?>) o;
+        List<byte[]> ids = new ArrayList<>(c.size());
+        for (Object id : c) {
+            if (id instanceof ObjectId) {
+                ids.add(((ObjectId) id).toByteArray());
+            }
+        }
+        byte[][] result = ids.toArray(new byte[ids.size()][]);
+        // Comparing bytes as unsigned is the same as comparing the packed
+        // halves as unsigned numbers
+        Arrays.sort(result, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                for (int i = 0; i < a.length; i++) {
+                    int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                }
+                return 0;
+            }
+        });
+        return result;
+    }
+
+    private static long high(byte[] objectId) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (objectId[i] & 0xFF);
+        }
+        return result;
+    }
+
+    private static int low(byte[] objectId) {
+        int result = 0;
+        for (int i = 8; i < 12; i++) {
+            result = (result << 8) | (objectId[i] & 0xFF);
+        }
+        return result;
+    }
+
+    static Map<String, OAuthInfo> authInfo(Object auths, Object slugs, Object tokens) {
+        Map<String, OAuthInfo> result = new LinkedHashMap<>(4);
+        if (auths instanceof DBObject) {
+            // Older records
+            DBObject m = (DBObject) auths;
+            for (String code : m.keySet()) {
+                Object info = m.get(code);
+                if (info instanceof DBObject) {
+                    DBObject ob = (DBObject) info;
+                    result.put(code.intern(), new OAuthInfoImpl(code.intern(), (String) ob.get(SLUG),
+                            timestamp(ob.get(LAST_MODIFIED)), (String) ob.get(TOKEN)));
+                }
+            }
+        }
+        if (slugs instanceof DBObject) {
+            DBObject m = (DBObject) slugs;
+            for (String code : m.keySet()) {
+                Object slug = m.get(code);
+                if (slug instanceof DBObject && !result.containsKey(code)) {
+                    DBObject ob = (DBObject) slug;
+                    Object token = tokens instanceof DBObject ? ((DBObject) tokens).get(code) : null;
+                    result.put(code.intern(), new OAuthInfoImpl(code.intern(), (String) ob.get(SLUG),
+                            timestamp(ob.get(CREATED)), token instanceof String ? (String) token : null));
+                }
+            }
+        }
+        return result.isEmpty() ? Collections.<String, OAuthInfo>emptyMap() : result;
+    }
+
+    private static long recordTimestamp(Object o) {
+        return o instanceof Date || o instanceof Number ? timestamp(o) : 0;
+    }
+
+    private static long timestamp(Object o) {
+        if (o instanceof Date) {
+            return ((Date) o).getTime();
+        } else if (o instanceof Number) {
+            return ((Number) o).longValue();
+        }
+        return System.currentTimeMillis();
     }
 
-    @SuppressWarnings("unchecked")
     public boolean authorizes(ObjectId id) {
-        List<ObjectId> l = (List<ObjectId>) obj.get(AUTHORIZES);
-        return l == null ? false : l.contains(id);
+        if (id == null || authorizedHigh.length == 0) {
+            return false;
+        }
+        byte[] bytes = id.toByteArray();
+        long high = high(bytes);
+        int low = low(bytes);
+        int lo = 0;
+        int hi = authorizedHigh.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareUnsigned(authorizedHigh[mid], high);
+            if (cmp == 0) {
+                cmp = compareUnsigned(authorizedLow[mid], low);
+            }
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+    }
+
+    private static int compareUnsigned(int a, int b) {
+        return Integer.compare(a + Integer.MIN_VALUE, b + Integer.MIN_VALUE);
     }
 
+    @Override
     public int version() {
-        Number n = (Number) obj.get(VERSION);
-        return n == null ? 0 : n.intValue();
+        return version;
     }
 
+    @Override
     public String idAsString() {
-        ObjectId id = (ObjectId) obj.get("_id");
         return "" + id;
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public List<String> names() {
-        List<String> l = (List<String>) obj.get(NAME);
-        return l == null ? Collections.<String>emptyList() : l;
+        return Collections.unmodifiableList(Arrays.asList(names));
     }
 
     @Override
     public String name() {
-        List<String> l = names();
-        return l.isEmpty() ? "[no name]" : l.get(0);
+        return names.length == 0 ? "[no name]" : names[0];
     }
 
     @Override
     public ObjectId id() {
-        return (ObjectId) obj.get(ID);
+        return id;
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public List<ObjectId> authorizes() {
-        List<ObjectId> authorizes = (List<ObjectId>) obj.get(AUTHORIZES);
-        return authorizes == null ? Collections.<ObjectId>emptyList() : authorizes;
+        List<ObjectId> result = new ArrayList<>(authorizedHigh.length);
+        for (int i = 0; i < authorizedHigh.length; i++) {
+            byte[] bytes = new byte[12];
+            long high = authorizedHigh[i];
+            for (int j = 7; j >= 0; j--) {
+                bytes[j] = (byte) high;
+                high >>>= 8;
+            }
+            int low = authorizedLow[i];
+            for (int j = 11; j >= 8; j--) {
+                bytes[j] = (byte) low;
+                low >>>= 8;
+            }
+            result.add(new ObjectId(bytes));
+        }
+        return Collections.unmodifiableList(result);
     }
 
     @Override
     public String displayName() {
-        String result = (String) obj.get(DISPLAY_NAME);
-        return result == null ? name() : result;
+        return displayName == null ? name() : displayName;
     }
 
     @Override
     public String hashedPassword() {
-        return (String) obj.get(HASHED_PASSWORD);
+        return hashedPassword;
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public Set<String> authInfoNames() {
-        Map<String, Object> m = (Map<String, Object>) obj.get(AUTH_INFO);
-        return m == null ? Collections.<String>emptySet() : m.keySet();
+        return Collections.unmodifiableSet(authInfo.keySet());
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public Optional<OAuthInfo> authInfo(String serviceCode) {
-        Map<String, Object> m = (Map<String, Object>) obj.get(AUTH_INFO);
-        DBObject ob = (DBObject) m.get(serviceCode);
-        return ob == null ? Optional.<OAuthInfo>absent() : Optional.<OAuthInfo>of(new OAuthInfoImpl(serviceCode, ob));
+        return Optional.fromNullable(authInfo.get(serviceCode));
     }
 
-    private static class OAuthInfoImpl implements OAuthInfo {
+    /**
+     * Get the data stored for this user by an OAuth plugin.
+     *
+     * @param pluginCode The plugin's code
+     * @return The data, or an empty map
+     */
+    public Map<String, Object> data(String pluginCode) {
+        DataHolder holder = data.get(pluginCode);
+        return holder == null ? Collections.<String, Object>emptyMap() : holder.get();
+    }
+
+    /**
+     * Recreate a user record from this user's fields, including its
+     * per-plugin data. OAuth info is written as slugs and tokens, the way
+     * the store writes it, whichever form it was read from.
+     */
+    DBObject toDBObject() {
+        BasicDBObject result = new BasicDBObject(ID, id)
+                .append(NAME, new ArrayList<>(Arrays.asList(names)))
+                .append(VERSION, version)
+                .append(AUTHORIZES, new ArrayList<>(authorizes()));
+        if (displayName != null) {
+            result.append(DISPLAY_NAME, displayName);
+        }
+        if (hashedPassword != null) {
+            result.append(HASHED_PASSWORD, hashedPassword);
+        }
+        if (created != 0) {
+            result.append(CREATED, created);
+        }
+        if (lastModified != 0) {
+            result.append(LAST_MODIFIED, lastModified);
+        }
+        BasicDBObject slugs = new BasicDBObject();
+        BasicDBObject tokens = new BasicDBObject();
+        for (OAuthInfo info : authInfo.values()) {
+            OAuthInfoImpl impl = (OAuthInfoImpl) info;
+            slugs.append(impl.serviceCode, new BasicDBObject(SLUG, impl.slug)
+                    .append(CREATED, impl.lastModified));
+            if (impl.token != null) {
+                tokens.append(impl.serviceCode, impl.token);
+            }
+        }
+        result.append("slugs", slugs).append("tokens", tokens);
+        for (Map.Entry<String, DataHolder> e : data.entrySet()) {
+            result.append(DATA_PREFIX + e.getKey(), e.getValue().raw());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return name() + " (" + id + ")";
+    }
+
+    /**
+     * Per-plugin data, held as it was decoded from a record, and only
+     * converted to a map if asked for.
+     */
+    static final class DataHolder {
+
+        private final DBObject raw;
+        private Map<String, Object> decoded;
+
+        DataHolder(DBObject raw) {
+            this.raw = raw;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized Map<String, Object> get() {
+            if (decoded == null) {
+                decoded = Collections.unmodifiableMap(raw.toMap());
+            }
+            return decoded;
+        }
+
+        DBObject raw() {
+            return raw;
+        }
+    }
+
+    private static final class OAuthInfoImpl implements OAuthInfo {
 
         private final String serviceCode;
-        private final DBObject obj;
+        private final String slug;
+        private final long lastModified;
+        private final String token;
 
-        public OAuthInfoImpl(String serviceCode, DBObject obj) {
+        OAuthInfoImpl(String serviceCode, String slug, long lastModified, String token) {
             this.serviceCode = serviceCode;
-            this.obj = obj;
+            this.slug = slug;
+            this.lastModified = lastModified;
+            this.token = token;
         }
 
         @Override
         public String slug() {
-            return (String) obj.get(SLUG);
+            return slug;
         }
 
         @Override
         public ZonedDateTime lastModified() {
-            Object o = obj.get(LAST_MODIFIED);
-            if (o instanceof Date) {
-//                return new DateTime((Date) o);
-                return ((Date) o).toInstant().atZone(ZoneId.systemDefault());
-            } else if (o instanceof Number) {
-                return TimeUtil.fromUnixTimestamp(((Number) o).longValue());
-            } else {
-                return ZonedDateTime.now();
-            }
+            return TimeUtil.fromUnixTimestamp(lastModified);
         }
 
         @Override
         public Optional<String> savedToken() {
-            return Optional.fromNullable((String) obj.get(TOKEN));
+            return Optional.fromNullable(token);
         }
 
         @Override
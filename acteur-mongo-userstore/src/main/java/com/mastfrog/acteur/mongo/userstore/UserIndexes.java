@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.mongo.userstore;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.Exceptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the fields users are looked up by, and makes sure each is
+ * indexed. The user name (uniquely, so creating a user needs no prior
+ * lookup), the authorizes list, any fields listed in
+ * <code>user.index.keys</code> (comma-separated) and the login collection's
+ * state are indexed at startup. Fields passed to <code>findUserBy()</code>
+ * should be listed there; building an index for one the first time it is
+ * used, in the background, can be turned on with
+ * <code>user.index.on.demand</code>, but leaves lookups unindexed until the
+ * build finishes. An index which cannot be created is logged and retried
+ * the next time it is needed.
+ * <p/>
+ * Login states are also given a TTL index, so they are deleted
+ * <code>login.state.ttl.minutes</code> after creation - unless the login
+ * collection is capped, which already bounds it and does not permit TTL
+ * indexes.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class UserIndexes {
+
+    public static final String SETTINGS_KEY_USER_INDEX_KEYS = "user.index.keys";
+    public static final String SETTINGS_KEY_USER_INDEX_ON_DEMAND = "user.index.on.demand";
+    public static final String SETTINGS_KEY_LOGIN_STATE_TTL_MINUTES = "login.state.ttl.minutes";
+    /**
+     * The field of a login state holding its creation time as a date, which
+     * the TTL index is on.
+     */
+    static final String LOGIN_STATE_EXPIRY_FIELD = "at";
+    private final DBCollection users;
+    private final Set<String> indexed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final boolean uniqueNames;
+    private final boolean onDemand;
+
+    @Inject
+    UserIndexes(@Named(MongoUserFactory.USERS_COLLECTION_NAME) DBCollection users,
+            @Named(MongoUserFactory.LOGIN_STATE_COLLECTION_NAME) DBCollection loginStates,
+            Settings settings) {
+        this.users = users;
+        onDemand = settings.getBoolean(SETTINGS_KEY_USER_INDEX_ON_DEMAND, false);
+        uniqueNames = ensureUniqueNames();
+        create(TTUser.AUTHORIZES, false);
+        String keys = settings.getString(SETTINGS_KEY_USER_INDEX_KEYS);
+        if (keys != null) {
+            for (String key : keys.split(",")) {
+                key = key.trim();
+                if (!key.isEmpty()) {
+                    create(key, false);
+                }
+            }
+        }
+        loginStates.createIndex(new BasicDBObject("state", 1));
+        if (!loginStates.isCapped()) {
+            long ttl = settings.getLong(SETTINGS_KEY_LOGIN_STATE_TTL_MINUTES, 60) * 60;
+            loginStates.createIndex(new BasicDBObject(LOGIN_STATE_EXPIRY_FIELD, 1),
+                    new BasicDBObject("expireAfterSeconds", ttl));
+        }
+    }
+
+    private boolean ensureUniqueNames() {
+        indexed.add(TTUser.NAME);
+        try {
+            users.createIndex(new BasicDBObject(TTUser.NAME, 1), new BasicDBObject("unique", true));
+            return true;
+        } catch (MongoException ex) {
+            // Existing duplicate names, or an existing non-unique index
+            Exceptions.printStackTrace(ex);
+            users.createIndex(new BasicDBObject(TTUser.NAME, 1));
+            return false;
+        }
+    }
+
+    /**
+     * Whether user names are known to be uniquely indexed.
+     *
+     * @return true if so
+     */
+    boolean namesAreUnique() {
+        return uniqueNames;
+    }
+
+    /**
+     * Make sure a field of user records is indexed, if indexes may be
+     * created on demand.  Never throws - a failure to create the index is
+     * logged, and it is tried again next time.
+     *
+     * @param key The field name
+     */
+    void ensure(String key) {
+        if (onDemand && !indexed.contains(key)) {
+            create(key, true);
+        }
+    }
+
+    private void create(String key, boolean background) {
+        try {
+            users.createIndex(new BasicDBObject(key, 1), new BasicDBObject("background", background));
+            indexed.add(key);
+        } catch (MongoException ex) {
+            Exceptions.printStackTrace(ex);
+        }
+    }
+}
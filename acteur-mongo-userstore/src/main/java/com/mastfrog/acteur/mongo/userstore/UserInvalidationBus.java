@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.mongo.userstore;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.auth.UniqueIDs;
+import com.mastfrog.acteur.auth.UserFactory.Change;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.Exceptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import org.bson.types.BSONTimestamp;
+
+/**
+ * Tells the other servers sharing a user collection when a user has been
+ * modified, so they can evict it from their caches.
+ * <p/>
+ * Each change is written as a small record to a capped collection, and
+ * every server follows that collection with a tailable, awaitable cursor -
+ * so changes arrive within milliseconds, with no infrastructure beyond the
+ * database. Following starts after the newest record there was when the
+ * bus was created - before anything which loads users at startup, such as
+ * the {@link AuthorizationGraph}, so changes made while it loads are not
+ * lost. Records carry a timestamp assigned by the server on insert; if
+ * the cursor dies, for example during a failover, following resumes after
+ * the last timestamp seen. If the capped collection wrapped around while
+ * disconnected, some changes may be missed; caches which check user versions
+ * will still notice them when they next revalidate, and the authorization
+ * graph rechecks its users periodically.
+ * <p/>
+ * Disabled unless <code>user.invalidation.bus</code> is true.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class UserInvalidationBus {
+
+    /**
+     * Whether to publish and follow user changes.
+     */
+    public static final String SETTINGS_KEY_INVALIDATION_BUS = "user.invalidation.bus";
+    /**
+     * The name of the capped collection records are written to.
+     */
+    public static final String SETTINGS_KEY_INVALIDATION_COLLECTION = "user.invalidation.collection";
+    /**
+     * The size of the capped collection, in bytes.
+     */
+    public static final String SETTINGS_KEY_INVALIDATION_COLLECTION_BYTES = "user.invalidation.collection.bytes";
+    private static final long RETRY_MILLIS = 1000;
+    private final DBCollection records;
+    private final String origin;
+    // The newest record when created, which following starts after
+    private final BSONTimestamp start;
+    private volatile boolean closed;
+
+    @Inject
+    UserInvalidationBus(@Named(MongoUserFactory.USERS_COLLECTION_NAME) DBCollection users,
+            Settings settings, UniqueIDs ids, ShutdownHookRegistry reg) {
+        if (!settings.getBoolean(SETTINGS_KEY_INVALIDATION_BUS, false)) {
+            records = null;
+            origin = null;
+            start = null;
+            return;
+        }
+        DB db = users.getDB();
+        String name = settings.getString(SETTINGS_KEY_INVALIDATION_COLLECTION, "user_invalidations");
+        if (!db.collectionExists(name)) {
+            try {
+                db.createCollection(name, new BasicDBObject("capped", true)
+                        .append("size", settings.getLong(SETTINGS_KEY_INVALIDATION_COLLECTION_BYTES, 1024 * 1024)));
+            } catch (MongoException ex) {
+                // Another server created it first
+                if (!db.collectionExists(name)) {
+                    throw ex;
+                }
+            }
+        }
+        records = db.getCollection(name);
+        start = latest();
+        // Identifies records written by this process, which need not be
+        // delivered back to it
+        origin = ids.newRandomString();
+        reg.add(new Runnable() {
+            @Override
+            public void run() {
+                closed = true;
+            }
+        });
+    }
+
+    private BSONTimestamp latest() {
+        try (DBCursor cursor = records.find().sort(new BasicDBObject("$natural", -1)).limit(1)) {
+            return cursor.hasNext() ? (BSONTimestamp) cursor.next().get("ts") : null;
+        } catch (MongoException ex) {
+            // Follow from the oldest record instead - repeating a change
+            // does no harm
+            Exceptions.printStackTrace(ex);
+            return null;
+        }
+    }
+
+    /**
+     * Whether changes are published and followed.
+     *
+     * @return true if the bus is on
+     */
+    boolean enabled() {
+        return records != null;
+    }
+
+    interface Receiver {
+
+        void changed(String userName, Change change, String name);
+    }
+
+    /**
+     * Start following changes made by other servers.
+     *
+     * @param receiver Called on a background thread for each change
+     */
+    void listen(Receiver receiver) {
+        if (records == null) {
+            return;
+        }
+        Thread thread = new Thread(new Follower(receiver), "user-invalidations");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void publish(String userName, Change change, String name) {
+        if (records == null) {
+            return;
+        }
+        // The empty timestamp must be the first field after _id for the
+        // server to fill it in
+        BasicDBObject record = new BasicDBObject("ts", new BSONTimestamp())
+                .append("u", userName)
+                .append("c", change.name())
+                .append("o", origin);
+        if (name != null) {
+            record.append("n", name);
+        }
+        try {
+            records.insert(record, WriteConcern.ACKNOWLEDGED);
+        } catch (MongoException ex) {
+            // The change itself has been written; other servers will see it
+            // when they revalidate
+            Exceptions.printStackTrace(ex);
+        }
+    }
+
+    private final class Follower implements Runnable {
+
+        private final Receiver receiver;
+        private BSONTimestamp last = start;
+
+        Follower(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    follow();
+                } catch (MongoException ex) {
+                    if (!closed) {
+                        Exceptions.printStackTrace(ex);
+                    }
+                }
+                if (!closed) {
+                    // The cursor died - the collection is empty, or the
+                    // connection was lost; wait and resume
+                    try {
+                        Thread.sleep(RETRY_MILLIS);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void follow() {
+            BasicDBObject query = last == null ? new BasicDBObject()
+                    : new BasicDBObject("ts", new BasicDBObject("$gt", last));
+            try (DBCursor cursor = records.find(query)
+                    .addOption(Bytes.QUERYOPTION_TAILABLE)
+                    .addOption(Bytes.QUERYOPTION_AWAITDATA)) {
+                while (!closed && cursor.hasNext()) {
+                    DBObject record = cursor.next();
+                    last = (BSONTimestamp) record.get("ts");
+                    if (origin.equals(record.get("o"))) {
+                        continue;
+                    }
+                    Change change;
+                    try {
+                        change = Change.valueOf((String) record.get("c"));
+                    } catch (IllegalArgumentException | NullPointerException ex) {
+                        // Written by a newer version
+                        continue;
+                    }
+                    try {
+                        receiver.changed((String) record.get("u"), change, (String) record.get("n"));
+                    } catch (RuntimeException ex) {
+                        Exceptions.printStackTrace(ex);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.mongo.userstore;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.ConfigurationError;
+import com.mastfrog.util.Exceptions;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Performs updates to the user collection with the durability configured
+ * for each kind of write, optionally grouping concurrent updates into bulk
+ * writes.
+ * <p/>
+ * Durability is set per {@link WriteKind} with the settings
+ * <code>user.write.concern.credentials</code>,
+ * <code>user.write.concern.authorization</code>,
+ * <code>user.write.concern.data</code> and
+ * <code>user.write.concern.login</code>, each one of <code>fsynced</code>,
+ * <code>journaled</code>, <code>majority</code>, <code>acknowledged</code>
+ * or <code>unacknowledged</code>.
+ * <p/>
+ * If <code>user.write.group.commit</code> is true, updates are queued for
+ * up to <code>user.write.group.commit.millis</code> and sent together as an
+ * unordered bulk write per durability level; each caller still blocks until
+ * its own update has been written, and gets its own error if it failed.
+ * Updates to the same user are never in the same bulk write - a later one
+ * goes in a later round of writes - and only one batch is written at a
+ * time, so they are applied in the order they were made.
+ * This adds a few milliseconds to each write in exchange for far fewer
+ * round-trips (and fsyncs) under load.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class UserWrites {
+
+    public static final String SETTINGS_KEY_WRITE_CONCERN_PREFIX = "user.write.concern.";
+    public static final String SETTINGS_KEY_GROUP_COMMIT = "user.write.group.commit";
+    public static final String SETTINGS_KEY_GROUP_COMMIT_MILLIS = "user.write.group.commit.millis";
+    public static final String SETTINGS_KEY_GROUP_COMMIT_MAX_BATCH = "user.write.group.commit.max.batch";
+
+    /**
+     * Classes of write which may be given different durability.
+     */
+    enum WriteKind {
+        /**
+         * New users, slugs, access tokens and passwords.
+         */
+        CREDENTIALS("fsynced"),
+        /**
+         * Changes to which users a user has authorized.
+         */
+        AUTHORIZATION("fsynced"),
+        /**
+         * Profile and other data stored with a user.
+         */
+        DATA("acknowledged"),
+        /**
+         * Creating and using up login states.
+         */
+        LOGIN("acknowledged");
+        private final String defaultConcern;
+
+        WriteKind(String defaultConcern) {
+            this.defaultConcern = defaultConcern;
+        }
+
+        String settingsKey() {
+            return SETTINGS_KEY_WRITE_CONCERN_PREFIX + name().toLowerCase();
+        }
+    }
+    private final DBCollection users;
+    private final Map<WriteKind, WriteConcern> concerns = new EnumMap<>(WriteKind.class);
+    private final ScheduledExecutorService flusher;
+    private final long window;
+    private final int maxBatch;
+    private final List<Pending> pending = new ArrayList<>();
+    // Held while a batch is written, so batches never overlap
+    private final Object flushLock = new Object();
+
+    @Inject
+    UserWrites(@Named(MongoUserFactory.USERS_COLLECTION_NAME) DBCollection users,
+            Settings settings, ShutdownHookRegistry reg) {
+        this.users = users;
+        for (WriteKind kind : WriteKind.values()) {
+            concerns.put(kind, parse(kind.settingsKey(),
+                    settings.getString(kind.settingsKey(), kind.defaultConcern)));
+        }
+        window = settings.getLong(SETTINGS_KEY_GROUP_COMMIT_MILLIS, 5);
+        maxBatch = settings.getInt(SETTINGS_KEY_GROUP_COMMIT_MAX_BATCH, 500);
+        if (settings.getBoolean(SETTINGS_KEY_GROUP_COMMIT, false)) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread result = new Thread(r, "user-group-commit");
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+            reg.add(new Runnable() {
+                @Override
+                public void run() {
+                    // Let a running or scheduled flush finish, then write
+                    // whatever is still queued before exiting
+                    flusher.shutdown();
+                    try {
+                        flusher.awaitTermination(window + 10000, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    flush();
+                }
+            });
+        } else {
+            flusher = null;
+        }
+    }
+
+    private static WriteConcern parse(String key, String value) {
+        switch (value.toLowerCase()) {
+            case "fsynced":
+                return WriteConcern.FSYNCED;
+            case "journaled":
+                return WriteConcern.JOURNALED;
+            case "majority":
+                return WriteConcern.MAJORITY;
+            case "acknowledged":
+                return WriteConcern.ACKNOWLEDGED;
+            case "unacknowledged":
+                return WriteConcern.UNACKNOWLEDGED;
+            default:
+                throw new ConfigurationError("Unknown write concern for " + key + ": " + value);
+        }
+    }
+
+    WriteConcern concern(WriteKind kind) {
+        return concerns.get(kind);
+    }
+
+    /**
+     * Update one user, returning once the update has been written with the
+     * durability configured for its kind.
+     *
+     * @param query Matches the user
+     * @param update The modifications
+     * @param kind The kind of write
+     * @return The number of users matched - 0 or 1 - or -1 if the write's
+     * concern does not wait for an answer
+     */
+    int update(DBObject query, DBObject update, WriteKind kind) {
+        WriteConcern concern = concern(kind);
+        if (flusher == null || !concern.isAcknowledged()) {
+            WriteResult result = users.update(query, update, false, false, concern);
+            return result.wasAcknowledged() ? result.getN() : -1;
+        }
+        Pending p = new Pending(query, update, concern);
+        boolean schedule;
+        boolean full;
+        synchronized (pending) {
+            schedule = pending.isEmpty();
+            pending.add(p);
+            full = pending.size() >= maxBatch;
+        }
+        try {
+            if (full) {
+                flusher.execute(new Flush());
+            } else if (schedule) {
+                flusher.schedule(new Flush(), window, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException ex) {
+            // Shutting down
+            flush();
+        }
+        try {
+            return p.future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Exceptions.chuck(ex);
+        } catch (ExecutionException ex) {
+            return Exceptions.chuck(ex.getCause());
+        }
+    }
+
+    private void flush() {
+        synchronized (flushLock) {
+            flushPending();
+        }
+    }
+
+    private void flushPending() {
+        List<Pending> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        // An unordered bulk write may apply its updates in any order, so
+        // the nth update to a user goes in the nth round
+        Map<Object, Integer> updatesPerUser = new HashMap<>();
+        List<Map<WriteConcern, List<Pending>>> rounds = new ArrayList<>();
+        for (Pending p : batch) {
+            Object key = p.query.get("_id") == null ? p.query : p.query.get("_id");
+            Integer round = updatesPerUser.get(key);
+            round = round == null ? 0 : round + 1;
+            updatesPerUser.put(key, round);
+            if (round == rounds.size()) {
+                rounds.add(new LinkedHashMap<WriteConcern, List<Pending>>());
+            }
+            // One bulk write per durability level
+            Map<WriteConcern, List<Pending>> byConcern = rounds.get(round);
+            List<Pending> l = byConcern.get(p.concern);
+            if (l == null) {
+                l = new ArrayList<>();
+                byConcern.put(p.concern, l);
+            }
+            l.add(p);
+        }
+        for (Map<WriteConcern, List<Pending>> round : rounds) {
+            for (Map.Entry<WriteConcern, List<Pending>> e : round.entrySet()) {
+                write(e.getValue(), e.getKey());
+            }
+        }
+    }
+
+    private void write(List<Pending> batch, WriteConcern concern) {
+        BulkWriteOperation bulk = users.initializeUnorderedBulkOperation();
+        for (Pending p : batch) {
+            bulk.find(p.query).updateOne(p.update);
+        }
+        try {
+            BulkWriteResult result = bulk.execute(concern);
+            boolean allMatched = result.getMatchedCount() == batch.size();
+            for (Pending p : batch) {
+                p.future.set(allMatched ? 1 : matched(p));
+            }
+        } catch (BulkWriteException ex) {
+            // Fail only the updates which failed
+            for (BulkWriteError err : ex.getWriteErrors()) {
+                Pending p = batch.get(err.getIndex());
+                p.future.setException(new MongoException(err.getCode(), err.getMessage()));
+            }
+            for (Pending p : batch) {
+                if (ex.getWriteConcernError() != null) {
+                    p.future.setException(ex);
+                } else if (!p.future.isDone()) {
+                    p.future.set(matched(p));
+                }
+            }
+        } catch (RuntimeException ex) {
+            for (Pending p : batch) {
+                p.future.setException(ex);
+            }
+        }
+    }
+
+    /**
+     * A bulk write only counts matches for the whole batch, so if some
+     * update matched nothing, ask which.  The queries find a user by a
+     * field the update does not change, so it is still there to be found.
+     */
+    private int matched(Pending p) {
+        return users.count(p.query) > 0 ? 1 : 0;
+    }
+
+    private final class Flush implements Runnable {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    }
+
+    private static final class Pending {
+
+        final DBObject query;
+        final DBObject update;
+        final WriteConcern concern;
+        final SettableFuture<Integer> future = SettableFuture.create();
+
+        Pending(DBObject query, DBObject update, WriteConcern concern) {
+            this.query = query;
+            this.update = update;
+            this.concern = concern;
+        }
+    }
+}
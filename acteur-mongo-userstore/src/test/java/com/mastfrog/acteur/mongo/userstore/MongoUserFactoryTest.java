@@ -55,6 +55,7 @@ import java.util.Set;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -129,6 +130,27 @@ public class MongoUserFactoryTest {
         assertEquals(now, s.created());
     }
 
+    @Test
+    public void testDuplicateNamesAreRejected(MongoDBRunner run, MongoUserFactory uf, PasswordHasher hasher) {
+        DBObject first = uf.newUser("dupUser", hasher.hash("password"), "Dup User",
+                new HashMap<String, Object>());
+        assertNotNull(first);
+        assertNull(uf.newUser("dupUser", hasher.hash("other"), "Other User",
+                new HashMap<String, Object>()));
+        assertEquals("Dup User", uf.findUserByName("dupUser").get().get("displayName"));
+    }
+
+    @Test
+    public void testLoginStateIsUsedOnce(MongoDBRunner run, MongoUserFactory uf) {
+        uf.saveLoginState(new LoginState("once", "/once"));
+        Optional<LoginState> first = uf.lookupLoginState("once");
+        Optional<LoginState> second = uf.lookupLoginState("once");
+        assertTrue(first.isPresent());
+        assertTrue(second.isPresent());
+        assertFalse(first.get().used);
+        assertTrue(second.get().used);
+    }
+
     static class M extends AbstractModule {
 
         @Override
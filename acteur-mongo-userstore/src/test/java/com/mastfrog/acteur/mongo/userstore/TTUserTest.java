@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.mongo.userstore;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TTUserTest {
+
+    @Test
+    public void testRecordSurvivesRoundTrip() throws Exception {
+        ObjectId id = new ObjectId();
+        ObjectId other = new ObjectId();
+        DBObject record = new BasicDBObject(TTUser.ID, id)
+                .append(TTUser.NAME, Arrays.asList("joe"))
+                .append(TTUser.DISPLAY_NAME, "Joe")
+                .append(TTUser.HASHED_PASSWORD, "xyz")
+                .append(TTUser.VERSION, 3)
+                .append(TTUser.CREATED, 1000L)
+                .append(TTUser.LAST_MODIFIED, 2000L)
+                .append(TTUser.AUTHORIZES, Arrays.asList(other))
+                .append("slugs", new BasicDBObject("gg", new BasicDBObject(TTUser.SLUG, "abc")
+                        .append(TTUser.CREATED, 1500L)))
+                .append("tokens", new BasicDBObject("gg", "tok"))
+                .append("data_gg", new BasicDBObject("picture", "http://example.com/joe.png"));
+        TTUser user = new TTUser(record);
+        TTUser copy = new TTUser(user.toDBObject());
+        DBObject written = copy.toDBObject();
+        assertEquals(1000L, written.get(TTUser.CREATED));
+        assertEquals(2000L, written.get(TTUser.LAST_MODIFIED));
+        assertEquals("joe", copy.name());
+        assertEquals("Joe", copy.displayName());
+        assertEquals("xyz", copy.hashedPassword());
+        assertEquals(3, copy.version());
+        assertTrue(copy.authorizes(other));
+        assertEquals("abc", copy.authInfo("gg").get().slug());
+        assertEquals("tok", copy.authInfo("gg").get().savedToken().get());
+        assertEquals(1500L, copy.authInfo("gg").get().lastModified().toInstant().toEpochMilli());
+        assertEquals("http://example.com/joe.png", copy.data("gg").get("picture"));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.acteur.mongo.userstore;
+
+import com.mastfrog.acteur.auth.UniqueIDs;
+import com.mastfrog.acteur.mongo.userstore.MongoUserFactoryTest.M;
+import com.mastfrog.acteur.mongo.userstore.UserWrites.WriteKind;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.giulius.tests.GuiceRunner;
+import com.mastfrog.giulius.tests.TestWith;
+import com.mastfrog.settings.SettingsBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+@RunWith(GuiceRunner.class)
+@TestWith({M.class, UniqueIDs.UniqueIdsModule.class})
+public class UserWritesTest {
+
+    @Test
+    public void testUpdatesToOneUserKeepTheirOrder(MongoDBRunner run, DB db, ShutdownHookRegistry reg) throws Exception {
+        DBCollection users = db.getCollection("ttusers");
+        ObjectId id = new ObjectId();
+        users.insert(new BasicDBObject("_id", id).append("name", Arrays.asList("ordered")));
+        UserWrites writes = writes(users, reg);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            // Queued in the same window, so written by the same flush
+            Future<Integer> first = threads.submit(push(writes, id, "a"));
+            Thread.sleep(50);
+            Future<Integer> second = threads.submit(push(writes, id, "b"));
+            assertEquals(1, (int) first.get(10, TimeUnit.SECONDS));
+            assertEquals(1, (int) second.get(10, TimeUnit.SECONDS));
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(Arrays.asList("a", "b"), users.findOne(new BasicDBObject("_id", id)).get("log"));
+    }
+
+    @Test
+    public void testEachCallerGetsItsOwnResult(MongoDBRunner run, DB db, ShutdownHookRegistry reg) throws Exception {
+        DBCollection users = db.getCollection("ttusers");
+        ObjectId good = new ObjectId();
+        ObjectId bad = new ObjectId();
+        users.insert(new BasicDBObject("_id", good).append("name", Arrays.asList("good")));
+        users.insert(new BasicDBObject("_id", bad).append("name", Arrays.asList("bad"))
+                .append("version", "not a number"));
+        UserWrites writes = writes(users, reg);
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        try {
+            Future<Integer> ok = threads.submit(inc(writes, good));
+            Future<Integer> failed = threads.submit(inc(writes, bad));
+            Future<Integer> missing = threads.submit(inc(writes, new ObjectId()));
+            assertEquals(1, (int) ok.get(10, TimeUnit.SECONDS));
+            assertEquals(0, (int) missing.get(10, TimeUnit.SECONDS));
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+                fail("Incrementing a string should have failed");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() + "", ex.getCause() instanceof MongoException);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(1, users.findOne(new BasicDBObject("_id", good)).get("version"));
+    }
+
+    private static UserWrites writes(DBCollection users, ShutdownHookRegistry reg) throws Exception {
+        return new UserWrites(users, new SettingsBuilder()
+                .add(UserWrites.SETTINGS_KEY_GROUP_COMMIT, "true")
+                .add(UserWrites.SETTINGS_KEY_GROUP_COMMIT_MILLIS, "500")
+                .build(), reg);
+    }
+
+    private static Callable<Integer> push(final UserWrites writes, final ObjectId id, final String value) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return writes.update(new BasicDBObject("_id", id),
+                        new BasicDBObject("$push", new BasicDBObject("log", value)), WriteKind.DATA);
+            }
+        };
+    }
+
+    private static Callable<Integer> inc(final UserWrites writes, final ObjectId id) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                DBObject update = new BasicDBObject("$inc", new BasicDBObject("version", 1));
+                return writes.update(new BasicDBObject("_id", id), update, WriteKind.DATA);
+            }
+        };
+    }
+}
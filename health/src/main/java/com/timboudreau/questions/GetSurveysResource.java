@@ -1,6 +1,7 @@
 package com.timboudreau.questions;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.google.inject.util.Providers;
@@ -12,19 +13,17 @@ import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
 import com.mastfrog.acteur.mongo.CursorWriter;
 import com.mastfrog.acteur.mongo.CursorWriter.MapFilter;
+import com.mastfrog.acteur.mongo.userstore.AuthorizationGraph;
+import com.mastfrog.acteur.mongo.userstore.AuthorizationGraph.UserNode;
 import com.mastfrog.acteur.mongo.userstore.TTUser;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
 import static com.timboudreau.questions.AddSurveyResource.QUESTION_PATTERN;
-import com.timboudreau.trackerapi.Properties;
 import com.timboudreau.trackerapi.support.UserCollectionFinder;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import java.util.List;
 import java.util.Map;
-import org.bson.types.ObjectId;
 
 /**
  *
@@ -50,24 +49,21 @@ public class GetSurveysResource extends Page {
     private static class SurveysActeur extends Acteur {
 
         @Inject
-        @SuppressWarnings("element-type-mismatch")
-        SurveysActeur(TTUser user, @Named("surveys") DBCollection coll, DBCollection users, Closables clos, ObjectMapper mapper, HttpEvent evt) {
+        SurveysActeur(TTUser user, @Named("surveys") DBCollection coll, AuthorizationGraph graph, Closables clos, ObjectMapper mapper, HttpEvent evt) {
             String pathId = evt.path().getElement(1).toString();
             BasicDBObject query;
             if (!user.names().contains(pathId)) {
-                BasicDBObject nameQuery = new BasicDBObject(Properties.name, pathId);
-                DBObject otherUser = users.findOne(nameQuery);
-                if (otherUser == null) {
+                Optional<UserNode> otherUser = graph.find(pathId);
+                if (!otherUser.isPresent()) {
                     setState(new RespondWith(HttpResponseStatus.GONE, "No such user'" + pathId + "'\n"));
                     return;
                 } else {
-                    List<ObjectId> authorized = (List<ObjectId>) otherUser.get(Properties.authorizes);
-                    if (!authorized.contains(user.id())) {
+                    if (!otherUser.get().authorizes(user.id())) {
                         setState(new RespondWith(HttpResponseStatus.FORBIDDEN,
-                                "You don't have permission to access " + otherUser.get(Properties.displayName) + "\n"));
+                                "You don't have permission to access " + otherUser.get().displayName() + "\n"));
                         return;
                     }
-                    query = new BasicDBObject("createdBy", otherUser.get("_id"));
+                    query = new BasicDBObject("createdBy", otherUser.get().id());
                 }
             } else {
                 query = new BasicDBObject("createdBy", user.id());
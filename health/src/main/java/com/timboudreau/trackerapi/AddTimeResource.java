@@ -11,7 +11,6 @@ import com.mastfrog.acteur.mongo.userstore.TTUser;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import com.mongodb.WriteConcern;
 import static com.timboudreau.trackerapi.Properties.*;
 import static com.timboudreau.trackerapi.RecordTimeConnectionIsOpenResource.LiveTime.buildQueryFromURLParameters;
@@ -19,7 +18,10 @@ import static com.timboudreau.trackerapi.RecordTimeConnectionIsOpenResource.XLI;
 import static com.timboudreau.trackerapi.RecordTimeConnectionIsOpenResource.XTI;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
+import com.timboudreau.trackerapi.support.SetCatalog;
 import com.timboudreau.trackerapi.support.TimeCollectionFinder;
+import com.timboudreau.trackerapi.support.TimeEvents;
+import com.timboudreau.trackerapi.support.TimeSet;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.IOException;
 import java.util.Map;
@@ -80,7 +82,8 @@ final class AddTimeResource extends Page {
     private static class TimeAdder extends Acteur {
 
         @Inject
-        TimeAdder(HttpEvent evt, DBCollection coll, ObjectMapper mapper, TTUser user, Interval interval) throws IOException {
+        TimeAdder(HttpEvent evt, TimeEvents events, ObjectMapper mapper, TTUser user, Interval interval,
+                TimeSet set, SetCatalog catalog) throws IOException {
             long startVal = interval.getStartMillis();
             long endVal = interval.getEndMillis();
             // XXX ability to add for a different user?
@@ -109,7 +112,8 @@ final class AddTimeResource extends Page {
             if (toWrite.get(start) instanceof String) {
                 throw new IOException("Bad bad bad: " + toWrite.get(start));
             }
-            coll.insert(toWrite, WriteConcern.SAFE);
+            events.insert(toWrite, WriteConcern.SAFE);
+            catalog.added(set, 1);
             Map m = toWrite.toMap();
             ObjectId id = (ObjectId) m.get(_id);
             if (id != null) {
@@ -8,14 +8,15 @@ import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
 import static com.timboudreau.trackerapi.Properties.*;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
+import com.timboudreau.trackerapi.support.SetCatalog;
 import com.timboudreau.trackerapi.support.TimeCollectionFinder;
+import com.timboudreau.trackerapi.support.TimeEvents;
+import com.timboudreau.trackerapi.support.TimeSet;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.IOException;
 
@@ -31,7 +32,7 @@ class AdjustTimeResource extends Page {
     public AdjustTimeResource(ActeurFactory af) {
         add(af.matchPath(URL_PATTERN_ADJUST));
         add(af.matchMethods(Method.PUT, Method.POST));
-        add(af.banParameters("type"));
+        add(af.banParameters("type", limit, sort, after));
         add(af.requireAtLeastOneParameter("shift", "moveTo", "length", "newStart", "newEnd"));
         add(af.parametersMayNotBeCombined("newStart", "shift", "moveTo"));
         add(af.parametersMayNotBeCombined("newEnd", "shift", "moveTo"));
@@ -53,7 +54,8 @@ class AdjustTimeResource extends Page {
     private static class Adjuster extends Acteur {
 
         @Inject
-        public Adjuster(HttpEvent evt, DBCollection collection, BasicDBObject query, AdjustParameters params) throws IOException {
+        public Adjuster(HttpEvent evt, TimeEvents events, BasicDBObject query, AdjustParameters params,
+                TimeSet timeSet, SetCatalog catalog) throws IOException {
             query.put(type, time);
             query.remove(detail);
 
@@ -62,11 +64,14 @@ class AdjustTimeResource extends Page {
             Long shift = params.shift();
             if (shift != null) {
                 update.put("$inc", new BasicDBObject(start, shift).append(end, shift).append(version, 1));
-                WriteResult res = collection.update(query, update, false, true, WriteConcern.ACKNOWLEDGED);
-                setState(new RespondWith(res.getN() > 0 ? 200 : 400, Timetracker.quickJson("updated", res.getN())));
+                int updated = events.update(query, update, true, WriteConcern.ACKNOWLEDGED);
+                if (updated > 0) {
+                    catalog.modified(timeSet);
+                }
+                setState(new RespondWith(updated > 0 ? 200 : 400, Timetracker.quickJson("updated", updated)));
             } else {
                 update.put("$inc", new BasicDBObject(version, 1));
-                DBObject ob = collection.findOne(query);
+                DBObject ob = events.findOne(query);
                 if (ob == null) {
                     setState(new RespondWith(HttpResponseStatus.GONE, "No matching object"));
                     return;
@@ -103,8 +108,11 @@ class AdjustTimeResource extends Page {
                     set.put(duration, dur);
                     set.put(end, params.moveTo() + dur);
                 }
-                WriteResult res = collection.update(query, update, false, false, WriteConcern.ACKNOWLEDGED);
-                setState(new RespondWith(res.getN() > 0 ? 200 : 400, Timetracker.quickJson("updated", res.getN())));
+                int updated = events.update(query, update, false, WriteConcern.ACKNOWLEDGED);
+                if (updated > 0) {
+                    catalog.modified(timeSet);
+                }
+                setState(new RespondWith(updated > 0 ? 200 : 400, Timetracker.quickJson("updated", updated)));
             }
         }
     }
@@ -6,14 +6,13 @@ import com.mastfrog.acteur.ActeurFactory;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
+import com.mastfrog.acteur.mongo.userstore.MongoUserFactory;
 import com.mastfrog.acteur.mongo.userstore.TTUser;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.UserCollectionFinder;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -47,7 +46,7 @@ public class AuthorizeResource extends Page {
     private static final class Authorizer extends Acteur {
 
         @Inject
-        Authorizer(TTUser user, HttpEvent evt, DBCollection coll) throws URISyntaxException, UnsupportedEncodingException {
+        Authorizer(TTUser user, HttpEvent evt, DBCollection coll, MongoUserFactory users) throws URISyntaxException, UnsupportedEncodingException {
             String otherUserNameOrID = evt.path().getElement(3).toString();
             otherUserNameOrID = URLDecoder.decode(otherUserNameOrID, "UTF-8");
             BasicDBObject findOtherUserQuery = new BasicDBObject("name", otherUserNameOrID);
@@ -67,19 +66,14 @@ public class AuthorizeResource extends Page {
                 setState(new RespondWith(HttpResponseStatus.GONE, "No such user " + otherUserNameOrID));
                 return;
             }
-            BasicDBObject query = new BasicDBObject("_id", user.id());
-            BasicDBObject update = new BasicDBObject("$addToSet", new BasicDBObject(Properties.authorizes, otherUser.get("_id")));
-            BasicDBObject inc = new BasicDBObject("version", 1);
-            update.append("$inc", inc);
-            
-            WriteResult res = coll.update(query, update, false, false, WriteConcern.FSYNCED);
+            int updated = users.authorize(user.id(), (ObjectId) otherUser.get("_id"));
             HttpResponseStatus status = HttpResponseStatus.ACCEPTED;
             if (evt.urlParameter("redir") != null) {
                 URI uri = new URI(evt.urlParameter("redir"));
                 add(Headers.LOCATION, uri);
                 status = HttpResponseStatus.SEE_OTHER;
             }
-            setState(new RespondWith(status, Timetracker.quickJson("updated", res.getN())));
+            setState(new RespondWith(status, Timetracker.quickJson("updated", updated)));
         }
     }
 }
@@ -6,13 +6,12 @@ import com.mastfrog.acteur.ActeurFactory;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
+import com.mastfrog.acteur.mongo.userstore.MongoUserFactory;
 import com.mastfrog.acteur.mongo.userstore.TTUser;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.UserCollectionFinder;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -44,7 +43,7 @@ public class DeauthorizeResource extends Page {
     private static final class Authorizer extends Acteur {
 
         @Inject
-        Authorizer(TTUser user, HttpEvent evt, DBCollection coll) throws UnsupportedEncodingException {
+        Authorizer(TTUser user, HttpEvent evt, DBCollection coll, MongoUserFactory users) throws UnsupportedEncodingException {
             String otherUserNameOrID = evt.path().getElement(3).toString();
             otherUserNameOrID = URLDecoder.decode(otherUserNameOrID, "UTF-8");
             BasicDBObject findOtherUserQuery = new BasicDBObject("name", otherUserNameOrID);
@@ -62,12 +61,8 @@ public class DeauthorizeResource extends Page {
                 setState(new RespondWith(HttpResponseStatus.GONE, "No such user " + otherUserNameOrID));
                 return;
             }
-            BasicDBObject query = new BasicDBObject("_id", user.id());
-            BasicDBObject update = new BasicDBObject("$pull", new BasicDBObject(Properties.authorizes, otherUser.get("_id")));
-            BasicDBObject inc = new BasicDBObject("version", 1);
-            update.append("$inc", inc);
-            WriteResult res = coll.update(query, update, false, false, WriteConcern.FSYNCED);
-            setState(new RespondWith(HttpResponseStatus.ACCEPTED, Timetracker.quickJson("updated", res.getN())));
+            int updated = users.deauthorize(user.id(), (ObjectId) otherUser.get("_id"));
+            setState(new RespondWith(HttpResponseStatus.ACCEPTED, Timetracker.quickJson("updated", updated)));
         }
     }
 }
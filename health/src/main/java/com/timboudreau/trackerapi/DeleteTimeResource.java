@@ -8,13 +8,14 @@ import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
 import static com.timboudreau.trackerapi.Properties.*;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
+import com.timboudreau.trackerapi.support.SetCatalog;
 import com.timboudreau.trackerapi.support.TimeCollectionFinder;
+import com.timboudreau.trackerapi.support.TimeEvents;
+import com.timboudreau.trackerapi.support.TimeSet;
 import java.io.IOException;
 
 /**
@@ -27,7 +28,7 @@ class DeleteTimeResource extends Page {
     public DeleteTimeResource(ActeurFactory af) {
         add(af.matchPath(Timetracker.URL_PATTERN_TIME));
         add(af.matchMethods(Method.DELETE));
-        add(af.banParameters("type"));
+        add(af.banParameters("type", limit, sort, after));
         add(AuthenticationActeur.class);
         add(AuthorizedChecker.class);
         add(CreateCollectionPolicy.DONT_CREATE.toActeur());
@@ -43,12 +44,13 @@ class DeleteTimeResource extends Page {
     private static class TotalGetter extends Acteur {
 
         @Inject
-        public TotalGetter(HttpEvent evt, DBCollection collection, BasicDBObject query) throws IOException {
+        public TotalGetter(HttpEvent evt, TimeEvents events, BasicDBObject query, TimeSet set, SetCatalog catalog) throws IOException {
             query.put(type, time);
             query.remove(detail);
 
-            WriteResult res = collection.remove(query, WriteConcern.ACKNOWLEDGED);
-            ok(Timetracker.quickJson("updated", res.getN()));
+            int removed = events.remove(query, WriteConcern.ACKNOWLEDGED);
+            catalog.removed(set, removed);
+            ok(Timetracker.quickJson("updated", removed));
         }
     }
 }
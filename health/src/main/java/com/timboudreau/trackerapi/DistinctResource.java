@@ -8,12 +8,10 @@ import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
-import com.mongodb.CommandResult;
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
 import com.timboudreau.trackerapi.support.TimeCollectionFinder;
+import com.timboudreau.trackerapi.support.TimeEvents;
 
 /**
  *
@@ -28,6 +26,7 @@ public class DistinctResource extends Page {
         add(af.matchPath(URL_PATTERN_DISTINCT));
         add(af.matchMethods(Method.GET));
         add(af.requireParameters("field"));
+        add(af.banParameters(Properties.limit, Properties.sort, Properties.after));
         add(AuthenticationActeur.class);
         add(AuthorizedChecker.class);
         add(CreateCollectionPolicy.DONT_CREATE.toActeur());
@@ -38,11 +37,9 @@ public class DistinctResource extends Page {
     private static final class DistinctFinder extends Acteur {
 
         @Inject
-        DistinctFinder(HttpEvent evt, DB db, DBCollection coll) {
+        DistinctFinder(HttpEvent evt, TimeEvents events) {
             String field = evt.urlParameter("field");
-            BasicDBObject cmd = new BasicDBObject("distinct", coll.getName()).append("key", field);
-            CommandResult res = db.command(cmd);
-            ok(res.get("values"));
+            ok(events.distinct(field, new BasicDBObject()));
         }
     }
 }
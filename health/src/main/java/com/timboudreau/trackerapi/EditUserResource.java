@@ -7,20 +7,16 @@ import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
 import com.mastfrog.acteur.auth.OAuthPlugins;
+import com.mastfrog.acteur.mongo.userstore.MongoUserFactory;
 import com.mastfrog.acteur.mongo.userstore.TTUser;
 import com.mastfrog.acteur.headers.Method;
-import com.mastfrog.acteur.util.PasswordHasher;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.UserCollectionFinder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.IOException;
 import java.net.URLDecoder;
-import org.joda.time.DateTimeUtils;
 
 /**
  *
@@ -43,7 +39,7 @@ public class EditUserResource extends Page {
     private static class UpdateUserActeur extends Acteur {
 
         @Inject
-        UpdateUserActeur(DBCollection coll, HttpEvent evt, PasswordHasher hasher, TTUser user, OAuthPlugins pgns) throws IOException {
+        UpdateUserActeur(MongoUserFactory users, HttpEvent evt, TTUser user, OAuthPlugins pgns) throws IOException {
             String userName = URLDecoder.decode(evt.path().getElement(1).toString(), "UTF-8");
             String dn = evt.urlParameter(Properties.displayName);
 
@@ -68,18 +64,15 @@ public class EditUserResource extends Page {
                 return;
             }
 
-            DBObject query = coll.findOne(new BasicDBObject("name", userName));
-
-            DBObject update = new BasicDBObject("$set", new BasicDBObject("displayName", dn)
-                    .append("lastModified", DateTimeUtils.currentTimeMillis())).append("$inc",
-                    new BasicDBObject("version", 1));
-
-            WriteResult res = coll.update(query, update, false, false, WriteConcern.FSYNCED);
-            if (res.getN() == 1) {
+            // Through the user factory, so caches and the authorization
+            // graph here and on other servers see the new name
+            DBObject target = new BasicDBObject("_id", user.id()).append("name", user.names());
+            int updated = users.setDisplayName(target, dn);
+            if (updated != 0) {
                 pgns.createDisplayNameCookie(evt, response(), dn);
             }
 
-            reply(HttpResponseStatus.ACCEPTED, Timetracker.quickJson("updated", res.getN()));
+            reply(HttpResponseStatus.ACCEPTED, Timetracker.quickJson("updated", updated));
         }
     }
 }
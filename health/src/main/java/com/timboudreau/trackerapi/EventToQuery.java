@@ -77,6 +77,9 @@ final class EventToQuery implements Provider<BasicDBObject> {
                 case newStart:
                 case newEnd:
                 case fields:
+                case limit:
+                case sort:
+                case after:
                     break;
                 default:
                     String v = e.getValue();
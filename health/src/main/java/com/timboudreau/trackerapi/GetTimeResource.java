@@ -1,5 +1,6 @@
 package com.timboudreau.trackerapi;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Inject;
 import com.mastfrog.acteur.Acteur;
@@ -7,25 +8,27 @@ import com.mastfrog.acteur.ActeurFactory;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
-import com.mastfrog.acteur.mongo.CursorWriter;
-import com.mastfrog.acteur.mongo.CursorWriterActeur;
+import com.mastfrog.acteur.headers.HeaderValueType;
+import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import static com.timboudreau.trackerapi.Properties.*;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
+import com.timboudreau.trackerapi.support.EventCursor;
+import com.timboudreau.trackerapi.support.EventPage;
 import com.timboudreau.trackerapi.support.TimeCollectionFinder;
+import com.timboudreau.trackerapi.support.TimeEvents;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
-import static io.netty.handler.codec.http.HttpResponseStatus.NO_CONTENT;
-import static io.netty.handler.codec.http.HttpResponseStatus.OK;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AsciiString;
+import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  *
@@ -33,6 +36,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 class GetTimeResource extends Page {
 
+    public static final HeaderValueType<CharSequence> AFTER
+            = Headers.header(AsciiString.of("X-After"));
+
     @Inject
     public GetTimeResource(ActeurFactory af) {
         add(af.matchPath(Timetracker.URL_PATTERN_TIME));
@@ -42,63 +48,53 @@ class GetTimeResource extends Page {
         add(AuthorizedChecker.class);
         add(CreateCollectionPolicy.DONT_CREATE.toActeur());
         add(TimeCollectionFinder.class);
+        add(CheckPaging.class);
         add(TimeGetter.class);
-        add(CursorWriterActeur.class);
     }
 
     @Override
     protected String getDescription() {
-        return "Query recorded time events";
+        return "Query recorded time events - with ?sort=start or ?sort=-start in order of start "
+                + "time, and with ?limit=n at most n of them; if there are more, the "
+                + AFTER + " header holds a token to pass as ?after= for the next page";
     }
 
-    private static class TimeGetter2 extends Acteur {
+    private static class CheckPaging extends Acteur {
 
         @Inject
-        public TimeGetter2(DBCollection collection, BasicDBObject query, HttpEvent evt) {
-            query.put(type, time);
-            String fields = evt.urlParameter("fields");
-            DBObject projection = null;
-            if (fields != null) {
-                projection = new BasicDBObject();
-                for (String field : fields.split(",")) {
-                    projection.put(field, 1);
-                }
-            }
-            final DBCursor cur = projection == null ? collection.find(query)
-                    : collection.find(query, projection);
-            if (evt.method() == Method.HEAD) {
-                setState(new RespondWith(cur.hasNext() ? OK : NO_CONTENT));
-                return;
-            }
-            evt.channel().closeFuture().addListener(new ChannelFutureListener() {
-                @Override
-                public void operationComplete(ChannelFuture future) throws Exception {
-                    cur.close();
-                }
-            });
-            if (!cur.hasNext()) {
-                ok("[]");
-            } else {
-                next(cur, CursorWriter.NO_FILTER);
+        CheckPaging(HttpEvent evt) {
+            try {
+                next(EventPage.parse(evt.urlParameter(limit), evt.urlParameter(sort),
+                        evt.urlParameter(after)));
+            } catch (IllegalArgumentException ex) {
+                badRequest(ex.getMessage());
             }
         }
     }
 
+    /**
+     * Streams the matching events as a JSON array. Events are serialized by
+     * one JsonGenerator straight into pooled buffers, a batch of about
+     * {@link #BATCH_BYTES} at a time; the next batch is read from the cursor
+     * only once the last has been flushed and the channel is writable, so a
+     * slow client holds back the query rather than filling memory.
+     */
     private static class TimeGetter extends Acteur implements ChannelFutureListener {
 
-        private static final ByteBuf openBracket = Unpooled.copiedBuffer(new byte[]{'[', '\n'});
-        private static final ByteBuf closeBracket = Unpooled.copiedBuffer(new byte[]{'\n', ']', '\n'});
-        private static final ByteBuf comma = Unpooled.copiedBuffer(new byte[]{',', '\n'});
-        private final AtomicBoolean first = new AtomicBoolean(true);
-        private final DBCursor cur;
+        static final int BATCH_BYTES = 32 * 1024;
+        private final BufferOutput out = new BufferOutput();
+        private final EventCursor cur;
         private final HttpEvent evt;
         private final ObjectMapper mapper;
+        private JsonGenerator generator;
 
         @Inject
-        public TimeGetter(DBCollection collection, BasicDBObject query, HttpEvent evt, ObjectMapper mapper) {
+        public TimeGetter(TimeEvents events, BasicDBObject query, HttpEvent evt, ObjectMapper mapper,
+                EventPage page) {
             this.mapper = mapper;
             this.evt = evt;
             query.put(type, time);
+            page.constrain(query);
             String fields = evt.urlParameter("fields");
             DBObject projection = null;
             if (fields != null) {
@@ -107,7 +103,26 @@ class GetTimeResource extends Page {
                     projection.put(field, 1);
                 }
             }
-            cur = projection == null ? collection.find(query) : collection.find(query, projection);
+            if (page.limit() > 0) {
+                // A bounded page is read whole, to know if there is another
+                cur = null;
+                if (projection != null) {
+                    // Needed for the continuation token
+                    projection.put(start, 1);
+                }
+                EventPage.Results results = page.read(events, query, projection);
+                if (results.after != null) {
+                    add(AFTER, results.after);
+                }
+                if (evt.method() == Method.HEAD) {
+                    setState(new RespondWith(200));
+                } else {
+                    ok(results.events);
+                }
+                return;
+            }
+            cur = page.isSorted() ? events.findSorted(query, projection, page.isDescending())
+                    : events.find(query, projection);
             evt.channel().closeFuture().addListener(new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
@@ -116,6 +131,7 @@ class GetTimeResource extends Page {
             });
             setState(new RespondWith(200));
             if (!cur.hasNext()) {
+                cur.close();
                 setMessage("[]");
             } else {
                 if (evt.method() != Method.HEAD && evt.channel().isOpen()) {
@@ -126,24 +142,85 @@ class GetTimeResource extends Page {
 
         @Override
         public void operationComplete(ChannelFuture future) throws Exception {
-            if (first.compareAndSet(true, false)) {
-                future = future.channel().write(openBracket.copy());
+            if (!future.isSuccess()) {
+                cur.close();
+                return;
             }
-            if (!cur.hasNext()) {
-                future = future.channel().write(closeBracket.copy());
+            Channel channel = future.channel();
+            if (!channel.isWritable()) {
+                channel.pipeline().addLast(new ResumeWhenWritable());
+                return;
+            }
+            ByteBuf buf = channel.alloc().ioBuffer(BATCH_BYTES + BATCH_BYTES / 4);
+            out.buf = buf;
+            boolean done;
+            try {
+                if (generator == null) {
+                    generator = mapper.getFactory().createGenerator(out);
+                    generator.writeStartArray();
+                }
+                while (cur.hasNext() && buf.readableBytes() < BATCH_BYTES) {
+                    mapper.writeValue(generator, cur.next());
+                }
+                done = !cur.hasNext();
+                if (done) {
+                    generator.writeEndArray();
+                    generator.close();
+                    buf.writeByte('\n');
+                } else {
+                    generator.flush();
+                }
+            } catch (IOException | RuntimeException ex) {
+                buf.release();
+                cur.close();
+                throw ex;
+            } finally {
+                out.buf = null;
+            }
+            future = channel.writeAndFlush(buf);
+            if (done) {
+                cur.close();
                 if (!evt.requestsConnectionStayOpen()) {
                     future.addListener(ChannelFutureListener.CLOSE);
                 }
-                return;
+            } else {
+                future.addListener(this);
             }
-            DBObject obj = cur.next();
-            Map<?, ?> m = obj.toMap();
-            ByteBuf b = Unpooled.wrappedBuffer(mapper.writeValueAsBytes(m));
-            future = future.channel().write(b);
-            if (cur.hasNext()) {
-                future.channel().write(comma.copy());
+        }
+
+        /**
+         * Added to the pipeline while the channel's outbound buffer is
+         * full, to write the next batch once it has drained.
+         */
+        private final class ResumeWhenWritable extends ChannelInboundHandlerAdapter {
+
+            @Override
+            public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+                ctx.fireChannelWritabilityChanged();
+                if (ctx.channel().isWritable()) {
+                    ctx.pipeline().remove(this);
+                    TimeGetter.this.operationComplete(ctx.channel().newSucceededFuture());
+                }
             }
-            future.addListener(this);
+        }
+    }
+
+    /**
+     * Lets the generator write into whichever buffer the current batch is
+     * using.
+     */
+    private static final class BufferOutput extends OutputStream {
+
+        private ByteBuf buf;
+
+        @Override
+        public void write(int b) {
+            buf.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) {
+            buf.writeBytes(bytes, off, len);
         }
     }
 }
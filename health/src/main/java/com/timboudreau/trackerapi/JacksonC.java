@@ -10,6 +10,7 @@ import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 import com.mastfrog.jackson.JacksonConfigurer;
+import com.timboudreau.trackerapi.support.TimeEventSerializer;
 import java.io.IOException;
 import org.bson.types.ObjectId;
 import org.openide.util.lookup.ServiceProvider;
@@ -26,6 +27,7 @@ public final class JacksonC implements JacksonConfigurer {
         om.enable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY);
         SimpleModule sm = new SimpleModule("mongo", new Version(1, 0, 0, null, "com.timboudreau", "trackerapi"));
         sm.addSerializer(new C());
+        sm.addSerializer(new TimeEventSerializer());
         om.registerModule(sm);
         JodaModule jodaModule = new JodaModule();
         om.registerModule(jodaModule);
@@ -9,13 +9,14 @@ import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
 import static com.timboudreau.trackerapi.Properties.*;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
+import com.timboudreau.trackerapi.support.SetCatalog;
 import com.timboudreau.trackerapi.support.TimeCollectionFinder;
+import com.timboudreau.trackerapi.support.TimeEvents;
+import com.timboudreau.trackerapi.support.TimeSet;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.IOException;
 import java.util.List;
@@ -33,7 +34,7 @@ public final class ModifyEventsResource extends Page {
     public ModifyEventsResource(HttpEvent evt, ActeurFactory af) {
         add(af.matchPath(PAT));
         add(af.matchMethods(Method.PUT, Method.POST, Method.DELETE));
-        add(af.banParameters(type));
+        add(af.banParameters(type, limit, sort, after));
         add(AuthenticationActeur.class);
         add(CreateCollectionPolicy.DONT_CREATE.toActeur());
         add(TimeCollectionFinder.class);
@@ -60,15 +61,18 @@ public final class ModifyEventsResource extends Page {
     private static class Modifier extends Acteur {
 
         @Inject
-        public Modifier(HttpEvent evt, DBCollection collection, BasicDBObject query, Body something) throws IOException {
+        public Modifier(HttpEvent evt, TimeEvents events, BasicDBObject query, Body something, TimeSet set, SetCatalog catalog) throws IOException {
             query.put(type, time);
             boolean isDelete = evt.method() == Method.DELETE;
             DBObject modification = new BasicDBObject(isDelete ? "$unset"
                     : "$set", new BasicDBObject(evt.path().getLastElement().toString(),
                     something.object)).append("$inc", new BasicDBObject("version", 1));
-            WriteResult res = collection.update(query, modification, false, true, WriteConcern.ACKNOWLEDGED);
-            String resultJson = Timetracker.quickJson("updated", res.getN());
-            setState(new RespondWith(res.getN() > 0 ? HttpResponseStatus.ACCEPTED
+            int updated = events.update(query, modification, true, WriteConcern.ACKNOWLEDGED);
+            if (updated > 0) {
+                catalog.modified(set);
+            }
+            String resultJson = Timetracker.quickJson("updated", updated);
+            setState(new RespondWith(updated > 0 ? HttpResponseStatus.ACCEPTED
                     : HttpResponseStatus.GONE, resultJson));
         }
     }
@@ -32,6 +32,10 @@ public final class Properties {
     public static final String moveTo = "moveTo";
     public static final String newStart = "newStart";
     public static final String newEnd = "newEnd";
+    //Paging
+    public static final String limit = "limit";
+    public static final String sort = "sort";
+    public static final String after = "after";
 
     private Properties() {
     }
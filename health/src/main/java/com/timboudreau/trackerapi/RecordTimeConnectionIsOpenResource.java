@@ -16,13 +16,15 @@ import com.mastfrog.acteur.headers.Method;
 import com.mastfrog.acteur.util.Connection;
 import com.mastfrog.util.time.TimeUtil;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import com.mongodb.WriteConcern;
 import static com.timboudreau.trackerapi.Properties.*;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
 import com.timboudreau.trackerapi.support.LiveWriter;
+import com.timboudreau.trackerapi.support.SetCatalog;
 import com.timboudreau.trackerapi.support.TimeCollectionFinder;
+import com.timboudreau.trackerapi.support.TimeEvents;
+import com.timboudreau.trackerapi.support.TimeSet;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -74,7 +76,7 @@ final class RecordTimeConnectionIsOpenResource extends Page {
         private final AtomicBoolean isRunning = new AtomicBoolean(true);
 
         @Inject
-        LiveTime(@Named("periodicLiveWrites") final boolean pings, final HttpEvent evt, final Provider<DBCollection> coll, TTUser user, Application application, final Provider<LiveWriter> writer) {
+        LiveTime(@Named("periodicLiveWrites") final boolean pings, final HttpEvent evt, final TimeEvents events, TTUser user, Application application, final Provider<LiveWriter> writer, TimeSet set, SetCatalog catalog) {
             System.out.println("RecordTimeConnectionIsOpenResource LiveTime init");
             toWrite.append(by, user.idAsString())
                     .append(start, created)
@@ -96,7 +98,8 @@ final class RecordTimeConnectionIsOpenResource extends Page {
             setChunked(false);
             setState(new RespondWith(HttpResponseStatus.ACCEPTED));
             setResponseBodyWriter(this);
-            coll.get().insert(toWrite, WriteConcern.FSYNC_SAFE);
+            events.insert(toWrite, WriteConcern.FSYNC_SAFE);
+            catalog.added(set, 1);
             ObjectId id = (ObjectId) toWrite.get(_id);
             add(XTI, id.toStringMongod());
             if (evt.urlParameter("localId") != null) {
@@ -105,7 +108,7 @@ final class RecordTimeConnectionIsOpenResource extends Page {
 
             final AtomicBoolean done = new AtomicBoolean();
             final Callable<?> c = application.getRequestScope()
-                    .wrap(new PeriodicDurationUpdater(toWrite, coll, done,
+                    .wrap(new PeriodicDurationUpdater(toWrite, events, done,
                             isRunning, created));
 
             if (pings) {
@@ -195,14 +198,14 @@ final class RecordTimeConnectionIsOpenResource extends Page {
         static class PeriodicDurationUpdater implements Callable<Void> {
 
             private final BasicDBObject toWrite;
-            private final Provider<DBCollection> coll;
+            private final TimeEvents events;
             private final AtomicBoolean done;
             private final AtomicBoolean running;
             private final long start;
 
-            public PeriodicDurationUpdater(BasicDBObject toWrite, Provider<DBCollection> coll, AtomicBoolean done, AtomicBoolean running, long start) {
+            public PeriodicDurationUpdater(BasicDBObject toWrite, TimeEvents events, AtomicBoolean done, AtomicBoolean running, long start) {
                 this.toWrite = toWrite;
-                this.coll = coll;
+                this.events = events;
                 this.done = done;
                 this.running = running;
                 this.start = start;
@@ -213,7 +216,7 @@ final class RecordTimeConnectionIsOpenResource extends Page {
                     long end = System.currentTimeMillis();
                     System.out.println("Write time " + Duration.ofMillis(end - start));
                     toWrite.append("end", end).append(Properties.duration, end - start).append(Properties.running, running.get());
-                    coll.get().save(toWrite, WriteConcern.UNACKNOWLEDGED);
+                    events.save(toWrite, WriteConcern.UNACKNOWLEDGED);
                 }
                 return null;
             }
@@ -6,14 +6,12 @@ import com.mastfrog.acteur.ActeurFactory;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
+import com.mastfrog.acteur.mongo.userstore.MongoUserFactory;
 import com.mastfrog.acteur.mongo.userstore.TTUser;
 import com.mastfrog.acteur.headers.Method;
 import com.mastfrog.acteur.util.PasswordHasher;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.UserCollectionFinder;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -39,7 +37,7 @@ public class SetPasswordResource extends Page {
     static class SetPasswordActeur extends Acteur {
 
         @Inject
-        SetPasswordActeur(DBCollection coll, HttpEvent evt, PasswordHasher hasher, TTUser user) throws IOException {
+        SetPasswordActeur(MongoUserFactory users, HttpEvent evt, PasswordHasher hasher, TTUser user) throws IOException {
             String userName = evt.path().getElement(1).toString();
             String pw = evt.content().toString(Charset.forName("UTF-8"));
             if (pw.length() < SignUpResource.SignerUpper.MIN_PASSWORD_LENGTH) {
@@ -55,19 +53,13 @@ public class SetPasswordResource extends Page {
                         + " cannot set the password for " + userName);
                 return;
             }
+            String hashed = hasher.encryptPassword(pw);
+            // Through the user factory, so caches, open connections and
+            // other servers forget the old password
+            DBObject target = new BasicDBObject("_id", user.id()).append("name", user.names());
+            users.setPasswordHash(target, hashed);
 
-            System.out.println("Set password for " + userName + " to " + pw);
-
-            String hashed = hasher.encryptPassword(pw.toString());
-
-            DBObject query = coll.findOne(new BasicDBObject("name", userName));
-
-            DBObject update = new BasicDBObject("$set", new BasicDBObject("pass", hashed)).append("$inc",
-                    new BasicDBObject("version", 1));
-
-            WriteResult res = coll.update(query, update, false, false, WriteConcern.FSYNCED);
-
-            ok(Timetracker.quickJson("updated", res.getN()));
+            ok(Timetracker.quickJson("updated", 1));
         }
     }
 }
@@ -8,15 +8,14 @@ import com.mastfrog.acteur.ActeurFactory;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
-import com.mastfrog.acteur.mongo.userstore.TTUser;
 import com.mastfrog.acteur.headers.Method;
-import com.mongodb.DB;
 import static com.timboudreau.trackerapi.Properties.type;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
+import com.timboudreau.trackerapi.support.SetCatalog;
+import com.timboudreau.trackerapi.support.SetCatalog.SetInfo;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -40,24 +39,24 @@ public class SetsResource extends Page {
 
     @Override
     protected String getDescription() {
-        return "List user's sets of data";
+        return "List user's sets of data - with ?detail=true, with the "
+                + "number of events, created and last modified times of each";
     }
 
     private static class ListSetsActeur extends Acteur {
 
         @Inject
-        ListSetsActeur(HttpEvent evt, DB db, TTUser user, ObjectMapper mapper) throws IOException {
-            List<String> l = new ArrayList<>();
-            String pfix = new StringBuilder(evt.path().getElement(1).toString()).append('_').toString();
-            for (String coll : db.getCollectionNames()) {
-                if (coll.startsWith(pfix)) {
-                    l.add(coll.substring(pfix.length()));
-                }
-            }
-            Collections.sort(l);
+        ListSetsActeur(HttpEvent evt, SetCatalog catalog, ObjectMapper mapper) throws IOException {
+            List<SetInfo> sets = catalog.list(evt.path().getElement(1).toString());
             if (evt.method() == Method.HEAD) {
                 ok();
+            } else if ("true".equals(evt.urlParameter(Properties.detail))) {
+                ok(sets);
             } else {
+                List<String> l = new ArrayList<>(sets.size());
+                for (SetInfo set : sets) {
+                    l.add(set.name);
+                }
                 ok(l);
             }
         }
@@ -7,16 +7,16 @@ import com.mastfrog.acteur.ActeurFactory;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
-import com.mastfrog.acteur.mongo.CursorWriterActeur;
+import com.mastfrog.acteur.mongo.userstore.AuthorizationGraph;
+import com.mastfrog.acteur.mongo.userstore.AuthorizationGraph.UserNode;
 import com.mastfrog.acteur.mongo.userstore.TTUser;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.headers.Method;
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
-import com.timboudreau.trackerapi.support.UserCollectionFinder;
-import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -29,9 +29,7 @@ public class SharesWithMeResources extends Page {
         add(af.matchPath("^users/.*?/sharers/?$"));
         add(af.matchMethods(Method.GET));
         add(AuthenticationActeur.class);
-        add(UserCollectionFinder.class);
         add(FindSharers.class);
-        add(CursorWriterActeur.class);
     }
 
     @Override
@@ -41,20 +39,17 @@ public class SharesWithMeResources extends Page {
     
     private static class FindSharers extends Acteur {
         @Inject
-        FindSharers(HttpEvent evt, TTUser user, DBCollection coll, ObjectMapper mapper) throws IOException {
+        FindSharers(HttpEvent evt, TTUser user, AuthorizationGraph graph, ObjectMapper mapper) throws IOException {
             add(Headers.header("UserID"), user.id().toStringMongod());
-            BasicDBObject projection = new BasicDBObject("_id", 1).append("name", 1).append("displayName", 1);
-            DBCursor cursor = coll.find(new BasicDBObject("authorizes", user.id()), projection);
-            if (cursor == null) {
-                setState(new RespondWith(HttpResponseStatus.GONE, "No record of " + user.name()));
-                return;
-            }
-            if (!cursor.hasNext()) {
-                ok("[]\n");
-                cursor.close();
-            } else {
-                next(cursor);
+            List<Map<String, Object>> result = new ArrayList<>();
+            for (UserNode sharer : graph.authorizersOf(user.id())) {
+                Map<String, Object> m = new LinkedHashMap<>();
+                m.put("_id", sharer.id().toStringMongod());
+                m.put("name", sharer.names());
+                m.put("displayName", sharer.displayName());
+                result.add(m);
             }
+            ok(mapper.writeValueAsString(result) + "\n");
         }
     }
 }
@@ -11,11 +11,9 @@ import com.mastfrog.acteur.auth.OAuthPlugins;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.headers.Method;
 import com.mastfrog.acteur.util.PasswordHasher;
+import com.mastfrog.acteur.mongo.userstore.MongoUserFactory;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
 import com.timboudreau.questions.Subscribe.Publisher;
 import com.timboudreau.trackerapi.support.UserCollectionFinder;
 import io.netty.buffer.ByteBuf;
@@ -28,9 +26,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Collections;
 import java.util.Map;
-import org.bson.types.ObjectId;
-import org.joda.time.DateTime;
 import static com.timboudreau.trackerapi.Properties.*;
 import static io.netty.handler.codec.http.HttpResponseStatus.CREATED;
 
@@ -62,12 +59,12 @@ class SignUpResource extends Page {
         public static final int MIN_PASSWORD_LENGTH = 3;
         public static final int MAX_USERNAME_LENGTH = 40;
         public static final int MIN_USERNAME_LENGTH = 3;
-        private final DBObject nue;
+        private DBObject nue;
         private final HttpEvent evt;
         private final ObjectMapper mapper;
 
         @Inject
-        SignerUpper(DBCollection coll, HttpEvent evt, PasswordHasher crypto, ObjectMapper mapper, OAuthPlugins pgns, Publisher publisher) throws UnsupportedEncodingException, IOException {
+        SignerUpper(MongoUserFactory users, HttpEvent evt, PasswordHasher crypto, ObjectMapper mapper, OAuthPlugins pgns, Publisher publisher) throws UnsupportedEncodingException, IOException {
             this.mapper = mapper;
             this.evt = evt;
             add(Headers.CONTENT_TYPE, MediaType.JSON_UTF_8);
@@ -75,11 +72,6 @@ class SignUpResource extends Page {
             String userName = URLDecoder.decode(evt.path().getElement(1).toString(),
                     "UTF-8");
 
-            nue = new BasicDBObject(name, new String[]{userName})
-                    .append(displayName, evt.urlParameter(displayName))
-                    .append(created, DateTime.now().getMillis())
-                    .append(version, 0).append("authorizes", new ObjectId[0]);
-
             if (!(evt.request() instanceof FullHttpRequest)) {
                 if (userName.length() > MAX_USERNAME_LENGTH) {
                     setState(new RespondWith(HttpResponseStatus.INTERNAL_SERVER_ERROR,
@@ -95,12 +87,6 @@ class SignUpResource extends Page {
                         "Minium username length " + MIN_USERNAME_LENGTH));
                 return;
             }
-            DBObject existing = coll.findOne(new BasicDBObject("name", userName));
-            if (existing != null) {
-                setState(new RespondWith(HttpResponseStatus.CONFLICT,
-                        "A user named '" + userName + "' already exists"));
-                return;
-            }
             evt.channel().read();
             FullHttpRequest req = (FullHttpRequest) evt.request();
             ByteBuf inbound = req.content();
@@ -125,22 +111,26 @@ class SignUpResource extends Page {
                 return;
             }
             String encrypted = crypto.encryptPassword(password);
-            nue.put(pass, encrypted);
-            nue.put(origPass, encrypted);
-            WriteResult res = coll.save(nue, WriteConcern.FSYNCED);
-//            if (res.getN() != 0) {
+            // Through the user factory, whose unique index on names settles
+            // concurrent sign-ups with the same name, and which tells the
+            // authorization graph, caches and other servers about the user
+            nue = users.newUser(userName, encrypted, evt.urlParameter(displayName),
+                    Collections.<String, Object>singletonMap(origPass, encrypted));
+            if (nue == null) {
+                setState(new RespondWith(HttpResponseStatus.CONFLICT,
+                        "A user named '" + userName + "' already exists"));
+                return;
+            }
             pgns.createDisplayNameCookie(evt, response(), displayName);
             setState(new RespondWith(HttpResponseStatus.CREATED));
             Map<String, Object> m = nue.toMap();
             m.remove(pass);
             m.remove(origPass);
             m.remove("slugs");
+            m.remove("tokens");
             setState(new RespondWith(CREATED, m));
 
             publisher.publish("signup", new BasicDBObject("name", evt.urlParameter(displayName)));
-//            } else {
-//                setState(new RespondWith(HttpResponseStatus.INTERNAL_SERVER_ERROR, "No write"));
-//            }
         }
 
         @Override
@@ -3,6 +3,10 @@ package com.timboudreau.trackerapi;
 import com.google.common.net.MediaType;
 import com.google.inject.Inject;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
+import com.timboudreau.trackerapi.support.EventPage;
+import com.timboudreau.trackerapi.support.TimeEvents;
+import com.timboudreau.trackerapi.support.TimeMigration;
+import com.timboudreau.trackerapi.support.TimeSet;
 import com.mastfrog.giulius.Dependencies;
 import com.mastfrog.giulius.annotations.Defaults;
 import com.mastfrog.giulius.annotations.Namespace;
@@ -50,7 +54,8 @@ import org.joda.time.Interval;
 // Classes which are injected:
 @ImplicitBindings({TTUser.class, DBCollection.class, CreateCollectionPolicy.class,
     DBCursor.class, Interval.class, Body.class, String.class, DBObject.class,
-    ObjectId.class, AdjustTimeResource.AdjustParameters.class, MapFilter.class})
+    ObjectId.class, AdjustTimeResource.AdjustParameters.class, MapFilter.class, TimeSet.class,
+    TimeEvents.class, EventPage.class})
 @Defaults(namespace =
         @Namespace(Timetracker.TIMETRACKER),
         value = {"periodicLiveWrites=true", "port=7739"})
@@ -84,6 +89,13 @@ public class Timetracker extends Application {
                 new ServerModule<>(Timetracker.class),
                 new TimetrackerAppModule(settings)).build();
 
+        if (settings.getBoolean(TimeMigration.SETTINGS_KEY_MIGRATE, false)) {
+            // Copy per-user time collections into the shared layout and exit
+            deps.getInstance(TimeMigration.class).migrate();
+            deps.shutdown();
+            return;
+        }
+
         // Insantiate the server, start it and wait for it to exit
         Server server = deps.getInstance(Server.class);
         server.start(settings.getInt("port", 7739)).await();
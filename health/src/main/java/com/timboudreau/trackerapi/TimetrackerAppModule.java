@@ -26,6 +26,8 @@ import com.mastfrog.acteur.util.Realm;
 import com.mastfrog.settings.Settings;
 import com.mongodb.BasicDBObject;
 import com.timboudreau.questions.QuestionsModule;
+import com.timboudreau.trackerapi.support.SetCatalog;
+import com.timboudreau.trackerapi.support.TimeCollections;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import org.joda.time.DateTime;
@@ -50,7 +52,13 @@ final class TimetrackerAppModule extends AbstractModule {
         MongoModule mongoModule = new MongoModule("timetracker")
                 .bindCollection("events")
                 .bindCollection("login")
-                .bindCollection(USERS_COLLECTION_NAME, userCollectionName);
+                .bindCollection(USERS_COLLECTION_NAME, userCollectionName)
+                .bindCollection(TimeCollections.METADATA_COLLECTION_NAME,
+                        settings.getString(TimeCollections.SETTINGS_KEY_METADATA_COLLECTION,
+                                TimeCollections.METADATA_COLLECTION_NAME))
+                .bindCollection(SetCatalog.CATALOG_COLLECTION_NAME,
+                        settings.getString(SetCatalog.SETTINGS_KEY_CATALOG_COLLECTION,
+                                SetCatalog.CATALOG_COLLECTION_NAME));
 
         bind(BasicDBObject.class).toProvider(EventToQuery.class);
 
@@ -8,16 +8,16 @@ import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.auth.AuthenticationActeur;
 import com.mastfrog.acteur.headers.Method;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import static com.timboudreau.trackerapi.Properties.*;
 import com.timboudreau.trackerapi.support.AuthorizedChecker;
 import com.timboudreau.trackerapi.support.CreateCollectionPolicy;
 import com.timboudreau.trackerapi.support.Intervals;
+import com.timboudreau.trackerapi.support.EventCursor;
 import com.timboudreau.trackerapi.support.TimeCollectionFinder;
+import com.timboudreau.trackerapi.support.TimeEvent;
+import com.timboudreau.trackerapi.support.TimeEvents;
 import java.io.IOException;
-import org.joda.time.Interval;
 
 /**
  *
@@ -31,7 +31,7 @@ final class TotalTimeResource extends Page {
     public TotalTimeResource(ActeurFactory af) {
         add(af.matchPath(PAT));
         add(af.matchMethods(Method.GET, Method.HEAD));
-        add(af.banParameters("type"));
+        add(af.banParameters("type", limit, sort, after));
         add(AuthenticationActeur.class);
         add(AuthorizedChecker.class);
         add(CreateCollectionPolicy.DONT_CREATE.toActeur());
@@ -47,7 +47,7 @@ final class TotalTimeResource extends Page {
     private static class TotalGetter extends Acteur {
 
         @Inject
-        public TotalGetter(HttpEvent evt, DBCollection collection, BasicDBObject query) throws IOException {
+        public TotalGetter(HttpEvent evt, TimeEvents events, BasicDBObject query) throws IOException {
             query.put(type, time);
             query.remove(detail);
 
@@ -60,13 +60,17 @@ final class TotalTimeResource extends Page {
                 summary = false;
             }
 
-            Intervals ivals = new Intervals();
-            try (DBCursor cur = collection.find(query)) {
-                for (; cur.hasNext();) {
-                    DBObject ob = cur.next();
-                    Long startTime = (Long) ob.get(start);
-                    Long endTime = (Long) ob.get(end);
-                    ivals.add(new Interval(startTime, endTime), "" + ob.get("_id"));
+            // Overlapping events are merged in one pass over them in order
+            // of start time; ids are only needed to list each interval's events
+            Intervals ivals = new Intervals(detail);
+            DBObject projection = new BasicDBObject(start, 1).append(end, 1);
+            if (!detail) {
+                projection.put(_id, 0);
+            }
+            try (EventCursor cur = events.findSorted(query, projection, false)) {
+                while (cur.hasNext()) {
+                    TimeEvent ob = cur.next();
+                    ivals.add(ob.start(), ob.end(), detail ? ob.idAsString() : null);
                 }
             }
             ok(ivals.toJSON(detail, summary));
@@ -0,0 +1,695 @@
+package com.timboudreau.trackerapi.support;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import com.timboudreau.trackerapi.Properties;
+import static com.timboudreau.trackerapi.support.TimeStorage.OWNER;
+import static com.timboudreau.trackerapi.support.TimeStorage.SET;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.bson.types.ObjectId;
+
+/**
+ * Time events stored in buckets - one document per user, set and (UTC) day
+ * of the events' start, holding the events as parallel arrays of ids,
+ * starts, ends and remaining properties. A range of time is read from a
+ * handful of documents and index entries rather than one per event.
+ * <p/>
+ * Adding an event pushes it onto its day's bucket, which is atomic. Other
+ * changes read each bucket the query can touch, apply the query and
+ * update to its events in memory, and write the bucket back only if no
+ * one else has changed it since (each bucket carries a revision), retrying
+ * otherwise. An event whose start moves to another day moves to that
+ * day's bucket - it is placed there first and only then removed from the
+ * old one, and placing it replaces any copy left by an earlier attempt, so
+ * an interrupted move can briefly leave it in both buckets but never in
+ * neither. An event moved to a later day is not edited again when that
+ * day's bucket is reached.
+ * <p/>
+ * Buckets are indexed by day, and by the ids of the events they hold, so a
+ * query for one event by id reads one bucket whatever its start.
+ * <p/>
+ * Queries are those EventToQuery builds - equality, <code>$gt</code>,
+ * <code>$gte</code>, <code>$lt</code> and <code>$lte</code> on numbers and
+ * ids, and <code>$or</code>;
+ * updates may use <code>$set</code>, <code>$unset</code> and
+ * <code>$inc</code>.
+ *
+ * @author Tim Boudreau
+ */
+final class BucketedTimeEvents implements TimeEvents {
+
+    static final long DAY = 24L * 60 * 60 * 1000;
+    static final String DAY_FIELD = "day";
+    static final String REVISION = "rev";
+    static final String IDS = "ids";
+    static final String STARTS = "starts";
+    static final String ENDS = "ends";
+    static final String PROPERTIES = "props";
+    private static final int MAX_ATTEMPTS = 10;
+    private static final DBObject BY_DAY = new BasicDBObject(DAY_FIELD, 1);
+    private static final DBObject BY_DAY_DESCENDING = new BasicDBObject(DAY_FIELD, -1);
+    private final TimeStorage storage;
+    private final TimeSet set;
+    private final DBCollection buckets;
+    private final AtomicBoolean create;
+
+    BucketedTimeEvents(TimeStorage storage, TimeSet set, DBCollection buckets, boolean create) {
+        this.storage = storage;
+        this.set = set;
+        this.buckets = buckets;
+        this.create = new AtomicBoolean(create);
+    }
+
+    @Override
+    public TimeSet set() {
+        return set;
+    }
+
+    private void created() {
+        // Only create when something is actually written
+        if (create.compareAndSet(true, false)) {
+            storage.created(set);
+        }
+    }
+
+    static long day(long time) {
+        return time - Math.floorMod(time, DAY);
+    }
+
+    /**
+     * The buckets a query can match - all of the set's, unless the query
+     * bounds the start time.
+     */
+    private BasicDBObject bucketQuery(DBObject query) {
+        BasicDBObject result = new BasicDBObject(OWNER, set.owner()).append(SET, set.name());
+        Object start = query.get(Properties.start);
+        if (start instanceof Number) {
+            result.append(DAY_FIELD, day(((Number) start).longValue()));
+        } else if (start instanceof DBObject) {
+            DBObject range = (DBObject) start;
+            BasicDBObject days = new BasicDBObject();
+            Object lower = range.containsField("$gte") ? range.get("$gte") : range.get("$gt");
+            if (lower instanceof Number) {
+                days.append("$gte", day(((Number) lower).longValue()));
+            }
+            Object upper = range.containsField("$lte") ? range.get("$lte") : range.get("$lt");
+            if (upper instanceof Number) {
+                days.append("$lte", day(((Number) upper).longValue()));
+            }
+            if (!days.isEmpty()) {
+                result.append(DAY_FIELD, days);
+            }
+        }
+        Object id = query.get(Properties._id);
+        if (id instanceof ObjectId) {
+            result.append(IDS, id);
+        }
+        return result;
+    }
+
+    /**
+     * Unpack the events in a bucket, in the order they were added.
+     */
+    private static List<BasicDBObject> events(DBObject bucket) {
+        List<?> ids = (List<?>) bucket.get(IDS);
+        List<?> starts = (List<?>) bucket.get(STARTS);
+        List<?> ends = (List<?>) bucket.get(ENDS);
+        List<?> props = (List<?>) bucket.get(PROPERTIES);
+        int count = ids == null ? 0 : ids.size();
+        List<BasicDBObject> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            BasicDBObject event = new BasicDBObject(Properties._id, ids.get(i));
+            Object p = props.get(i);
+            if (p instanceof DBObject) {
+                event.putAll((DBObject) p);
+            }
+            event.put(Properties.start, starts.get(i));
+            event.put(Properties.end, ends.get(i));
+            result.add(event);
+        }
+        return result;
+    }
+
+    private static BasicDBObject properties(DBObject event) {
+        BasicDBObject result = new BasicDBObject(event.toMap());
+        result.removeField(Properties._id);
+        result.removeField(Properties.start);
+        result.removeField(Properties.end);
+        return result;
+    }
+
+    private static long number(Object o) {
+        return o instanceof Number ? ((Number) o).longValue() : 0;
+    }
+
+    /**
+     * Add an event to its day's bucket, creating the bucket if need be,
+     * unless the bucket already holds an event with its id.
+     *
+     * @return false if the event was already there
+     */
+    private boolean push(DBObject event, WriteConcern concern) {
+        long start = number(event.get(Properties.start));
+        BasicDBObject query = new BasicDBObject(OWNER, set.owner()).append(SET, set.name())
+                .append(DAY_FIELD, day(start))
+                .append(IDS, new BasicDBObject("$ne", event.get(Properties._id)));
+        BasicDBObject update = new BasicDBObject("$push", new BasicDBObject(IDS, event.get(Properties._id))
+                .append(STARTS, start)
+                .append(ENDS, number(event.get(Properties.end)))
+                .append(PROPERTIES, properties(event)))
+                .append("$inc", new BasicDBObject(REVISION, 1));
+        WriteResult result;
+        try {
+            result = buckets.update(query, update, true, false, concern);
+        } catch (DuplicateKeyException ex) {
+            // Another request created the bucket first, or it already holds
+            // the event
+            result = buckets.update(query, update, false, false, concern);
+        }
+        return !result.wasAcknowledged() || result.getN() > 0;
+    }
+
+    /**
+     * Put an event into its day's bucket, replacing it if it is already
+     * there.
+     */
+    private void place(BasicDBObject event, WriteConcern concern) {
+        // Whether the event was pushed is needed
+        WriteConcern acknowledged = concern.isAcknowledged() ? concern : WriteConcern.ACKNOWLEDGED;
+        Object id = event.get(Properties._id);
+        BasicDBObject query = new BasicDBObject(OWNER, set.owner()).append(SET, set.name())
+                .append(DAY_FIELD, day(number(event.get(Properties.start))))
+                .append(IDS, id);
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            DBObject bucket = buckets.findOne(query);
+            if (bucket == null) {
+                if (push(event, acknowledged)) {
+                    return;
+                }
+                continue;
+            }
+            List<BasicDBObject> events = events(bucket);
+            for (int i = 0; i < events.size(); i++) {
+                if (id.equals(events.get(i).get(Properties._id))) {
+                    events.set(i, event);
+                }
+            }
+            if (rewrite(bucket, events, acknowledged)) {
+                return;
+            }
+        }
+        throw new ConcurrentModificationException("Gave up moving " + id + " in " + set
+                + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Replace the events of a bucket, if it has not changed since it was
+     * read.
+     *
+     * @return false if it has
+     */
+    private boolean rewrite(DBObject bucket, List<BasicDBObject> events, WriteConcern concern) {
+        // The result is needed to detect a conflict
+        WriteConcern acknowledged = concern.isAcknowledged() ? concern : WriteConcern.ACKNOWLEDGED;
+        BasicDBObject query = new BasicDBObject(Properties._id, bucket.get(Properties._id))
+                .append(REVISION, bucket.get(REVISION));
+        if (events.isEmpty()) {
+            return buckets.remove(query, acknowledged).getN() > 0;
+        }
+        List<Object> ids = new ArrayList<>(events.size());
+        List<Object> starts = new ArrayList<>(events.size());
+        List<Object> ends = new ArrayList<>(events.size());
+        List<Object> props = new ArrayList<>(events.size());
+        for (BasicDBObject event : events) {
+            ids.add(event.get(Properties._id));
+            starts.add(number(event.get(Properties.start)));
+            ends.add(number(event.get(Properties.end)));
+            props.add(properties(event));
+        }
+        BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(IDS, ids)
+                .append(STARTS, starts).append(ENDS, ends).append(PROPERTIES, props))
+                .append("$inc", new BasicDBObject(REVISION, 1));
+        return buckets.update(query, update, false, false, acknowledged).getN() > 0;
+    }
+
+    /**
+     * A change to the events matching a query.
+     */
+    interface Edit {
+
+        /**
+         * Change an event.
+         *
+         * @param event The event, which may be modified
+         * @return The event as it should be stored, or null to remove it
+         */
+        BasicDBObject apply(BasicDBObject event);
+    }
+
+    /**
+     * The result of applying an edit to the events of one bucket.
+     */
+    static final class Split {
+
+        /**
+         * The events which stay in the bucket, edited or not.
+         */
+        final List<BasicDBObject> keep = new ArrayList<>();
+        /**
+         * Edited events whose start is now on another day.
+         */
+        final List<BasicDBObject> moved = new ArrayList<>();
+        /**
+         * The ids of the events the edit was applied to.
+         */
+        final List<Object> edited = new ArrayList<>();
+        int matched;
+    }
+
+    /**
+     * Apply an edit to the events of a bucket which match a query.
+     *
+     * @param bucket The bucket
+     * @param query The query
+     * @param multi Whether to edit every match, or only the first
+     * @param edit The edit
+     * @param done The ids of events already edited, which are left alone -
+     * events moved here from an earlier day by the same edit
+     * @return The events to keep and to move
+     */
+    static Split split(DBObject bucket, DBObject query, boolean multi, Edit edit, Set<Object> done) {
+        long day = number(bucket.get(DAY_FIELD));
+        Split result = new Split();
+        for (BasicDBObject event : events(bucket)) {
+            if ((multi || result.matched == 0) && !done.contains(event.get(Properties._id))
+                    && matches(query, event)) {
+                result.matched++;
+                result.edited.add(event.get(Properties._id));
+                event = edit.apply(event);
+                if (event == null) {
+                    continue;
+                }
+                if (day(number(event.get(Properties.start))) != day) {
+                    result.moved.add(event);
+                    continue;
+                }
+            }
+            result.keep.add(event);
+        }
+        return result;
+    }
+
+    /**
+     * Apply an edit to matching events, bucket by bucket.
+     *
+     * @return The number of events matched
+     */
+    private int edit(DBObject query, boolean multi, WriteConcern concern, Edit edit) {
+        int total = 0;
+        Set<Object> done = new HashSet<>();
+        try (DBCursor cur = buckets.find(bucketQuery(query)).sort(BY_DAY)) {
+            while (cur.hasNext() && (multi || total == 0)) {
+                DBObject bucket = cur.next();
+                for (int attempt = 1;; attempt++) {
+                    long day = number(bucket.get(DAY_FIELD));
+                    Split split = split(bucket, query, multi, edit, done);
+                    if (split.matched == 0) {
+                        break;
+                    }
+                    // Moved events go into their new buckets before leaving
+                    // this one, so a failure part way never loses them
+                    for (BasicDBObject event : split.moved) {
+                        place(event, concern);
+                    }
+                    if (rewrite(bucket, split.keep, concern)) {
+                        total += split.matched;
+                        done.addAll(split.edited);
+                        break;
+                    }
+                    // Changed by someone else since it was read
+                    bucket = buckets.findOne(new BasicDBObject(Properties._id, bucket.get(Properties._id)));
+                    if (bucket == null) {
+                        break;
+                    }
+                    if (attempt == MAX_ATTEMPTS) {
+                        throw new ConcurrentModificationException("Gave up updating " + set
+                                + " for " + DAY_FIELD + " " + day + " after " + attempt + " attempts");
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public EventCursor find(DBObject query, DBObject projection) {
+        return new BucketCursor(buckets.find(bucketQuery(query)).sort(BY_DAY), query, projection, BY_START);
+    }
+
+    @Override
+    public EventCursor findSorted(DBObject query, DBObject projection, boolean descending) {
+        return descending
+                ? new BucketCursor(buckets.find(bucketQuery(query)).sort(BY_DAY_DESCENDING), query,
+                        projection, Collections.reverseOrder(BY_START))
+                : find(query, projection);
+    }
+
+    @Override
+    public DBObject findOne(DBObject query) {
+        try (DBCursor cur = buckets.find(bucketQuery(query)).sort(BY_DAY)) {
+            while (cur.hasNext()) {
+                for (BasicDBObject event : events(cur.next())) {
+                    if (matches(query, event)) {
+                        return event;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void insert(DBObject event, WriteConcern concern) {
+        created();
+        if (event.get(Properties._id) == null) {
+            event.put(Properties._id, new ObjectId());
+        }
+        push(event, concern);
+    }
+
+    @Override
+    public void save(final DBObject event, WriteConcern concern) {
+        created();
+        if (event.get(Properties._id) == null) {
+            event.put(Properties._id, new ObjectId());
+        }
+        // The event may have been stored under another start time, so find
+        // it by id alone - an index lookup
+        BasicDBObject query = new BasicDBObject(Properties._id, event.get(Properties._id));
+        int replaced = edit(query, false, concern, new Edit() {
+            @Override
+            public BasicDBObject apply(BasicDBObject old) {
+                return new BasicDBObject(event.toMap());
+            }
+        });
+        if (replaced == 0) {
+            push(event, concern);
+        }
+    }
+
+    @Override
+    public int update(DBObject query, final DBObject update, boolean multi, WriteConcern concern) {
+        return edit(query, multi, concern, new Edit() {
+            @Override
+            public BasicDBObject apply(BasicDBObject event) {
+                for (String op : update.keySet()) {
+                    DBObject fields = (DBObject) update.get(op);
+                    for (String key : fields.keySet()) {
+                        if (Properties._id.equals(key)) {
+                            continue;
+                        }
+                        Object val = fields.get(key);
+                        switch (op) {
+                            case "$set":
+                                event.put(key, val);
+                                break;
+                            case "$unset":
+                                event.removeField(key);
+                                break;
+                            case "$inc":
+                                event.put(key, number(event.get(key)) + number(val));
+                                break;
+                            default:
+                                throw new IllegalArgumentException("Unsupported update " + op);
+                        }
+                    }
+                }
+                return event;
+            }
+        });
+    }
+
+    @Override
+    public int remove(DBObject query, WriteConcern concern) {
+        return edit(query, true, concern, new Edit() {
+            @Override
+            public BasicDBObject apply(BasicDBObject event) {
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public List<?> distinct(String field, DBObject query) {
+        Set<Object> result = new LinkedHashSet<>();
+        try (DBCursor cur = buckets.find(bucketQuery(query))) {
+            while (cur.hasNext()) {
+                for (BasicDBObject event : events(cur.next())) {
+                    if (matches(query, event)) {
+                        Object val = value(event, field);
+                        if (val instanceof List<?>) {
+                            result.addAll((List<?>) val);
+                        } else if (val != null) {
+                            result.add(val);
+                        }
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    static boolean matches(DBObject query, DBObject event) {
+        for (String key : query.keySet()) {
+            Object expected = query.get(key);
+            if ("$or".equals(key)) {
+                if (!matchesAny((List<?>) expected, event)) {
+                    return false;
+                }
+                continue;
+            }
+            Object actual = value(event, key);
+            if (expected instanceof DBObject && isOperators((DBObject) expected)) {
+                DBObject ops = (DBObject) expected;
+                for (String op : ops.keySet()) {
+                    if (!test(op, actual, ops.get(op))) {
+                        return false;
+                    }
+                }
+            } else if (!equal(actual, expected) && !contains(actual, expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesAny(List<?> queries, DBObject event) {
+        for (Object q : queries) {
+            if (matches((DBObject) q, event)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOperators(DBObject ob) {
+        for (String key : ob.keySet()) {
+            if (!key.startsWith("$")) {
+                return false;
+            }
+        }
+        return !ob.keySet().isEmpty();
+    }
+
+    private static Object value(DBObject event, String key) {
+        if (key.indexOf('.') < 0) {
+            return event.get(key);
+        }
+        Object result = event;
+        for (String part : key.split("\\.")) {
+            if (result instanceof DBObject) {
+                result = ((DBObject) result).get(part);
+            } else if (result instanceof Map<?, ?>) {
+                result = ((Map<?, ?>) result).get(part);
+            } else {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private static boolean test(String op, Object actual, Object operand) {
+        int comparison;
+        if (actual instanceof Number && operand instanceof Number) {
+            comparison = compare((Number) actual, (Number) operand);
+        } else if (actual instanceof ObjectId && operand instanceof ObjectId) {
+            comparison = ((ObjectId) actual).compareTo((ObjectId) operand);
+        } else {
+            return false;
+        }
+        switch (op) {
+            case "$gt":
+                return comparison > 0;
+            case "$gte":
+                return comparison >= 0;
+            case "$lt":
+                return comparison < 0;
+            case "$lte":
+                return comparison <= 0;
+            default:
+                throw new IllegalArgumentException("Unsupported query operator " + op);
+        }
+    }
+
+    private static int compare(Number a, Number b) {
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+            return Double.compare(a.doubleValue(), b.doubleValue());
+        }
+        return Long.compare(a.longValue(), b.longValue());
+    }
+
+    private static boolean equal(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return compare((Number) a, (Number) b) == 0;
+        }
+        if (a instanceof List<?> && b instanceof List<?>) {
+            List<?> x = (List<?>) a;
+            List<?> y = (List<?>) b;
+            if (x.size() != y.size()) {
+                return false;
+            }
+            for (int i = 0; i < x.size(); i++) {
+                if (!equal(x.get(i), y.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * As in MongoDB, a value matches an array which contains it.
+     */
+    private static boolean contains(Object actual, Object expected) {
+        if (actual instanceof List<?>) {
+            for (Object o : (List<?>) actual) {
+                if (equal(o, expected)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static BasicDBObject project(BasicDBObject event, DBObject projection) {
+        if (projection == null || projection.keySet().isEmpty()) {
+            return event;
+        }
+        boolean inclusive = false;
+        for (String key : projection.keySet()) {
+            if (!Properties._id.equals(key) && isTrue(projection.get(key))) {
+                inclusive = true;
+                break;
+            }
+        }
+        BasicDBObject result = new BasicDBObject();
+        for (String key : event.keySet()) {
+            Object p = projection.get(key);
+            boolean include = inclusive && !Properties._id.equals(key)
+                    ? p != null && isTrue(p)
+                    : p == null || isTrue(p);
+            if (include) {
+                result.put(key, event.get(key));
+            }
+        }
+        return result;
+    }
+
+    private static boolean isTrue(Object o) {
+        return o instanceof Number ? ((Number) o).doubleValue() != 0 : Boolean.TRUE.equals(o);
+    }
+
+    private static final Comparator<DBObject> BY_START = new Comparator<DBObject>() {
+        @Override
+        public int compare(DBObject a, DBObject b) {
+            return Long.compare(number(a.get(Properties.start)), number(b.get(Properties.start)));
+        }
+    };
+
+    /**
+     * Returns matching events in order of start time, since buckets are
+     * read in order of day and sorted as they are read.
+     */
+    private static final class BucketCursor implements EventCursor {
+
+        private final DBCursor cur;
+        private final DBObject query;
+        private final DBObject projection;
+        private Iterator<BasicDBObject> current = Collections.<BasicDBObject>emptyList().iterator();
+        private final Comparator<DBObject> order;
+        private TimeEvent next;
+
+        BucketCursor(DBCursor cur, DBObject query, DBObject projection, Comparator<DBObject> order) {
+            this.cur = cur;
+            this.query = query;
+            this.projection = projection;
+            this.order = order;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (current.hasNext()) {
+                    BasicDBObject event = current.next();
+                    if (matches(query, event)) {
+                        next = TimeEvent.of(project(event, projection));
+                    }
+                } else if (cur.hasNext()) {
+                    List<BasicDBObject> events = events(cur.next());
+                    Collections.sort(events, order);
+                    current = events.iterator();
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public TimeEvent next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            TimeEvent result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public void close() {
+            cur.close();
+        }
+    }
+}
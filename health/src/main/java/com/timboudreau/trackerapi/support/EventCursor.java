@@ -0,0 +1,16 @@
+package com.timboudreau.trackerapi.support;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterates the time events matching a query, whatever the layout they are
+ * stored in. Must be closed.
+ *
+ * @author Tim Boudreau
+ */
+public interface EventCursor extends Iterator<TimeEvent>, Closeable {
+
+    @Override
+    void close();
+}
@@ -0,0 +1,216 @@
+package com.timboudreau.trackerapi.support;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.timboudreau.trackerapi.Properties;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.bson.types.ObjectId;
+
+/**
+ * Ordering and paging of a time query - <code>sort</code>, <code>limit</code>
+ * and <code>after</code> URL parameters.
+ * <p/>
+ * Events are ordered by start time and then id, in either direction. A page
+ * ends with a continuation token encoding the start and id of its last
+ * event; passing it back as <code>after</code> confines the next query to
+ * events which sort after that one. Since the condition leads with the
+ * start time, each page is read from the start time index and costs the
+ * same however much history precedes it.
+ *
+ * @author Tim Boudreau
+ */
+public final class EventPage {
+
+    public static final int MAX_LIMIT = 10000;
+    public static final EventPage NONE = new EventPage(0, false, false, 0, null);
+    private static final int TOKEN_BYTES = 8 + 12;
+    private final int limit;
+    private final boolean sorted;
+    private final boolean descending;
+    private final long afterStart;
+    private final ObjectId afterId;
+
+    private EventPage(int limit, boolean sorted, boolean descending, long afterStart, ObjectId afterId) {
+        this.limit = limit;
+        this.sorted = sorted;
+        this.descending = descending;
+        this.afterStart = afterStart;
+        this.afterId = afterId;
+    }
+
+    /**
+     * Parse paging parameters.
+     *
+     * @param limit The maximum number of events, or null
+     * @param sort <code>start</code> or <code>-start</code>, or null
+     * @param after A continuation token from a previous page, or null
+     * @return A page
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    public static EventPage parse(String limit, String sort, String after) {
+        if (limit == null && sort == null && after == null) {
+            return NONE;
+        }
+        int max = 0;
+        if (limit != null) {
+            try {
+                max = Integer.parseInt(limit.trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Limit is not a number: '" + limit + "'");
+            }
+            if (max <= 0 || max > MAX_LIMIT) {
+                throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIMIT);
+            }
+        }
+        boolean descending = false;
+        if (sort != null) {
+            switch (sort.trim()) {
+                case Properties.start:
+                case "+" + Properties.start:
+                    break;
+                case "-" + Properties.start:
+                    descending = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Can only sort by " + Properties.start
+                            + " or -" + Properties.start + ", not '" + sort + "'");
+            }
+        }
+        long afterStart = 0;
+        ObjectId afterId = null;
+        if (after != null) {
+            byte[] bytes;
+            try {
+                bytes = Base64.getUrlDecoder().decode(after.trim());
+            } catch (IllegalArgumentException ex) {
+                bytes = null;
+            }
+            if (bytes == null || bytes.length != TOKEN_BYTES) {
+                throw new IllegalArgumentException("Bad value for after: '" + after + "'");
+            }
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            afterStart = buf.getLong();
+            byte[] id = new byte[12];
+            buf.get(id);
+            afterId = new ObjectId(id);
+        }
+        return new EventPage(max, true, descending, afterStart, afterId);
+    }
+
+    /**
+     * Whether events should be read in order of start time.
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * The maximum number of events, or 0 for no limit.
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Restrict a query to events after the continuation token, if there is
+     * one.
+     *
+     * @param query The query
+     */
+    public void constrain(BasicDBObject query) {
+        if (afterId == null) {
+            return;
+        }
+        String cmp = descending ? "$lt" : "$gt";
+        String bound = descending ? "$lte" : "$gte";
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject(Properties.start, new BasicDBObject(cmp, afterStart)));
+        or.add(new BasicDBObject(Properties.start, afterStart)
+                .append(Properties._id, new BasicDBObject(cmp, afterId)));
+        query.put("$or", or);
+        // Also bound the start time itself, so it can be used to scan the index
+        Object existing = query.get(Properties.start);
+        if (existing == null) {
+            query.put(Properties.start, new BasicDBObject(bound, afterStart));
+        } else if (existing instanceof DBObject) {
+            DBObject range = (DBObject) existing;
+            Object current = range.get(bound);
+            if (!(current instanceof Number) || (descending
+                    ? ((Number) current).longValue() > afterStart
+                    : ((Number) current).longValue() < afterStart)) {
+                range.put(bound, afterStart);
+            }
+        }
+    }
+
+    /**
+     * Read one page of events.
+     *
+     * @param events The events
+     * @param query The query, already constrained
+     * @param projection The fields to return, or null
+     * @return The page
+     */
+    public Results read(TimeEvents events, DBObject query, DBObject projection) {
+        List<TimeEvent> result = new ArrayList<>(limit + 1);
+        boolean more = false;
+        try (EventCursor cur = events.findSorted(query, projection, descending)) {
+            while (cur.hasNext()) {
+                TimeEvent event = cur.next();
+                // The index orders by start only, so read every event which
+                // ties with the last one that fits, and order them by id
+                if (result.size() >= limit && event.start() != result.get(result.size() - 1).start()) {
+                    more = true;
+                    break;
+                }
+                result.add(event);
+            }
+        }
+        Collections.sort(result, descending ? Collections.reverseOrder(ORDER) : ORDER);
+        if (result.size() > limit) {
+            more = true;
+            result = new ArrayList<>(result.subList(0, limit));
+        }
+        String next = more && !result.isEmpty() ? token(result.get(result.size() - 1)) : null;
+        return new Results(result, next);
+    }
+
+    static String token(TimeEvent event) {
+        ByteBuffer buf = ByteBuffer.allocate(TOKEN_BYTES);
+        buf.putLong(event.start());
+        buf.put(event.id().toByteArray());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buf.array());
+    }
+
+    private static final Comparator<TimeEvent> ORDER = new Comparator<TimeEvent>() {
+        @Override
+        public int compare(TimeEvent a, TimeEvent b) {
+            int result = Long.compare(a.start(), b.start());
+            return result != 0 ? result : a.id().compareTo(b.id());
+        }
+    };
+
+    /**
+     * A page of events, and the token for the next page if there is one.
+     */
+    public static final class Results {
+
+        public final List<TimeEvent> events;
+        public final String after;
+
+        Results(List<TimeEvent> events, String after) {
+            this.events = events;
+            this.after = after;
+        }
+    }
+}
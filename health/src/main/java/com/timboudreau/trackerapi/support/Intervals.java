@@ -3,175 +3,185 @@ package com.timboudreau.trackerapi.support;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import org.joda.time.DateTime;
+import java.util.NoSuchElementException;
 import org.joda.time.Duration;
 import org.joda.time.Interval;
-import org.joda.time.MutableInterval;
 
 /**
+ * Totals a series of time intervals, merging those which overlap, in one
+ * pass. Intervals must be added in order of start time - as read from a
+ * cursor sorted on the start index - so each one either extends the
+ * interval being accumulated or closes it and begins the next.
+ * <p/>
+ * Only the running total and overall period are kept, unless created for
+ * detail, in which case the merged intervals are kept in primitive arrays
+ * along with the ids of the events which make up each.
  *
  * @author Tim Boudreau
  */
 public final class Intervals implements Iterable<Interval> {
 
-    private List<MI> value = new ArrayList<>();
-
-    private List<MI> winnow() {
-        List<MI> result = new ArrayList<>();
-        MI prev = null;
-        for (MI i : value) {
-            i = i.dup();
-            if (prev != null) {
-                if (!merge(prev, i.toInterval(), null)) {
-                    result.add(i);
-                } else {
-                    prev.ids.addAll(i.ids);
-                }
-            } else {
-                result.add(i);
-            }
-            prev = i;
-        }
-        return result;
-    }
-
-    public String toJSON(boolean ivals, boolean summary) throws IOException {
-        List<Stub> stubs = new LinkedList<>();
-        long duration = 0;
-        long start = Long.MAX_VALUE;
-        long end = Long.MIN_VALUE;
-        List<String> allIds = new ArrayList<>();
-        for (MI i : winnow()) {
-            duration += i.getEndMillis() - i.getStartMillis();
-            start = Math.min(i.getStartMillis(), start);
-            end = Math.max(end, i.getEndMillis());
-            stubs.add(new Stub(i));
-            allIds.addAll(i.ids);
-        }
-        ObjectMapper m = new ObjectMapper();
-        Map<String, Object> map = new HashMap<>();
-        if (start == Long.MAX_VALUE) {
-            start = 0;
-            end = 0;
-        }
-        if (summary) {
-            Stub all = new Stub(start, end);
-            all.ids.addAll(allIds);
-            map.put("period", all);
-        }
-        map.put("total", duration);
-        if (ivals) {
-            map.put("intervals", stubs);
-        }
-        return m.writeValueAsString(map) + '\n';
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private final boolean detail;
+    private long[] starts;
+    private long[] ends;
+    private int[] idEnds;
+    private final List<String> ids;
+    private int count;
+    private long currentStart;
+    private long currentEnd;
+    private boolean open;
+    private boolean finished;
+    private long total;
+    private long first = Long.MAX_VALUE;
+    private long last = Long.MIN_VALUE;
+
+    public Intervals() {
+        this(true);
     }
 
-    private boolean merge(MI i, Interval ival, String id) {
-        if (ival.overlaps(i)) {
-            DateTime sa = i.getStart();
-            DateTime ea = i.getEnd();
-            DateTime se = ival.getStart();
-            DateTime ne = ival.getEnd();
-            DateTime a = sa.isBefore(se) ? sa : se;
-            DateTime b = ea.isAfter(ne) ? ea : ne;
-            i.setStart(a);
-            i.setEnd(b);
-            i.ids.add(id);
-            return true;
-        }
-        return false;
+    /**
+     * Create an Intervals.
+     *
+     * @param detail Whether to keep the merged intervals and their ids
+     */
+    public Intervals(boolean detail) {
+        this.detail = detail;
+        starts = detail ? new long[16] : null;
+        ends = detail ? new long[16] : null;
+        idEnds = detail ? new int[16] : null;
+        ids = detail ? new ArrayList<String>() : null;
     }
 
     public void add(Interval ival, String id) {
-        for (MI i : value) {
-            if (merge(i, ival, id)) {
-                return;
-            }
-        }
-        value.add(new MI(ival.toMutableInterval(), id));
-        Collections.sort(value, new C());
+        add(ival.getStartMillis(), ival.getEndMillis(), id);
     }
 
-    public Duration total() {
-        long result = 0;
-        for (MI i : value) {
-            result += i.toDurationMillis();
+    /**
+     * Add an interval, which may not start before the last one added.
+     *
+     * @param start The start
+     * @param end The end
+     * @param id The id of the event, or null
+     */
+    public void add(long start, long end, String id) {
+        if (finished) {
+            throw new IllegalStateException("Already totalled");
+        }
+        if (end < start) {
+            // Not a valid interval
+            return;
+        }
+        if (open && start < currentStart) {
+            throw new IllegalArgumentException("Intervals must be added in order of start - "
+                    + start + " is before " + currentStart);
+        }
+        if (open && start < currentEnd) {
+            currentEnd = Math.max(currentEnd, end);
+        } else {
+            close();
+            currentStart = start;
+            currentEnd = end;
+            open = true;
+        }
+        if (detail && id != null) {
+            ids.add(id);
         }
-        return new Duration(result);
     }
 
-    @Override
-    public Iterator<Interval> iterator() {
-        return new WrapI(winnow().iterator());
-    }
-
-    static class MI extends MutableInterval {
-
-        Set<String> ids = new HashSet<>();
-
-        MI(MutableInterval m, String id) {
-            super(m);
-            if (id != null) {
-                ids.add(id);
+    private void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        total += currentEnd - currentStart;
+        first = Math.min(first, currentStart);
+        last = Math.max(last, currentEnd);
+        if (detail) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                idEnds = Arrays.copyOf(idEnds, count * 2);
             }
-        }
-
-        MI dup() {
-            MI nue = new MI(this, null);
-            nue.ids.addAll(ids);
-            return nue;
+            starts[count] = currentStart;
+            ends[count] = currentEnd;
+            int idStart = count == 0 ? 0 : idEnds[count - 1];
+            Collections.sort(ids.subList(idStart, ids.size()));
+            idEnds[count] = ids.size();
+            count++;
         }
     }
 
-    static class WrapI<T extends Interval> implements Iterator<Interval> {
-
-        private final Iterator<T> real;
-
-        public WrapI(Iterator<T> real) {
-            this.real = real;
+    private void finish() {
+        if (!finished) {
+            close();
+            finished = true;
         }
+    }
 
-        @Override
-        public boolean hasNext() {
-            return real.hasNext();
+    public String toJSON(boolean ivals, boolean summary) throws IOException {
+        finish();
+        Map<String, Object> map = new HashMap<>();
+        if (summary) {
+            Stub all = first == Long.MAX_VALUE ? new Stub(0, 0) : new Stub(first, last);
+            if (detail) {
+                all.ids.addAll(ids);
+            }
+            map.put("period", all);
         }
-
-        @Override
-        public Interval next() {
-            return real.next().toInterval();
+        map.put("total", total);
+        if (ivals) {
+            List<Stub> stubs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Stub stub = new Stub(starts[i], ends[i]);
+                stub.ids.addAll(ids.subList(i == 0 ? 0 : idEnds[i - 1], idEnds[i]));
+                stubs.add(stub);
+            }
+            map.put("intervals", stubs);
         }
+        return MAPPER.writeValueAsString(map) + '\n';
+    }
 
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
-        }
+    public Duration total() {
+        finish();
+        return new Duration(total);
     }
 
-    static final class C<Object> implements Comparator<Object> {
+    /**
+     * Iterate the merged intervals, if created for detail.
+     */
+    @Override
+    public Iterator<Interval> iterator() {
+        finish();
+        return new Iterator<Interval>() {
+            private int ix;
 
-        private Interval toInterval(Object o) {
-            if (o instanceof Interval) {
-                return (Interval) o;
+            @Override
+            public boolean hasNext() {
+                return ix < count;
             }
-            if (o instanceof MutableInterval) {
-                return ((MutableInterval) o).toInterval();
+
+            @Override
+            public Interval next() {
+                if (ix >= count) {
+                    throw new NoSuchElementException();
+                }
+                Interval result = new Interval(starts[ix], ends[ix]);
+                ix++;
+                return result;
             }
-            return (Interval) o; //will fail
-        }
 
-        @Override
-        public int compare(Object t, Object t1) {
-            return toInterval(t).getStart().compareTo(toInterval(t1).getStart());
-        }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     public static class Stub {
@@ -181,12 +191,6 @@ public final class Intervals implements Iterable<Interval> {
         public final long dur;
         public final List<String> ids = new ArrayList<>();
 
-        public Stub(MI iv) {
-            this(iv.getStartMillis(), iv.getEndMillis());
-            ids.addAll(iv.ids);
-            Collections.sort(ids);
-        }
-
         public Stub(long start, long end) {
             this.start = start;
             this.end = end;
@@ -0,0 +1,221 @@
+package com.timboudreau.trackerapi.support;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.timboudreau.trackerapi.Properties;
+import static com.timboudreau.trackerapi.support.TimeStorage.OWNER;
+import static com.timboudreau.trackerapi.support.TimeStorage.SET;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Time events held one document per event, either in a collection of the
+ * set's own, or in the shared events collection - in which case every
+ * query is confined to the set's owner and name, every document written is
+ * tagged with them, and they are left out of what is read back.
+ *
+ * @author Tim Boudreau
+ */
+final class MongoTimeEvents implements TimeEvents {
+
+    private static final DBObject HIDE_SCOPE = new BasicDBObject(OWNER, 0).append(SET, 0);
+    private final TimeStorage storage;
+    private final TimeSet set;
+    private final DBCollection coll;
+    private final boolean shared;
+    private final AtomicBoolean create;
+
+    MongoTimeEvents(TimeStorage storage, TimeSet set, DBCollection coll, boolean shared, boolean create) {
+        this.storage = storage;
+        this.set = set;
+        this.coll = coll;
+        this.shared = shared;
+        this.create = new AtomicBoolean(create);
+    }
+
+    @Override
+    public TimeSet set() {
+        return set;
+    }
+
+    private void created() {
+        // Only create when something is actually written
+        if (create.compareAndSet(true, false)) {
+            storage.created(set);
+        }
+    }
+
+    private DBObject scope(DBObject query) {
+        if (!shared) {
+            return query;
+        }
+        BasicDBObject result = new BasicDBObject(query.toMap());
+        result.put(OWNER, set.owner());
+        result.put(SET, set.name());
+        return result;
+    }
+
+    /**
+     * The owner and set are never returned - an inclusion projection leaves
+     * them out unless they are asked for, which they may not be, and an
+     * exclusion projection has to exclude them.
+     */
+    private DBObject projection(DBObject projection) {
+        if (!shared) {
+            return projection;
+        }
+        if (projection == null) {
+            return HIDE_SCOPE;
+        }
+        BasicDBObject result = new BasicDBObject(projection.toMap());
+        result.remove(OWNER);
+        result.remove(SET);
+        boolean inclusion = false;
+        for (String key : result.keySet()) {
+            Object val = result.get(key);
+            if (!Properties._id.equals(key) && (Boolean.TRUE.equals(val)
+                    || (val instanceof Number && ((Number) val).intValue() != 0))) {
+                inclusion = true;
+                break;
+            }
+        }
+        if (!inclusion) {
+            result.putAll(HIDE_SCOPE);
+        }
+        return result;
+    }
+
+    /**
+     * The owner and set of an event may not be changed by an update, or it
+     * would move to another user's set - neither directly nor by renaming
+     * another field onto them, and a whole-document replacement keeps them.
+     */
+    private DBObject guard(DBObject update) {
+        if (!shared) {
+            return update;
+        }
+        BasicDBObject result = new BasicDBObject();
+        for (String op : update.keySet()) {
+            if (!op.startsWith("$")) {
+                // A replacement document, not a set of operators
+                return scope(update);
+            }
+            Object fields = update.get(op);
+            if (fields instanceof DBObject) {
+                BasicDBObject copy = new BasicDBObject(((DBObject) fields).toMap());
+                copy.remove(OWNER);
+                copy.remove(SET);
+                if ("$rename".equals(op)) {
+                    for (String from : ((DBObject) fields).keySet()) {
+                        Object to = copy.get(from);
+                        if (OWNER.equals(to) || SET.equals(to)) {
+                            copy.remove(from);
+                        }
+                    }
+                }
+                if (copy.isEmpty()) {
+                    continue;
+                }
+                fields = copy;
+            }
+            result.put(op, fields);
+        }
+        return result;
+    }
+
+    @Override
+    public EventCursor find(DBObject query, DBObject projection) {
+        DBObject proj = projection(projection);
+        DBCursor cur = proj == null ? coll.find(scope(query)) : coll.find(scope(query), proj);
+        cur.setDecoderFactory(TimeEventCodec.decoderFactory());
+        return new Cursor(cur);
+    }
+
+    @Override
+    public EventCursor findSorted(DBObject query, DBObject projection, boolean descending) {
+        DBObject proj = projection(projection);
+        DBCursor cur = proj == null ? coll.find(scope(query)) : coll.find(scope(query), proj);
+        cur.sort(new BasicDBObject(Properties.start, descending ? -1 : 1));
+        cur.setDecoderFactory(TimeEventCodec.decoderFactory());
+        return new Cursor(cur);
+    }
+
+    @Override
+    public DBObject findOne(DBObject query) {
+        return coll.findOne(scope(query), projection(null));
+    }
+
+    @Override
+    public void insert(DBObject event, WriteConcern concern) {
+        created();
+        if (shared) {
+            DBObject scoped = scope(event);
+            coll.insert(scoped, concern);
+            // The driver assigns the id to the document it was passed
+            event.put(Properties._id, scoped.get(Properties._id));
+        } else {
+            coll.insert(event, concern);
+        }
+    }
+
+    @Override
+    public void save(DBObject event, WriteConcern concern) {
+        created();
+        if (shared && event.get(Properties._id) != null) {
+            // Only replace an event of this set - one with the same id in
+            // another set makes this fail on the unique id, rather than
+            // being taken over
+            coll.update(scope(new BasicDBObject(Properties._id, event.get(Properties._id))),
+                    scope(event), true, false, concern);
+        } else {
+            coll.save(scope(event), concern);
+        }
+    }
+
+    @Override
+    public int update(DBObject query, DBObject update, boolean multi, WriteConcern concern) {
+        return coll.update(scope(query), guard(update), false, multi, concern).getN();
+    }
+
+    @Override
+    public int remove(DBObject query, WriteConcern concern) {
+        return coll.remove(scope(query), concern).getN();
+    }
+
+    @Override
+    public List<?> distinct(String field, DBObject query) {
+        return coll.distinct(field, scope(query));
+    }
+
+    private static final class Cursor implements EventCursor {
+
+        private final DBCursor cur;
+
+        Cursor(DBCursor cur) {
+            this.cur = cur;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cur.hasNext();
+        }
+
+        @Override
+        public TimeEvent next() {
+            return (TimeEvent) cur.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Read-only");
+        }
+
+        @Override
+        public void close() {
+            cur.close();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.timboudreau.trackerapi.support;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.timboudreau.trackerapi.Properties;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-user catalog of time sets, so that listing a user's sets reads one
+ * small document instead of enumerating every collection in the database.
+ * <p/>
+ * Each user has one document, keyed by user name, holding for each set its
+ * creation time, number of events and the time it was last modified. Sets
+ * are added when {@link TimeCollectionFinder} creates their collection, and
+ * the counts are maintained by the resources which add and remove events.
+ * A user whose catalog has not been built yet - whose sets predate it -
+ * has it filled in from the collection list the first time it is read; the
+ * document may already exist by then, holding only the sets touched since,
+ * so it is marked once built rather than assumed complete when present.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class SetCatalog {
+
+    public static final String CATALOG_COLLECTION_NAME = "time_sets";
+    public static final String SETTINGS_KEY_CATALOG_COLLECTION = "time.sets.collection";
+    static final String SETS = "sets";
+    static final String COUNT = "count";
+    static final String LAST_MODIFIED = "lastModified";
+    static final String REBUILT = "rebuilt";
+    private final DBCollection catalog;
+    private final Provider<DB> db;
+
+    @Inject
+    SetCatalog(@Named(CATALOG_COLLECTION_NAME) DBCollection catalog, Provider<DB> db) {
+        this.catalog = catalog;
+        this.db = db;
+    }
+
+    /**
+     * Summary of one set.
+     */
+    public static final class SetInfo {
+
+        public final String name;
+        public final long created;
+        public final long count;
+        public final long lastModified;
+
+        SetInfo(String name, long created, long count, long lastModified) {
+            this.name = name;
+            this.created = created;
+            this.count = count;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Record that a set's collection has been created.
+     */
+    void created(TimeSet set) {
+        long now = System.currentTimeMillis();
+        String field = field(set);
+        // $min and $max leave an existing entry as it is
+        update(set, new BasicDBObject("$min", new BasicDBObject(field + Properties.created, now))
+                .append("$max", new BasicDBObject(field + LAST_MODIFIED, now)));
+    }
+
+    /**
+     * Record that events were added to a set.
+     *
+     * @param set The set
+     * @param count The number of events
+     */
+    public void added(TimeSet set, long count) {
+        changed(set, count);
+    }
+
+    /**
+     * Record that events were removed from a set.
+     *
+     * @param set The set
+     * @param count The number of events
+     */
+    public void removed(TimeSet set, long count) {
+        if (count > 0) {
+            changed(set, -count);
+        }
+    }
+
+    /**
+     * Record that events in a set were modified.
+     *
+     * @param set The set
+     */
+    public void modified(TimeSet set) {
+        changed(set, 0);
+    }
+
+    private void changed(TimeSet set, long delta) {
+        String field = field(set);
+        BasicDBObject mods = new BasicDBObject("$max",
+                new BasicDBObject(field + LAST_MODIFIED, System.currentTimeMillis()));
+        if (delta != 0) {
+            mods.append("$inc", new BasicDBObject(field + COUNT, delta));
+        }
+        update(set, mods);
+    }
+
+    private void update(TimeSet set, DBObject mods) {
+        catalog.update(new BasicDBObject(Properties._id, set.owner()), mods, true, false,
+                WriteConcern.ACKNOWLEDGED);
+    }
+
+    /**
+     * List a user's sets, sorted by name.
+     *
+     * @param owner The user name
+     * @return The sets
+     */
+    public List<SetInfo> list(String owner) {
+        DBObject doc = catalog.findOne(new BasicDBObject(Properties._id, owner));
+        if (doc == null || !Boolean.TRUE.equals(doc.get(REBUILT))) {
+            doc = rebuild(owner);
+        }
+        List<SetInfo> result = new ArrayList<>();
+        Object sets = doc.get(SETS);
+        if (sets instanceof DBObject) {
+            DBObject m = (DBObject) sets;
+            for (String key : m.keySet()) {
+                Object o = m.get(key);
+                if (o instanceof DBObject) {
+                    DBObject info = (DBObject) o;
+                    result.add(new SetInfo(unescape(key), number(info.get(Properties.created)),
+                            number(info.get(COUNT)), number(info.get(LAST_MODIFIED))));
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<SetInfo>() {
+            @Override
+            public int compare(SetInfo a, SetInfo b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Build the catalog for a user whose sets were created before there was
+     * one, from the collection list - once. Entries written by events
+     * arriving before the first read are merged with, not replaced.
+     */
+    private DBObject rebuild(String owner) {
+        String prefix = owner + '_';
+        Map<String, Object> sets = new LinkedHashMap<>();
+        DB database = db.get();
+        for (String coll : database.getCollectionNames()) {
+            if (coll.startsWith(prefix)) {
+                long count = database.getCollection(coll).count();
+                sets.put(escape(coll.substring(prefix.length())), new BasicDBObject(COUNT, count));
+            }
+        }
+        // Do not clobber entries written concurrently or since the catalog
+        // was introduced - the collection count already includes them
+        BasicDBObject set = new BasicDBObject();
+        for (Map.Entry<String, Object> e : sets.entrySet()) {
+            set.append(SETS + '.' + e.getKey() + '.' + COUNT, ((DBObject) e.getValue()).get(COUNT));
+        }
+        BasicDBObject mods = new BasicDBObject("$set", new BasicDBObject(REBUILT, true));
+        if (!set.isEmpty()) {
+            mods.append("$max", set);
+        }
+        catalog.update(new BasicDBObject(Properties._id, owner), mods, true, false, WriteConcern.ACKNOWLEDGED);
+        DBObject doc = catalog.findOne(new BasicDBObject(Properties._id, owner));
+        return doc == null ? new BasicDBObject(Properties._id, owner).append(SETS, new BasicDBObject(sets)) : doc;
+    }
+
+    private static String field(TimeSet set) {
+        return SETS + '.' + escape(set.name()) + '.';
+    }
+
+    private static long number(Object o) {
+        return o instanceof Number ? ((Number) o).longValue() : 0;
+    }
+
+    /**
+     * Set names become field names, which may not contain '.' or start
+     * with '$'.
+     */
+    static String escape(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '%' || c == '.' || (c == '$' && i == 0)) {
+                sb.append('%').append(Integer.toHexString(0x100 | c).substring(1).toUpperCase());
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String field) {
+        if (field.indexOf('%') < 0) {
+            return field;
+        }
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '%' && i + 2 < field.length()) {
+                sb.append((char) Integer.parseInt(field.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package com.timboudreau.trackerapi.support;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.WriteConcern;
+import com.timboudreau.trackerapi.Properties;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the per-user time collections which exist, so that finding a
+ * collection is a hash lookup rather than a <code>listCollections</code>
+ * round trip to the database on every request.
+ * <p/>
+ * Collections are recorded in a small metadata collection shared by all
+ * servers, and remembered locally once seen. A name not known locally is
+ * looked up there, and then - for collections which predate the registry -
+ * in the database's collection list, and recorded if found. Absent names
+ * are not remembered, since another server may create them at any time.
+ * <p/>
+ * A collection's indexes are created before it is marked as indexed in the
+ * registry, so they are created about once per collection rather than
+ * attempted on every request - and if creating them fails, or the server
+ * dies first, the next server to see the unmarked collection tries again.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class TimeCollections {
+
+    public static final String METADATA_COLLECTION_NAME = "time_collections";
+    public static final String SETTINGS_KEY_METADATA_COLLECTION = "time.collections.collection";
+    static final String INDEXED = "indexed";
+    private final Provider<DB> db;
+    private final DBCollection metadata;
+    private final Set<String> known = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Inject
+    TimeCollections(Provider<DB> db, @Named(METADATA_COLLECTION_NAME) DBCollection metadata) {
+        this.db = db;
+        this.metadata = metadata;
+    }
+
+    /**
+     * Get the name of the collection holding a user's set of events.
+     *
+     * @param userName The user
+     * @param category The set
+     * @return A collection name
+     */
+    public static String collectionName(String userName, String category) {
+        return new StringBuilder(userName.length() + category.length() + 1)
+                .append(userName).append('_').append(category).toString();
+    }
+
+    /**
+     * Determine if a time collection exists.
+     *
+     * @param collectionName The collection
+     * @return true if it exists
+     */
+    public boolean exists(String collectionName) {
+        if (known.contains(collectionName)) {
+            return true;
+        }
+        DBObject doc = metadata.findOne(new BasicDBObject(Properties._id, collectionName));
+        if (doc == null && !db.get().collectionExists(collectionName)) {
+            return false;
+        }
+        if (doc != null && Boolean.TRUE.equals(doc.get(INDEXED))) {
+            known.add(collectionName);
+        } else {
+            // Created before there was a registry, or by a server which
+            // did not get as far as indexing it
+            indexAndRegister(get(collectionName));
+        }
+        return true;
+    }
+
+    /**
+     * Determine if a name has been recorded in the registry, without
+     * looking for a collection of that name - for time sets which are not
+     * stored in collections of their own.
+     *
+     * @param collectionName The name
+     * @return true if it is registered
+     */
+    boolean isRegistered(String collectionName) {
+        if (known.contains(collectionName)) {
+            return true;
+        }
+        if (metadata.findOne(new BasicDBObject(Properties._id, collectionName)) != null) {
+            known.add(collectionName);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get a time collection, creating and indexing it if it does not
+     * exist.
+     *
+     * @param collectionName The collection
+     * @return The collection
+     */
+    public DBCollection create(String collectionName) {
+        DBCollection coll = get(collectionName);
+        if (!known.contains(collectionName)) {
+            indexAndRegister(coll);
+        }
+        return coll;
+    }
+
+    private void indexAndRegister(DBCollection coll) {
+        // Indexes first - creating them is idempotent, so if this fails
+        // part way the collection is simply not marked, and whoever sees
+        // it next tries again
+        index(coll);
+        BasicDBObject query = new BasicDBObject(Properties._id, coll.getName());
+        BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(INDEXED, true))
+                .append("$setOnInsert", new BasicDBObject(Properties.created, System.currentTimeMillis()));
+        try {
+            metadata.update(query, update, true, false, WriteConcern.ACKNOWLEDGED);
+        } catch (DuplicateKeyException ex) {
+            // Another server inserted it first
+            metadata.update(query, update, false, false, WriteConcern.ACKNOWLEDGED);
+        }
+        known.add(coll.getName());
+    }
+
+    private void index(DBCollection coll) {
+        BasicDBObject q = new BasicDBObject(Properties.start, 1).append(Properties.end, 1);
+        coll.createIndex(q, coll.getName() + "_startEnd", false);
+        q = new BasicDBObject("tags", 1);
+        coll.createIndex(q, new BasicDBObject("sparse", true).append("name", "tags_index"));
+    }
+
+    /**
+     * Get a time collection which is known to exist.
+     *
+     * @param collectionName The collection
+     * @return The collection
+     */
+    public DBCollection get(String collectionName) {
+        return db.get().getCollection(collectionName);
+    }
+
+    /**
+     * Record a set which has no collection of its own in the shared
+     * registry.
+     *
+     * @return true if this call registered it, false if another server
+     * already had
+     */
+    boolean register(String collectionName) {
+        boolean result;
+        try {
+            metadata.insert(new BasicDBObject(Properties._id, collectionName)
+                    .append(Properties.created, System.currentTimeMillis()), WriteConcern.ACKNOWLEDGED);
+            result = true;
+        } catch (DuplicateKeyException ex) {
+            result = false;
+        }
+        known.add(collectionName);
+        return result;
+    }
+}
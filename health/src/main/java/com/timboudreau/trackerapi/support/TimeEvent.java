@@ -0,0 +1,324 @@
+package com.timboudreau.trackerapi.support;
+
+import com.mongodb.DBObject;
+import com.timboudreau.trackerapi.Properties;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+/**
+ * A recorded time event, decoded by {@link TimeEventCodec} into typed fields
+ * rather than a hash map. The fixed fields are held as primitives; any other
+ * properties the event was recorded with are kept in small parallel arrays.
+ * <p/>
+ * Implements DBObject so it can be returned from a legacy driver cursor, but
+ * is read-only; a map is only built if <code>toMap()</code> is called.
+ *
+ * @author Tim Boudreau
+ */
+public final class TimeEvent implements DBObject {
+
+    static final int ID = 1;
+    static final int TYPE = 1 << 1;
+    static final int START = 1 << 2;
+    static final int END = 1 << 3;
+    static final int DURATION = 1 << 4;
+    static final int ADDED = 1 << 5;
+    static final int BY = 1 << 6;
+    static final int VERSION = 1 << 7;
+    private static final String[] NO_KEYS = new String[0];
+    private static final Object[] NO_VALUES = new Object[0];
+    private final int present;
+    private final ObjectId id;
+    private final String type;
+    private final long start;
+    private final long end;
+    private final long duration;
+    private final long added;
+    private final String by;
+    private final long version;
+    private final String[] keys;
+    private final Object[] values;
+    private boolean partial;
+
+    TimeEvent(int present, ObjectId id, String type, long start, long end, long duration,
+            long added, String by, long version, String[] keys, Object[] values) {
+        this.present = present;
+        this.id = id;
+        this.type = type;
+        this.start = start;
+        this.end = end;
+        this.duration = duration;
+        this.added = added;
+        this.by = by;
+        this.version = version;
+        this.keys = keys == null ? NO_KEYS : keys;
+        this.values = values == null ? NO_VALUES : values;
+    }
+
+    /**
+     * Create an event from a document already decoded into a map.
+     *
+     * @param doc The document
+     * @return An event
+     */
+    static TimeEvent of(DBObject doc) {
+        int present = 0;
+        ObjectId id = null;
+        String type = null;
+        long start = 0;
+        long end = 0;
+        long duration = 0;
+        long added = 0;
+        String by = null;
+        long version = 0;
+        List<String> keys = null;
+        List<Object> values = null;
+        for (String key : doc.keySet()) {
+            Object val = doc.get(key);
+            switch (key) {
+                case Properties._id:
+                    if (val instanceof ObjectId) {
+                        id = (ObjectId) val;
+                        present |= ID;
+                        continue;
+                    }
+                    break;
+                case Properties.type:
+                    if (val instanceof String) {
+                        type = ((String) val).intern();
+                        present |= TYPE;
+                        continue;
+                    }
+                    break;
+                case Properties.start:
+                    if (val instanceof Number) {
+                        start = ((Number) val).longValue();
+                        present |= START;
+                        continue;
+                    }
+                    break;
+                case Properties.end:
+                    if (val instanceof Number) {
+                        end = ((Number) val).longValue();
+                        present |= END;
+                        continue;
+                    }
+                    break;
+                case Properties.duration:
+                    if (val instanceof Number) {
+                        duration = ((Number) val).longValue();
+                        present |= DURATION;
+                        continue;
+                    }
+                    break;
+                case Properties.added:
+                    if (val instanceof Number) {
+                        added = ((Number) val).longValue();
+                        present |= ADDED;
+                        continue;
+                    }
+                    break;
+                case Properties.by:
+                    if (val instanceof String) {
+                        by = (String) val;
+                        present |= BY;
+                        continue;
+                    }
+                    break;
+                case Properties.version:
+                    if (val instanceof Number) {
+                        version = ((Number) val).longValue();
+                        present |= VERSION;
+                        continue;
+                    }
+                    break;
+            }
+            if (keys == null) {
+                keys = new ArrayList<>(4);
+                values = new ArrayList<>(4);
+            }
+            keys.add(key);
+            values.add(val);
+        }
+        return new TimeEvent(present, id, type, start, end, duration, added, by, version,
+                keys == null ? null : keys.toArray(new String[keys.size()]),
+                values == null ? null : values.toArray());
+    }
+
+    boolean has(int field) {
+        return (present & field) != 0;
+    }
+
+    public ObjectId id() {
+        return id;
+    }
+
+    public String idAsString() {
+        return "" + id;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public long start() {
+        return start;
+    }
+
+    public long end() {
+        return end;
+    }
+
+    public long duration() {
+        return duration;
+    }
+
+    public long added() {
+        return added;
+    }
+
+    public String by() {
+        return by;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /**
+     * The names of properties other than the fixed fields, in the order they
+     * were stored.
+     *
+     * @return The names
+     */
+    public String[] propertyNames() {
+        return keys.clone();
+    }
+
+    /**
+     * Get a property other than one of the fixed fields.
+     *
+     * @param name The name
+     * @return The value or null
+     */
+    public Object property(String name) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    int propertyCount() {
+        return keys.length;
+    }
+
+    String propertyName(int ix) {
+        return keys[ix];
+    }
+
+    Object propertyValue(int ix) {
+        return values[ix];
+    }
+
+    @Override
+    public Object get(String key) {
+        switch (key) {
+            case Properties._id:
+                return has(ID) ? id : null;
+            case Properties.type:
+                return has(TYPE) ? this.type : null;
+            case Properties.start:
+                return has(START) ? this.start : null;
+            case Properties.end:
+                return has(END) ? this.end : null;
+            case Properties.duration:
+                return has(DURATION) ? this.duration : null;
+            case Properties.added:
+                return has(ADDED) ? this.added : null;
+            case Properties.by:
+                return has(BY) ? this.by : null;
+            case Properties.version:
+                return has(VERSION) ? this.version : null;
+            default:
+                return property(key);
+        }
+    }
+
+    @Override
+    public boolean containsField(String key) {
+        return keySet().contains(key);
+    }
+
+    @Override
+    @Deprecated
+    public boolean containsKey(String key) {
+        return containsField(key);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return toMap().keySet();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map toMap() {
+        Map<String, Object> result = new LinkedHashMap<>(8 + keys.length);
+        for (String key : Arrays.asList(Properties._id, Properties.type,
+                Properties.start, Properties.end, Properties.duration, Properties.added,
+                Properties.by, Properties.version)) {
+            Object val = get(key);
+            if (val != null) {
+                result.put(key, val);
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            result.put(keys[i], values[i]);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public void markAsPartialObject() {
+        partial = true;
+    }
+
+    @Override
+    public boolean isPartialObject() {
+        return partial;
+    }
+
+    @Override
+    public Object put(String key, Object v) {
+        throw new UnsupportedOperationException("Read-only");
+    }
+
+    @Override
+    public void putAll(BSONObject o) {
+        throw new UnsupportedOperationException("Read-only");
+    }
+
+    @Override
+    public void putAll(Map m) {
+        throw new UnsupportedOperationException("Read-only");
+    }
+
+    @Override
+    public Object removeField(String key) {
+        throw new UnsupportedOperationException("Read-only");
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
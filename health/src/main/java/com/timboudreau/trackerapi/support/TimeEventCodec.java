@@ -0,0 +1,338 @@
+package com.timboudreau.trackerapi.support;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import static com.timboudreau.trackerapi.Properties.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+
+/**
+ * Reads time event documents straight into {@link TimeEvent}s and writes
+ * them back.
+ * <p/>
+ * Collections in this application are used through the legacy driver API,
+ * whose cursors decode every document into a hash map; passing
+ * {@link #decoderFactory()} to <code>DBCursor.setDecoderFactory()</code>
+ * makes a cursor run this codec over the raw bytes instead, and return
+ * TimeEvents.
+ *
+ * @author Tim Boudreau
+ */
+public final class TimeEventCodec implements Codec<TimeEvent> {
+
+    private static final TimeEventCodec INSTANCE = new TimeEventCodec();
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+    private static final DBDecoderFactory DECODER_FACTORY = new DBDecoderFactory() {
+        @Override
+        public DBDecoder create() {
+            return new TimeEventDecoder();
+        }
+    };
+
+    public static TimeEventCodec instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A decoder factory for legacy driver cursors over time collections,
+     * which makes them return {@link TimeEvent}s.
+     *
+     * @return A decoder factory
+     */
+    public static DBDecoderFactory decoderFactory() {
+        return DECODER_FACTORY;
+    }
+
+    @Override
+    public Class<TimeEvent> getEncoderClass() {
+        return TimeEvent.class;
+    }
+
+    @Override
+    public TimeEvent decode(BsonReader reader, DecoderContext ctx) {
+        int present = 0;
+        ObjectId id = null;
+        String eventType = null;
+        long startTime = 0;
+        long endTime = 0;
+        long dur = 0;
+        long addedTime = 0;
+        String addedBy = null;
+        long ver = 0;
+        List<String> keys = null;
+        List<Object> values = null;
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String field = reader.readName();
+            BsonType bsonType = reader.getCurrentBsonType();
+            boolean number = bsonType == BsonType.INT64 || bsonType == BsonType.INT32
+                    || bsonType == BsonType.DOUBLE;
+            // Read numbers up front - one which cannot be a time or version
+            // is kept as an ordinary property instead
+            Object value = number ? readValue(reader) : null;
+            Long whole = number ? wholeNumber(value) : null;
+            switch (field) {
+                case _id:
+                    if (bsonType == BsonType.OBJECT_ID) {
+                        id = reader.readObjectId();
+                        present |= TimeEvent.ID;
+                        continue;
+                    }
+                    break;
+                case type:
+                    if (bsonType == BsonType.STRING) {
+                        eventType = reader.readString().intern();
+                        present |= TimeEvent.TYPE;
+                        continue;
+                    }
+                    break;
+                case start:
+                    if (whole != null) {
+                        startTime = whole;
+                        present |= TimeEvent.START;
+                        continue;
+                    }
+                    break;
+                case end:
+                    if (whole != null) {
+                        endTime = whole;
+                        present |= TimeEvent.END;
+                        continue;
+                    }
+                    break;
+                case duration:
+                    if (whole != null) {
+                        dur = whole;
+                        present |= TimeEvent.DURATION;
+                        continue;
+                    }
+                    break;
+                case added:
+                    if (whole != null) {
+                        addedTime = whole;
+                        present |= TimeEvent.ADDED;
+                        continue;
+                    }
+                    break;
+                case by:
+                    if (bsonType == BsonType.STRING) {
+                        addedBy = reader.readString();
+                        present |= TimeEvent.BY;
+                        continue;
+                    }
+                    break;
+                case version:
+                    if (whole != null) {
+                        ver = whole;
+                        present |= TimeEvent.VERSION;
+                        continue;
+                    }
+                    break;
+            }
+            // Anything else, or a fixed field with an unexpected type
+            if (keys == null) {
+                keys = new ArrayList<>(4);
+                values = new ArrayList<>(4);
+            }
+            keys.add(field);
+            values.add(number ? value : readValue(reader));
+        }
+        reader.readEndDocument();
+        return new TimeEvent(present, id, eventType, startTime, endTime, dur, addedTime,
+                addedBy, ver, keys == null ? null : keys.toArray(new String[keys.size()]),
+                values == null ? null : values.toArray());
+    }
+
+    /**
+     * Times are whole milliseconds, but a client other than this one may
+     * have stored a double; round it rather than truncating, and refuse one
+     * which is not a finite number in range.
+     */
+    private static Long wholeNumber(Object value) {
+        if (value instanceof Double) {
+            double d = (Double) value;
+            if (Double.isNaN(d) || d < Long.MIN_VALUE || d > Long.MAX_VALUE) {
+                return null;
+            }
+            return Math.round(d);
+        }
+        return ((Number) value).longValue();
+    }
+
+    private static Object readValue(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case STRING:
+                return reader.readString();
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                return reader.readDouble();
+            case BOOLEAN:
+                return reader.readBoolean();
+            case OBJECT_ID:
+                return reader.readObjectId();
+            case DATE_TIME:
+                return new Date(reader.readDateTime());
+            case NULL:
+                reader.readNull();
+                return null;
+            case ARRAY:
+                List<Object> list = new ArrayList<>();
+                reader.readStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    list.add(readValue(reader));
+                }
+                reader.readEndArray();
+                return list;
+            case DOCUMENT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                reader.readStartDocument();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    String name = reader.readName();
+                    map.put(name, readValue(reader));
+                }
+                reader.readEndDocument();
+                return map;
+            case UNDEFINED:
+                reader.readUndefined();
+                return null;
+            default:
+                // Nothing this application writes; fail rather than return
+                // an event which is silently missing data
+                throw new BsonInvalidOperationException("Unsupported type in time event: "
+                        + reader.getCurrentBsonType());
+        }
+    }
+
+    @Override
+    public void encode(BsonWriter writer, TimeEvent event, EncoderContext ctx) {
+        writer.writeStartDocument();
+        if (event.has(TimeEvent.ID)) {
+            writer.writeObjectId(_id, event.id());
+        }
+        if (event.has(TimeEvent.TYPE)) {
+            writer.writeString(type, event.type());
+        }
+        if (event.has(TimeEvent.START)) {
+            writer.writeInt64(start, event.start());
+        }
+        if (event.has(TimeEvent.END)) {
+            writer.writeInt64(end, event.end());
+        }
+        if (event.has(TimeEvent.DURATION)) {
+            writer.writeInt64(duration, event.duration());
+        }
+        if (event.has(TimeEvent.ADDED)) {
+            writer.writeInt64(added, event.added());
+        }
+        if (event.has(TimeEvent.BY)) {
+            writer.writeString(by, event.by());
+        }
+        if (event.has(TimeEvent.VERSION)) {
+            if (event.version() == (int) event.version()) {
+                writer.writeInt32(version, (int) event.version());
+            } else {
+                writer.writeInt64(version, event.version());
+            }
+        }
+        for (int i = 0; i < event.propertyCount(); i++) {
+            writer.writeName(event.propertyName(i));
+            writeValue(writer, event.propertyValue(i));
+        }
+        writer.writeEndDocument();
+    }
+
+    private static void writeValue(BsonWriter writer, Object value) {
+        if (value == null) {
+            writer.writeNull();
+        } else if (value instanceof String) {
+            writer.writeString((String) value);
+        } else if (value instanceof Integer) {
+            writer.writeInt32((Integer) value);
+        } else if (value instanceof Long) {
+            writer.writeInt64((Long) value);
+        } else if (value instanceof Number) {
+            writer.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            writer.writeBoolean((Boolean) value);
+        } else if (value instanceof ObjectId) {
+            writer.writeObjectId((ObjectId) value);
+        } else if (value instanceof Date) {
+            writer.writeDateTime(((Date) value).getTime());
+        } else if (value instanceof Collection<?>) {
+            writer.writeStartArray();
+            for (Object o : (Collection<?>) value) {
+                writeValue(writer, o);
+            }
+            writer.writeEndArray();
+        } else if (value instanceof Map<?, ?>) {
+            writer.writeStartDocument();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                writer.writeName(String.valueOf(e.getKey()));
+                writeValue(writer, e.getValue());
+            }
+            writer.writeEndDocument();
+        } else {
+            throw new IllegalArgumentException("Cannot store a " + value.getClass().getName()
+                    + " in a time event: " + value);
+        }
+    }
+
+    /**
+     * Bridges the codec into the legacy driver, which hands decoders each
+     * document's raw bytes.
+     */
+    private static final class TimeEventDecoder extends DefaultDBDecoder {
+
+        @Override
+        public DBObject decode(byte[] bytes, DBCollection collection) {
+            try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(bytes))) {
+                return INSTANCE.decode(reader, DECODER_CONTEXT);
+            }
+        }
+
+        @Override
+        public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+            byte[] length = new byte[4];
+            readFully(in, length, 0);
+            int size = (length[0] & 0xFF) | (length[1] & 0xFF) << 8
+                    | (length[2] & 0xFF) << 16 | (length[3] & 0xFF) << 24;
+            byte[] bytes = new byte[size];
+            System.arraycopy(length, 0, bytes, 0, 4);
+            readFully(in, bytes, 4);
+            return decode(bytes, collection);
+        }
+
+        private static void readFully(InputStream in, byte[] into, int from) throws IOException {
+            while (from < into.length) {
+                int count = in.read(into, from, into.length - from);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                from += count;
+            }
+        }
+    }
+}
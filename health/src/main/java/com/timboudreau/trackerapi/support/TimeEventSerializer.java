@@ -0,0 +1,54 @@
+package com.timboudreau.trackerapi.support;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import static com.timboudreau.trackerapi.Properties.*;
+import java.io.IOException;
+
+/**
+ * Writes a {@link TimeEvent} as JSON directly from its fields, without
+ * converting it to a map first.
+ *
+ * @author Tim Boudreau
+ */
+public final class TimeEventSerializer extends JsonSerializer<TimeEvent> {
+
+    @Override
+    public Class<TimeEvent> handledType() {
+        return TimeEvent.class;
+    }
+
+    @Override
+    public void serialize(TimeEvent t, JsonGenerator jg, SerializerProvider sp) throws IOException {
+        jg.writeStartObject();
+        if (t.has(TimeEvent.ID)) {
+            jg.writeStringField(_id, t.id().toStringMongod());
+        }
+        if (t.has(TimeEvent.TYPE)) {
+            jg.writeStringField(type, t.type());
+        }
+        if (t.has(TimeEvent.START)) {
+            jg.writeNumberField(start, t.start());
+        }
+        if (t.has(TimeEvent.END)) {
+            jg.writeNumberField(end, t.end());
+        }
+        if (t.has(TimeEvent.DURATION)) {
+            jg.writeNumberField(duration, t.duration());
+        }
+        if (t.has(TimeEvent.ADDED)) {
+            jg.writeNumberField(added, t.added());
+        }
+        if (t.has(TimeEvent.BY)) {
+            jg.writeStringField(by, t.by());
+        }
+        if (t.has(TimeEvent.VERSION)) {
+            jg.writeNumberField(version, t.version());
+        }
+        for (int i = 0; i < t.propertyCount(); i++) {
+            sp.defaultSerializeField(t.propertyName(i), t.propertyValue(i), jg);
+        }
+        jg.writeEndObject();
+    }
+}
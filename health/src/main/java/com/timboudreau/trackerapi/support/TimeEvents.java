@@ -0,0 +1,74 @@
+package com.timboudreau.trackerapi.support;
+
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import java.util.List;
+
+/**
+ * The time events of one {@link TimeSet}, independent of how they are laid
+ * out in the database. Resources use this rather than a collection, so the
+ * storage layout can be chosen by configuration - see {@link TimeStorage}.
+ * <p/>
+ * Queries, updates and documents are expressed exactly as they would be
+ * against a collection holding only this set's events.
+ *
+ * @author Tim Boudreau
+ */
+public interface TimeEvents {
+
+    TimeSet set();
+
+    /**
+     * Find events.
+     *
+     * @param query The query
+     * @param projection The fields to return, or null for all
+     * @return A cursor, which must be closed
+     */
+    EventCursor find(DBObject query, DBObject projection);
+
+    /**
+     * Find events in order of start time, read from the start time index.
+     * Events with the same start time are in no particular order.
+     *
+     * @param query The query
+     * @param projection The fields to return, or null for all
+     * @param descending If the latest should come first
+     * @return A cursor, which must be closed
+     */
+    EventCursor findSorted(DBObject query, DBObject projection, boolean descending);
+
+    DBObject findOne(DBObject query);
+
+    /**
+     * Add an event. If it has no <code>_id</code>, one is assigned to it.
+     *
+     * @param event The event
+     * @param concern The durability required
+     */
+    void insert(DBObject event, WriteConcern concern);
+
+    /**
+     * Replace an event previously inserted.
+     *
+     * @param event The event
+     * @param concern The durability required
+     */
+    void save(DBObject event, WriteConcern concern);
+
+    /**
+     * Update events.
+     *
+     * @return The number of events updated
+     */
+    int update(DBObject query, DBObject update, boolean multi, WriteConcern concern);
+
+    /**
+     * Remove events.
+     *
+     * @return The number of events removed
+     */
+    int remove(DBObject query, WriteConcern concern);
+
+    List<?> distinct(String field, DBObject query);
+}
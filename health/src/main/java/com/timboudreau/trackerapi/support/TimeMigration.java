@@ -0,0 +1,205 @@
+package com.timboudreau.trackerapi.support;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.mongo.userstore.MongoUserFactory;
+import com.mastfrog.acteur.mongo.userstore.TTUser;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.Exceptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.timboudreau.trackerapi.Properties;
+import static com.timboudreau.trackerapi.support.TimeStorage.OWNER;
+import static com.timboudreau.trackerapi.support.TimeStorage.SET;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies the per-user time collections into the shared events collection of
+ * {@link TimeStorage}, so a server can be switched to
+ * <code>time.storage=shared</code>. Run by starting the server with
+ * <code>--migrate.time.collections true</code>, which migrates and exits.
+ * <p/>
+ * Collections are copied concurrently, <code>time.migrate.threads</code> at
+ * a time; each is streamed and written in unordered bulk inserts of
+ * <code>time.migrate.batch</code> events. Only documents of type
+ * <code>time</code> are copied, and the application's own collections -
+ * users, logins, the set catalog and registry and the time storage itself -
+ * are never taken for time collections, whatever users happen to be
+ * called. Events keep their ids, so running
+ * the migration again after an interruption skips what was already copied.
+ * The source collections are left alone, to be dropped once the result has
+ * been checked.
+ *
+ * @author Tim Boudreau
+ */
+public final class TimeMigration {
+
+    public static final String SETTINGS_KEY_MIGRATE = "migrate.time.collections";
+    public static final String SETTINGS_KEY_MIGRATION_THREADS = "time.migrate.threads";
+    public static final String SETTINGS_KEY_MIGRATION_BATCH_SIZE = "time.migrate.batch";
+    private static final int DUPLICATE_KEY = 11000;
+    private final Provider<DB> db;
+    private final DBCollection users;
+    private final TimeStorage storage;
+    private final int threads;
+    private final int batchSize;
+    private final Set<String> excluded = new HashSet<>();
+
+    @Inject
+    TimeMigration(Provider<DB> db, @Named(MongoUserFactory.USERS_COLLECTION_NAME) DBCollection users,
+            TimeStorage storage, Settings settings) {
+        this.db = db;
+        this.users = users;
+        this.storage = storage;
+        this.threads = Math.max(1, settings.getInt(SETTINGS_KEY_MIGRATION_THREADS, 4));
+        this.batchSize = Math.max(1, settings.getInt(SETTINGS_KEY_MIGRATION_BATCH_SIZE, 1000));
+        excluded.add(users.getName());
+        excluded.add(MongoUserFactory.LOGIN_STATE_COLLECTION_NAME);
+        excluded.add("events");
+        // The user store's change records
+        excluded.add(settings.getString("user.invalidation.collection", "user_invalidations"));
+        excluded.add(settings.getString(TimeCollections.SETTINGS_KEY_METADATA_COLLECTION,
+                TimeCollections.METADATA_COLLECTION_NAME));
+        excluded.add(settings.getString(SetCatalog.SETTINGS_KEY_CATALOG_COLLECTION,
+                SetCatalog.CATALOG_COLLECTION_NAME));
+        excluded.add(settings.getString(TimeStorage.SETTINGS_KEY_EVENTS_COLLECTION,
+                TimeStorage.EVENTS_COLLECTION_NAME));
+        excluded.add(settings.getString(TimeStorage.SETTINGS_KEY_BUCKETS_COLLECTION,
+                TimeStorage.BUCKETS_COLLECTION_NAME));
+    }
+
+    /**
+     * Copy every user's time collections.
+     *
+     * @return The number of events copied
+     */
+    public long migrate() throws InterruptedException {
+        List<TimeSet> sets = findSets();
+        System.out.println("Migrating " + sets.size() + " time collections into "
+                + storage.shared().getName());
+        ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> results = new ArrayList<>(sets.size());
+            for (TimeSet set : sets) {
+                results.add(threadPool.submit(new CopyCollection(set)));
+            }
+            long total = 0;
+            for (Future<Long> f : results) {
+                try {
+                    total += f.get();
+                } catch (ExecutionException ex) {
+                    // Keep going - what failed can be retried
+                    Exceptions.printStackTrace(ex.getCause());
+                }
+            }
+            System.out.println("Migrated " + total + " time events");
+            return total;
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Match collection names against user names. A user name may itself
+     * contain '_', so the longest user name which is a prefix wins.
+     */
+    private List<TimeSet> findSets() {
+        Set<String> names = new HashSet<>();
+        try (DBCursor cur = users.find(new BasicDBObject(), new BasicDBObject(TTUser.NAME, 1))) {
+            while (cur.hasNext()) {
+                Object name = cur.next().get(TTUser.NAME);
+                if (name instanceof List<?>) {
+                    for (Object o : (List<?>) name) {
+                        names.add(String.valueOf(o));
+                    }
+                } else if (name != null) {
+                    names.add(name.toString());
+                }
+            }
+        }
+        List<TimeSet> result = new ArrayList<>();
+        for (String coll : db.get().getCollectionNames()) {
+            if (excluded.contains(coll) || coll.startsWith("system.")) {
+                continue;
+            }
+            String owner = null;
+            for (int ix = coll.indexOf('_'); ix > 0; ix = coll.indexOf('_', ix + 1)) {
+                if (ix < coll.length() - 1 && names.contains(coll.substring(0, ix))) {
+                    owner = coll.substring(0, ix);
+                }
+            }
+            if (owner != null) {
+                result.add(new TimeSet(owner, coll.substring(owner.length() + 1)));
+            }
+        }
+        return result;
+    }
+
+    private final class CopyCollection implements Callable<Long> {
+
+        private final TimeSet set;
+
+        CopyCollection(TimeSet set) {
+            this.set = set;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            DBCollection source = db.get().getCollection(set.collectionName());
+            DBCollection target = storage.shared();
+            long copied = 0;
+            int pending = 0;
+            BulkWriteOperation bulk = target.initializeUnorderedBulkOperation();
+            DBObject query = new BasicDBObject(Properties.type, Properties.time);
+            try (DBCursor cur = source.find(query).batchSize(batchSize)) {
+                while (cur.hasNext()) {
+                    DBObject event = cur.next();
+                    event.put(OWNER, set.owner());
+                    event.put(SET, set.name());
+                    bulk.insert(event);
+                    if (++pending == batchSize) {
+                        copied += execute(bulk);
+                        bulk = target.initializeUnorderedBulkOperation();
+                        pending = 0;
+                    }
+                }
+            }
+            if (pending > 0) {
+                copied += execute(bulk);
+            }
+            storage.created(set);
+            System.out.println("Migrated " + copied + " events of " + set);
+            return copied;
+        }
+
+        private long execute(BulkWriteOperation bulk) {
+            try {
+                return bulk.execute(WriteConcern.ACKNOWLEDGED).getInsertedCount();
+            } catch (BulkWriteException ex) {
+                // Events copied by an earlier run are expected
+                for (BulkWriteError err : ex.getWriteErrors()) {
+                    if (err.getCode() != DUPLICATE_KEY) {
+                        throw ex;
+                    }
+                }
+                return ex.getWriteResult().getInsertedCount();
+            }
+        }
+    }
+}
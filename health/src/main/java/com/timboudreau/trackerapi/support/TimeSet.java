@@ -0,0 +1,46 @@
+package com.timboudreau.trackerapi.support;
+
+/**
+ * Identifies one user's named set of time events - the user and category
+ * in a <code>users/{user}/time/{category}</code> URL.
+ *
+ * @author Tim Boudreau
+ */
+public final class TimeSet {
+
+    private final String owner;
+    private final String name;
+
+    public TimeSet(String owner, String name) {
+        this.owner = owner;
+        this.name = name;
+    }
+
+    public String owner() {
+        return owner;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String collectionName() {
+        return TimeCollections.collectionName(owner, name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TimeSet && ((TimeSet) o).owner.equals(owner)
+                && ((TimeSet) o).name.equals(name);
+    }
+
+    @Override
+    public int hashCode() {
+        return owner.hashCode() * 31 + name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return owner + "/" + name;
+    }
+}
@@ -0,0 +1,192 @@
+package com.timboudreau.trackerapi.support;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.mastfrog.settings.Settings;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.timboudreau.trackerapi.Properties;
+
+/**
+ * Decides how time events are laid out in the database, and opens the
+ * {@link TimeEvents} of a set accordingly. The layout is chosen by the
+ * <code>time.storage</code> setting:
+ * <ul>
+ * <li><code>collections</code> (the default) - one collection per user and
+ * set, as this application has always stored them</li>
+ * <li><code>shared</code> - one collection, <code>time_events</code> unless
+ * <code>time.events.collection</code> says otherwise, holding every set's
+ * events tagged with their owner and set, and indexed on owner, set, start
+ * and end. This avoids the namespace and file handle costs of thousands of
+ * collections; {@link TimeMigration} copies existing sets into it.</li>
+ * <li><code>bucketed</code> - one collection, <code>time_buckets</code> unless
+ * <code>time.buckets.collection</code> says otherwise, holding one document
+ * per user, set and day, which packs that day's events into arrays - see
+ * {@link BucketedTimeEvents}. Far fewer documents and index entries than
+ * one per event.</li>
+ * </ul>
+ * Either way, the sets which exist are recorded in {@link TimeCollections}.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class TimeStorage {
+
+    public static final String SETTINGS_KEY_TIME_STORAGE = "time.storage";
+    public static final String SETTINGS_KEY_EVENTS_COLLECTION = "time.events.collection";
+    public static final String EVENTS_COLLECTION_NAME = "time_events";
+    public static final String SETTINGS_KEY_BUCKETS_COLLECTION = "time.buckets.collection";
+    public static final String BUCKETS_COLLECTION_NAME = "time_buckets";
+    /**
+     * Field holding the owning user of an event in the shared layout.
+     */
+    public static final String OWNER = "_owner";
+    /**
+     * Field holding the set name of an event in the shared layout.
+     */
+    public static final String SET = "_set";
+    private final TimeCollections collections;
+    private final SetCatalog catalog;
+    private final Provider<DB> db;
+    private final Layout layout;
+    private final String eventsCollectionName;
+    private final String bucketsCollectionName;
+    private volatile DBCollection shared;
+    private volatile DBCollection buckets;
+
+    @Inject
+    TimeStorage(TimeCollections collections, SetCatalog catalog, Provider<DB> db, Settings settings) {
+        this.collections = collections;
+        this.catalog = catalog;
+        this.db = db;
+        this.layout = Layout.forSetting(settings.getString(SETTINGS_KEY_TIME_STORAGE));
+        this.eventsCollectionName = settings.getString(SETTINGS_KEY_EVENTS_COLLECTION, EVENTS_COLLECTION_NAME);
+        this.bucketsCollectionName = settings.getString(SETTINGS_KEY_BUCKETS_COLLECTION, BUCKETS_COLLECTION_NAME);
+    }
+
+    public enum Layout {
+        COLLECTIONS,
+        SHARED,
+        BUCKETED;
+
+        static Layout forSetting(String setting) {
+            if (setting == null) {
+                return COLLECTIONS;
+            }
+            for (Layout l : values()) {
+                if (l.name().equalsIgnoreCase(setting.trim())) {
+                    return l;
+                }
+            }
+            throw new IllegalArgumentException("Unknown " + SETTINGS_KEY_TIME_STORAGE
+                    + " '" + setting + "'");
+        }
+    }
+
+    public Layout layout() {
+        return layout;
+    }
+
+    /**
+     * Determine if a set has any storage.
+     *
+     * @param set The set
+     * @return true if it exists
+     */
+    public boolean exists(TimeSet set) {
+        switch (layout) {
+            case SHARED:
+            case BUCKETED:
+                return collections.isRegistered(set.collectionName());
+            default:
+                return collections.exists(set.collectionName());
+        }
+    }
+
+    /**
+     * Open a set's events.
+     *
+     * @param set The set
+     * @param create If the set does not exist yet, and should be created
+     * when an event is first written to it
+     * @return The events
+     */
+    public TimeEvents open(TimeSet set, boolean create) {
+        switch (layout) {
+            case SHARED:
+                return new MongoTimeEvents(this, set, shared(), true, create);
+            case BUCKETED:
+                return new BucketedTimeEvents(this, set, buckets(), create);
+            default:
+                return new MongoTimeEvents(this, set,
+                        collections.get(set.collectionName()), false, create);
+        }
+    }
+
+    /**
+     * Record that a set has been created, creating its collection and
+     * indexes if it has its own.
+     */
+    void created(TimeSet set) {
+        switch (layout) {
+            case SHARED:
+            case BUCKETED:
+                collections.register(set.collectionName());
+                break;
+            default:
+                collections.create(set.collectionName());
+        }
+        catalog.created(set);
+    }
+
+    /**
+     * The collection of the shared layout, indexed the first time it is
+     * used.
+     */
+    DBCollection shared() {
+        DBCollection result = shared;
+        if (result == null) {
+            synchronized (this) {
+                result = shared;
+                if (result == null) {
+                    result = db.get().getCollection(eventsCollectionName);
+                    result.createIndex(new BasicDBObject(OWNER, 1).append(SET, 1)
+                            .append(Properties.start, 1).append(Properties.end, 1),
+                            eventsCollectionName + "_ownerSetStartEnd", false);
+                    result.createIndex(new BasicDBObject(OWNER, 1).append(SET, 1).append("tags", 1),
+                            new BasicDBObject("sparse", true).append("name", "tags_index"));
+                    shared = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The collection of the bucketed layout, indexed the first time it is
+     * used. The index is unique so that concurrent first writes to a day
+     * cannot create two buckets for it.
+     */
+    DBCollection buckets() {
+        DBCollection result = buckets;
+        if (result == null) {
+            synchronized (this) {
+                result = buckets;
+                if (result == null) {
+                    result = db.get().getCollection(bucketsCollectionName);
+                    result.createIndex(new BasicDBObject(OWNER, 1).append(SET, 1)
+                            .append(BucketedTimeEvents.DAY_FIELD, 1),
+                            bucketsCollectionName + "_ownerSetDay", true);
+                    // Finds the bucket holding an event, given only its id
+                    result.createIndex(new BasicDBObject(OWNER, 1).append(SET, 1)
+                            .append(BucketedTimeEvents.IDS, 1),
+                            bucketsCollectionName + "_ownerSetIds");
+                    buckets = result;
+                }
+            }
+        }
+        return result;
+    }
+}
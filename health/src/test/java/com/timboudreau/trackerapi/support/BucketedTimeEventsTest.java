@@ -0,0 +1,148 @@
+package com.timboudreau.trackerapi.support;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class BucketedTimeEventsTest {
+
+    private static final long DAY = BucketedTimeEvents.DAY;
+
+    @Test
+    public void testMatches() throws Exception {
+        ObjectId first = new ObjectId();
+        ObjectId id = new ObjectId();
+        BasicDBObject event = new BasicDBObject("_id", id).append("start", 100L).append("end", 200L)
+                .append("tags", Arrays.asList("a", "b"));
+        assertTrue(BucketedTimeEvents.matches(range("start", "$gte", 100, "$lt", 150), event));
+        assertFalse(BucketedTimeEvents.matches(range("start", "$gt", 100, "$lte", 150), event));
+        assertTrue(BucketedTimeEvents.matches(new BasicDBObject("tags", "a"), event));
+        assertFalse(BucketedTimeEvents.matches(new BasicDBObject("tags", "c"), event));
+        assertTrue(BucketedTimeEvents.matches(new BasicDBObject("_id", new BasicDBObject("$gt", first)), event));
+        assertFalse(BucketedTimeEvents.matches(new BasicDBObject("_id", new BasicDBObject("$lt", first)), event));
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject("start", 50L));
+        or.add(new BasicDBObject("end", 200));
+        assertTrue(BucketedTimeEvents.matches(new BasicDBObject("$or", or), event));
+        or.remove(1);
+        assertFalse(BucketedTimeEvents.matches(new BasicDBObject("$or", or), event));
+    }
+
+    @Test
+    public void testProject() throws Exception {
+        BasicDBObject event = new BasicDBObject("_id", new ObjectId()).append("start", 1L)
+                .append("end", 2L).append("by", "me");
+        assertEquals(new HashSet<>(Arrays.asList("_id", "start")),
+                BucketedTimeEvents.project(event, new BasicDBObject("start", 1)).keySet());
+        assertEquals(new HashSet<>(Arrays.asList("start")),
+                BucketedTimeEvents.project(event, new BasicDBObject("start", 1).append("_id", 0)).keySet());
+        assertEquals(new HashSet<>(Arrays.asList("_id", "start", "by")),
+                BucketedTimeEvents.project(event, new BasicDBObject("end", 0)).keySet());
+        assertEquals(event.keySet(), BucketedTimeEvents.project(event, null).keySet());
+    }
+
+    @Test
+    public void testEventsMovedToAnotherDayLeaveTheBucket() throws Exception {
+        ObjectId a = new ObjectId();
+        ObjectId b = new ObjectId();
+        ObjectId c = new ObjectId();
+        DBObject bucket = new BasicDBObject(BucketedTimeEvents.DAY_FIELD, 0L)
+                .append(BucketedTimeEvents.IDS, Arrays.asList(a, b, c))
+                .append(BucketedTimeEvents.STARTS, Arrays.asList(10L, 20L, 30L))
+                .append(BucketedTimeEvents.ENDS, Arrays.asList(15L, 25L, 35L))
+                .append(BucketedTimeEvents.PROPERTIES, Arrays.asList(new BasicDBObject(),
+                        new BasicDBObject("by", "me"), new BasicDBObject()));
+        BucketedTimeEvents.Edit shift = new BucketedTimeEvents.Edit() {
+            @Override
+            public BasicDBObject apply(BasicDBObject event) {
+                event.put("start", (Long) event.get("start") + DAY);
+                event.put("end", (Long) event.get("end") + DAY);
+                return event;
+            }
+        };
+        BucketedTimeEvents.Split split = BucketedTimeEvents.split(bucket, new BasicDBObject("_id", b), true, shift,
+                Collections.<Object>emptySet());
+        assertEquals(1, split.matched);
+        assertEquals(2, split.keep.size());
+        assertEquals(a, split.keep.get(0).get("_id"));
+        assertEquals(c, split.keep.get(1).get("_id"));
+        assertEquals(1, split.moved.size());
+        BasicDBObject moved = split.moved.get(0);
+        assertEquals(b, moved.get("_id"));
+        assertEquals(20L + DAY, moved.get("start"));
+        assertEquals("me", moved.get("by"));
+
+        // Only the first match, and a change within the day stays put
+        split = BucketedTimeEvents.split(bucket, new BasicDBObject(), false, new BucketedTimeEvents.Edit() {
+            @Override
+            public BasicDBObject apply(BasicDBObject event) {
+                event.put("end", 99L);
+                return event;
+            }
+        }, Collections.<Object>emptySet());
+        assertEquals(1, split.matched);
+        assertEquals(3, split.keep.size());
+        assertTrue(split.moved.isEmpty());
+        assertEquals(99L, split.keep.get(0).get("end"));
+        assertEquals(25L, split.keep.get(1).get("end"));
+    }
+
+    @Test
+    public void testEventShiftedPastMidnightIsShiftedOnce() throws Exception {
+        final long hour = 60 * 60 * 1000;
+        ObjectId late = new ObjectId();
+        ObjectId next = new ObjectId();
+        DBObject today = new BasicDBObject(BucketedTimeEvents.DAY_FIELD, 0L)
+                .append(BucketedTimeEvents.IDS, Arrays.asList(late))
+                .append(BucketedTimeEvents.STARTS, Arrays.asList(DAY - hour / 2))
+                .append(BucketedTimeEvents.ENDS, Arrays.asList(DAY - hour / 4))
+                .append(BucketedTimeEvents.PROPERTIES, Arrays.asList(new BasicDBObject("version", 0L)));
+        BucketedTimeEvents.Edit shift = new BucketedTimeEvents.Edit() {
+            @Override
+            public BasicDBObject apply(BasicDBObject event) {
+                event.put("start", (Long) event.get("start") + hour);
+                event.put("end", (Long) event.get("end") + hour);
+                event.put("version", (Long) event.get("version") + 1);
+                return event;
+            }
+        };
+        // As edit() walks buckets by day: the first moves the event to the
+        // next day, whose bucket is read afterwards and holds it too
+        Set<Object> done = new HashSet<>();
+        BucketedTimeEvents.Split split = BucketedTimeEvents.split(today, new BasicDBObject(), true, shift, done);
+        assertEquals(1, split.moved.size());
+        done.addAll(split.edited);
+        BasicDBObject moved = split.moved.get(0);
+        DBObject tomorrow = new BasicDBObject(BucketedTimeEvents.DAY_FIELD, DAY)
+                .append(BucketedTimeEvents.IDS, Arrays.asList(next, late))
+                .append(BucketedTimeEvents.STARTS, Arrays.asList(DAY + hour, moved.get("start")))
+                .append(BucketedTimeEvents.ENDS, Arrays.asList(DAY + 2 * hour, moved.get("end")))
+                .append(BucketedTimeEvents.PROPERTIES, Arrays.asList(new BasicDBObject("version", 0L),
+                        new BasicDBObject("version", moved.get("version"))));
+        split = BucketedTimeEvents.split(tomorrow, new BasicDBObject(), true, shift, done);
+        assertEquals(1, split.matched);
+        assertEquals(2, split.keep.size());
+        assertEquals(DAY + 2 * hour, split.keep.get(0).get("start"));
+        BasicDBObject once = split.keep.get(1);
+        assertEquals(late, once.get("_id"));
+        assertEquals(DAY + hour / 2, once.get("start"));
+        assertEquals(1L, once.get("version"));
+    }
+
+    private static DBObject range(String field, String op1, long v1, String op2, long v2) {
+        return new BasicDBObject(field, new BasicDBObject(op1, v1).append(op2, v2));
+    }
+}
@@ -0,0 +1,50 @@
+package com.timboudreau.trackerapi.support;
+
+import java.util.Iterator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.joda.time.Interval;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class IntervalsTest {
+
+    @Test
+    public void testOverlappingIntervalsAreMerged() throws Exception {
+        Intervals ivals = new Intervals(true);
+        ivals.add(0, 10, "a");
+        ivals.add(5, 20, "b");
+        ivals.add(8, 12, "c");
+        ivals.add(20, 30, "d");
+        ivals.add(40, 50, "e");
+        assertEquals(40, ivals.total().getMillis());
+        Iterator<Interval> it = ivals.iterator();
+        assertEquals(new Interval(0, 20), it.next());
+        assertEquals(new Interval(20, 30), it.next());
+        assertEquals(new Interval(40, 50), it.next());
+        assertFalse(it.hasNext());
+        String json = ivals.toJSON(true, true);
+        assertTrue(json, json.contains("\"ids\":[\"a\",\"b\",\"c\"]"));
+    }
+
+    @Test
+    public void testTotalWithoutDetail() throws Exception {
+        Intervals ivals = new Intervals(false);
+        for (int i = 0; i < 100000; i++) {
+            ivals.add(i * 10L, i * 10L + 15, null);
+        }
+        assertEquals(999_990 + 15, ivals.total().getMillis());
+        assertFalse(ivals.iterator().hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfOrderIsRejected() {
+        Intervals ivals = new Intervals(false);
+        ivals.add(10, 20, null);
+        ivals.add(5, 8, null);
+    }
+}
@@ -0,0 +1,44 @@
+package com.timboudreau.trackerapi.support;
+
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDouble;
+import org.bson.BsonInt64;
+import org.bson.BsonInvalidOperationException;
+import org.bson.codecs.DecoderContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TimeEventCodecTest {
+
+    @Test
+    public void testDoubleTimesAreRoundedOrKept() throws Exception {
+        BsonDocument doc = new BsonDocument("start", new BsonDouble(1000.6))
+                .append("end", new BsonDouble(Double.NaN))
+                .append("added", new BsonInt64(5));
+        TimeEvent event = decode(doc);
+        assertEquals(1001, event.start());
+        assertEquals(5, event.added());
+        // Not a time, so not the end time - but not lost either
+        assertFalse(event.has(TimeEvent.END));
+        assertTrue(Double.isNaN((Double) event.property("end")));
+    }
+
+    @Test(expected = BsonInvalidOperationException.class)
+    public void testUnsupportedTypesAreRejected() throws Exception {
+        decode(new BsonDocument("start", new BsonInt64(1))
+                .append("blob", new BsonBinary(new byte[]{1, 2, 3})));
+    }
+
+    private static TimeEvent decode(BsonDocument doc) {
+        return TimeEventCodec.instance().decode(new BsonDocumentReader(doc),
+                DecoderContext.builder().build());
+    }
+}